@@ -0,0 +1,45 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Synthetic table data for the benchmarks: java DataGenerator <rows> <file.csv>
+//
+// Columns: id INT (1..rows, in order), name VARCHAR(20) (unique), city
+// VARCHAR(20) (16 values, for low-cardinality filters), score DOUBLE.
+// The same row count always gives the same file.
+public class DataGenerator {
+    public static final String COLUMNS = "id INT, name VARCHAR(20), city VARCHAR(20), score DOUBLE";
+    public static final String HEADER = "id,name,city,score";
+
+    private static final String[] CITIES = {
+            "Amsterdam", "Berlin", "Cairo", "Delhi", "Edinburgh", "Florence", "Geneva", "Hanoi",
+            "Istanbul", "Jakarta", "Kyoto", "Lima", "Madrid", "Nairobi", "Oslo", "Prague"
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java DataGenerator <rows> <file.csv>");
+            return;
+        }
+        write(Long.parseLong(args[0]), new File(args[1]));
+    }
+
+    public static void write(long rows, File file) throws IOException {
+        Random random = new Random(rows);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+                1 << 20)) {
+            out.write(HEADER + "\n");
+            for (long id = 1; id <= rows; id++) out.write(row(id, random) + "\n");
+        }
+    }
+
+    // One row as it goes into the file or an INSERT ... VALUES list
+    public static String row(long id, Random random) {
+        return id + ",user" + id + "," + CITIES[random.nextInt(CITIES.length)] + ","
+                + random.nextInt(100_000) / 100.0;
+    }
+
+    public static String city(Random random) {
+        return CITIES[random.nextInt(CITIES.length)];
+    }
+}
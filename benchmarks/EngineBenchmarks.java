@@ -0,0 +1,156 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+// Throughput benchmarks for the engine, run the way JMH runs them: each
+// benchmark gets timed warm-up iterations first and then measured ones. The
+// report gives the mean score with its standard deviation, and the bytes
+// allocated per operation on the benchmark thread (what JMH's -prof gc reports
+// as gc.alloc.rate.norm; parallel-scan workers aren't counted).
+//
+//   javac -d out src/*.java benchmarks/*.java
+//   mkdir bench && cd bench
+//   java -cp ../out EngineBenchmarks [-rows 10000,1000000,10000000]
+//        [-bench parse,lookup,scan,insert,update] [-warmup 3] [-iterations 5] [-seconds 1]
+//
+// Run it in a scratch directory: like the GUI it keeps its tables under data/,
+// and it recreates a database called bench for every table size. The
+// generated bench-<rows>.csv files are kept for the next run.
+public class EngineBenchmarks {
+    private static final List<String> ALL = List.of("parse", "lookup", "scan", "insert", "update");
+
+    @FunctionalInterface
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    // perOp scales a score, e.g. a scan reports rows/s rather than scans/s
+    private record Benchmark(String name, String unit, long perOp, Operation op) {}
+
+    private record Score(double mean, double stddev, double bytesPerOp) {}
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        long[] sizes = {10_000, 1_000_000, 10_000_000};
+        List<String> selected = ALL;
+        int warmup = 3;
+        int iterations = 5;
+        double seconds = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-rows" -> sizes = Arrays.stream(args[i + 1].split(",")).mapToLong(Long::parseLong).toArray();
+                case "-bench" -> selected = List.of(args[i + 1].toLowerCase().split(","));
+                case "-warmup" -> warmup = Integer.parseInt(args[i + 1]);
+                case "-iterations" -> iterations = Integer.parseInt(args[i + 1]);
+                case "-seconds" -> seconds = Double.parseDouble(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        Database db = new Database();
+        CommandParser parser = new CommandParser(db);
+        List<String> report = new ArrayList<>();
+        report.add(String.format("%-8s %12s %14s %12s  %-7s %12s", "Bench", "Rows", "Score", "Error", "Units", "Alloc/op"));
+        for (long rows : sizes) {
+            setUp(parser, rows);
+            for (Benchmark b : benchmarks(parser, rows)) {
+                if (!selected.contains(b.name())) continue;
+                System.out.printf("# %s, %,d rows%n", b.name(), rows);
+                Score s = measure(b, warmup, iterations, seconds);
+                report.add(String.format("%-8s %12d %14.1f %12s  %-7s %10.0f B", b.name(), rows, s.mean(),
+                        String.format("+- %.1f", s.stddev()), b.unit(), s.bytesPerOp()));
+            }
+        }
+        parser.execute("DROP DATABASE bench");
+        System.out.println();
+        report.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    // A fresh table of the given size, loaded in bulk, with a hash index on id
+    private static void setUp(CommandParser parser, long rows) throws IOException {
+        File csv = new File("bench-" + rows + ".csv");
+        if (!csv.exists()) {
+            System.out.printf("# Generating %,d rows into %s%n", rows, csv);
+            DataGenerator.write(rows, csv);
+        }
+        parser.execute("DROP DATABASE bench");
+        check(parser.execute("CREATE DATABASE bench"), "Database created");
+        check(parser.execute("USE bench"), "Using database");
+        check(parser.execute("CREATE TABLE t (" + DataGenerator.COLUMNS + ")"), "Table created");
+        System.out.println("# " + check(parser.execute("LOAD DATA '" + csv.getPath() + "' INTO t"), rows + " rows"));
+        check(parser.execute("CREATE INDEX t_id ON t(id) USING HASH"), "Index created");
+    }
+
+    private static String check(String result, String expected) {
+        if (!result.startsWith(expected)) throw new IllegalStateException("Setup failed: " + result);
+        return result;
+    }
+
+    // Reads run before the writes that change the table under them
+    private static List<Benchmark> benchmarks(CommandParser parser, long rows) {
+        Random random = new Random(42);
+        long[] nextId = {rows};
+        Statement.Prepare lookup = parser.prepare("SELECT * FROM t WHERE id = ?");
+        Statement.Prepare update = parser.prepare("UPDATE t SET score = ? WHERE id = ?");
+        String[] sql = {
+                "SELECT * FROM t WHERE id = 42",
+                "SELECT city, COUNT(*), AVG(score) FROM t WHERE score BETWEEN 10 AND 20 GROUP BY city ORDER BY city",
+                "INSERT INTO t VALUES (1, 'a', 'Oslo', 1.5), (2, 'b', 'Lima', 2.5)",
+                "UPDATE t SET city = 'Kyoto' WHERE name = 'user7'",
+        };
+        int[] next = {0};
+        return List.of(
+                new Benchmark("parse", "ops/s", 1, () -> SqlParser.parse(sql[next[0]++ & 3])),
+                new Benchmark("lookup", "ops/s", 1,
+                        () -> expect(parser.execute(lookup, String.valueOf(1 + random.nextInt((int) rows))), "----")),
+                // Full scan: no row matches, so every row is tested and none is returned
+                new Benchmark("scan", "rows/s", rows,
+                        () -> expect(parser.execute("SELECT * FROM t WHERE city = 'Atlantis'"), "----")),
+                new Benchmark("insert", "ops/s", 1, () -> expect(parser.execute(
+                        "INSERT INTO t VALUES (" + DataGenerator.row(++nextId[0], random) + ")"), "Row inserted")),
+                new Benchmark("update", "ops/s", 1, () -> expect(parser.execute(update,
+                        String.valueOf(random.nextInt(100_000) / 100.0), String.valueOf(1 + random.nextInt((int) rows))),
+                        "Update successful")));
+    }
+
+    private static void expect(String result, String prefix) {
+        if (!result.startsWith(prefix)) throw new IllegalStateException("Unexpected result: " + result);
+    }
+
+    private static Score measure(Benchmark b, int warmup, int iterations, double seconds) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            double[] r = iteration(b, seconds);
+            System.out.printf("Warmup %d: %.1f %s%n", i + 1, r[0], b.unit());
+        }
+        double[] scores = new double[iterations];
+        double bytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            double[] r = iteration(b, seconds);
+            scores[i] = r[0];
+            bytes += r[1];
+            System.out.printf("Iteration %d: %.1f %s, %.0f B/op%n", i + 1, r[0], b.unit(), r[1]);
+        }
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double variance = Arrays.stream(scores).map(s -> (s - mean) * (s - mean)).sum() / Math.max(1, iterations - 1);
+        return new Score(mean, Math.sqrt(variance), bytes / iterations);
+    }
+
+    // Runs the operation for the given time; returns {score, bytes allocated per op}
+    private static double[] iteration(Benchmark b, double seconds) throws Exception {
+        long thread = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long ops = 0;
+        do {
+            b.op().run();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        double bytesPerOp = (double) (THREADS.getThreadAllocatedBytes(thread) - allocated) / ops;
+        return new double[]{ops * b.perOp() / elapsed, bytesPerOp};
+    }
+}
@@ -0,0 +1,423 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.*;
+
+// COUNT, SUM, AVG, MIN and MAX with an optional GROUP BY, evaluated a vector
+// of rows at a time. Each vector is first cut into columns: every row gets a
+// group slot (INT and BIGINT keys through an open-addressing table on the
+// key itself, other keys through a dictionary), and each aggregated column is
+// parsed in place into long[]/double[] arrays. The aggregates then run as
+// plain loops over those arrays, keeping their state in per-group arrays.
+public class Aggregator {
+    public static final int VECTOR_SIZE = 1024;
+
+    // What a field of the current vector holds
+    private static final byte MISSING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte DECIMAL = 2;
+    private static final byte TEXT = 3;
+
+    private final String[] labels;
+    private final int groupField;
+    private final boolean integerKeys;
+    // Table column -> field of the vector, or -1 if it isn't read
+    private final int[] fieldOf;
+    // Per item; null for the GROUP BY column itself
+    private final State[] states;
+
+    // The current vector, one array per field read from the rows
+    private final String[] lines = new String[VECTOR_SIZE];
+    private final int[][] starts;
+    private final int[][] ends;
+    private final byte[][] kinds;
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final boolean[] parsed;
+    private final int[] slots = new int[VECTOR_SIZE];
+
+    private final LongSlots slotsByKey = new LongSlots();
+    private final Map<String, Integer> slotsByText = new HashMap<>();
+    private String[] keys = new String[16];
+    private int groups;
+
+    public Aggregator(String[] header, Schema schema, List<Statement.SelectItem> items, String groupBy) {
+        this.labels = new String[items.size()];
+        this.fieldOf = new int[header.length];
+        Arrays.fill(fieldOf, -1);
+        int fields = 0;
+        if (groupBy != null) fieldOf[column(header, groupBy)] = fields++;
+        this.groupField = groupBy == null ? -1 : 0;
+        this.states = new State[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            Statement.SelectItem item = items.get(i);
+            labels[i] = item.label();
+            if (item.function() == null) {
+                if (groupBy == null || !item.column().equalsIgnoreCase(groupBy))
+                    throw new IllegalArgumentException(item.column() + " must appear in GROUP BY or inside an aggregate.");
+                continue;
+            }
+            int field = -1;
+            if (!item.column().equals("*")) {
+                int c = column(header, item.column());
+                if (fieldOf[c] < 0) fieldOf[c] = fields++;
+                field = fieldOf[c];
+            }
+            states[i] = new State(item.function(), item.column(), field);
+        }
+        Schema.Column key = groupBy == null ? null : schema.column(groupBy);
+        // Canonical INT/BIGINT spellings are equal exactly when their values are
+        this.integerKeys = key != null && (key.type() == Schema.Type.INT || key.type() == Schema.Type.BIGINT);
+        this.starts = new int[fields][VECTOR_SIZE];
+        this.ends = new int[fields][VECTOR_SIZE];
+        this.kinds = new byte[fields][VECTOR_SIZE];
+        this.longs = new long[fields][VECTOR_SIZE];
+        this.doubles = new double[fields][VECTOR_SIZE];
+        this.parsed = new boolean[fields];
+        // Without GROUP BY everything is one group, even when no row matches
+        if (groupBy == null) newGroup(null);
+    }
+
+    private static int column(String[] header, String name) {
+        for (int i = 0; i < header.length; i++)
+            if (header[i].equalsIgnoreCase(name)) return i;
+        throw new IllegalArgumentException("Column not found: " + name);
+    }
+
+    public String[] columns() {
+        return labels.clone();
+    }
+
+    public void add(List<Row> rows) {
+        for (int from = 0; from < rows.size(); from += VECTOR_SIZE) {
+            int n = Math.min(VECTOR_SIZE, rows.size() - from);
+            for (int i = 0; i < n; i++) lines[i] = rows.get(from + i).line();
+            addVector(n);
+        }
+    }
+
+    private void addVector(int n) {
+        cut(n);
+        assignSlots(n);
+        Arrays.fill(parsed, false);
+        for (State state : states) {
+            if (state == null) continue;
+            if (state.field >= 0 && !parsed[state.field]) {
+                parse(state.field, n);
+                parsed[state.field] = true;
+            }
+            state.update(n);
+        }
+    }
+
+    // Finds the bounds of the fields read in each line
+    private void cut(int n) {
+        for (int[] s : starts) Arrays.fill(s, 0, n, -1);
+        for (int i = 0; i < n; i++) {
+            String line = lines[i];
+            int col = 0;
+            int from = 0;
+            int len = line.length();
+            while (col < fieldOf.length) {
+                int to = line.indexOf(',', from);
+                if (to < 0) to = len;
+                int f = fieldOf[col];
+                if (f >= 0) {
+                    starts[f][i] = from;
+                    ends[f][i] = to;
+                }
+                if (to == len) break;
+                from = to + 1;
+                col++;
+            }
+        }
+    }
+
+    private void assignSlots(int n) {
+        if (groupField < 0) {
+            Arrays.fill(slots, 0, n, 0);
+            return;
+        }
+        if (integerKeys) parse(groupField, n);
+        int[] s = starts[groupField];
+        int[] e = ends[groupField];
+        for (int i = 0; i < n; i++) {
+            if (integerKeys && kinds[groupField][i] == INTEGER) {
+                long key = longs[groupField][i];
+                int slot = slotsByKey.get(key);
+                if (slot < 0) {
+                    slot = newGroup(lines[i].substring(s[i], e[i]));
+                    slotsByKey.put(key, slot);
+                }
+                slots[i] = slot;
+            } else {
+                String key = s[i] < 0 ? "" : lines[i].substring(s[i], e[i]);
+                Integer slot = slotsByText.get(key);
+                if (slot == null) {
+                    slot = newGroup(key);
+                    slotsByText.put(key, slot);
+                }
+                slots[i] = slot;
+            }
+        }
+    }
+
+    private int newGroup(String key) {
+        if (groups == keys.length) {
+            keys = Arrays.copyOf(keys, groups * 2);
+            for (State state : states)
+                if (state != null) state.grow(groups * 2);
+        }
+        keys[groups] = key;
+        return groups++;
+    }
+
+    // Classifies each value of a field and parses the numbers without copying them out
+    private void parse(int field, int n) {
+        byte[] kind = kinds[field];
+        long[] l = longs[field];
+        double[] d = doubles[field];
+        int[] s = starts[field];
+        int[] e = ends[field];
+        for (int i = 0; i < n; i++) {
+            String line = lines[i];
+            int from = s[i];
+            int to = e[i];
+            if (from < 0 || from == to) {
+                kind[i] = MISSING;
+                continue;
+            }
+            boolean negative = line.charAt(from) == '-';
+            long value = 0;
+            boolean digits = false;
+            boolean dot = false;
+            byte k = INTEGER;
+            for (int j = negative ? from + 1 : from; j < to; j++) {
+                char c = line.charAt(j);
+                if (c >= '0' && c <= '9') {
+                    digits = true;
+                    value = value * 10 + (c - '0');
+                } else if (c == '.' && !dot) {
+                    dot = true;
+                } else {
+                    k = TEXT;
+                    break;
+                }
+            }
+            if (k != TEXT && !digits) k = TEXT;
+            if (k == INTEGER && (dot || to - from > 18)) k = DECIMAL;
+            kind[i] = k;
+            if (k == INTEGER) {
+                l[i] = negative ? -value : value;
+                d[i] = l[i];
+            } else if (k == DECIMAL) {
+                d[i] = Double.parseDouble(line.substring(from, to));
+            }
+        }
+    }
+
+    // The groups in the order they were first seen, or by key
+    public List<Row> result(boolean orderByKey, boolean descending) {
+        Integer[] order = new Integer[groups];
+        for (int g = 0; g < groups; g++) order[g] = g;
+        if (orderByKey) Arrays.sort(order, descending ? (a, b) -> Values.compare(keys[b], keys[a])
+                : (a, b) -> Values.compare(keys[a], keys[b]));
+        List<Row> rows = new ArrayList<>(groups);
+        StringBuilder sb = new StringBuilder();
+        for (int g : order) {
+            sb.setLength(0);
+            for (int i = 0; i < states.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(states[i] == null ? keys[g] : states[i].result(g));
+            }
+            rows.add(new Row(sb.toString()));
+        }
+        return rows;
+    }
+
+    // To the 15 significant digits a double holds, so 0.1 + 0.2 prints 0.3
+    private static String format(double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) return Double.toString(d);
+        return new BigDecimal(d).round(new MathContext(15)).stripTrailingZeros().toPlainString();
+    }
+
+    // One aggregate's per-group state
+    private final class State {
+        private final String function;
+        private final String column;
+        private final int field;
+        private long[] count = new long[16];
+        // SUM and AVG: exact while every value is an integer, else the double
+        // sum with its Neumaier compensation for the rounding lost so far
+        private long[] longSum;
+        private double[] sum;
+        private double[] error;
+        private boolean[] fractional;
+        // MIN and MAX: numbers sort before text, so both extremes are kept
+        private double[] best;
+        private String[] bestNumber;
+        private String[] bestText;
+
+        State(String function, String column, int field) {
+            this.function = function;
+            this.column = column;
+            this.field = field;
+            switch (function) {
+                case "SUM", "AVG" -> {
+                    longSum = new long[16];
+                    sum = new double[16];
+                    error = new double[16];
+                    fractional = new boolean[16];
+                }
+                case "MIN", "MAX" -> {
+                    best = new double[16];
+                    bestNumber = new String[16];
+                    bestText = new String[16];
+                }
+                default -> {
+                    // COUNT only counts
+                }
+            }
+        }
+
+        void grow(int capacity) {
+            count = Arrays.copyOf(count, capacity);
+            if (sum != null) {
+                longSum = Arrays.copyOf(longSum, capacity);
+                sum = Arrays.copyOf(sum, capacity);
+                error = Arrays.copyOf(error, capacity);
+                fractional = Arrays.copyOf(fractional, capacity);
+            }
+            if (best != null) {
+                best = Arrays.copyOf(best, capacity);
+                bestNumber = Arrays.copyOf(bestNumber, capacity);
+                bestText = Arrays.copyOf(bestText, capacity);
+            }
+        }
+
+        void update(int n) {
+            if (field < 0) {
+                // COUNT(*)
+                for (int i = 0; i < n; i++) count[slots[i]]++;
+                return;
+            }
+            byte[] kind = kinds[field];
+            switch (function) {
+                case "COUNT" -> {
+                    for (int i = 0; i < n; i++)
+                        if (kind[i] != MISSING) count[slots[i]]++;
+                }
+                case "SUM", "AVG" -> sum(n, kind);
+                case "MIN" -> extreme(n, kind, -1);
+                default -> extreme(n, kind, 1);
+            }
+        }
+
+        private void sum(int n, byte[] kind) {
+            long[] l = longs[field];
+            double[] d = doubles[field];
+            for (int i = 0; i < n; i++) {
+                byte k = kind[i];
+                if (k == MISSING) continue;
+                int g = slots[i];
+                if (k == TEXT)
+                    throw new IllegalArgumentException(function + " needs numbers, but " + column + " has '"
+                            + lines[i].substring(starts[field][i], ends[field][i]) + "'");
+                count[g]++;
+                double v = d[i];
+                double t = sum[g] + v;
+                error[g] += Math.abs(sum[g]) >= Math.abs(v) ? (sum[g] - t) + v : (v - t) + sum[g];
+                sum[g] = t;
+                if (k == DECIMAL) {
+                    fractional[g] = true;
+                } else if (!fractional[g]) {
+                    try {
+                        longSum[g] = Math.addExact(longSum[g], l[i]);
+                    } catch (ArithmeticException e) {
+                        fractional[g] = true;
+                    }
+                }
+            }
+        }
+
+        // sign is 1 for MAX, -1 for MIN
+        private void extreme(int n, byte[] kind, int sign) {
+            double[] d = doubles[field];
+            int[] s = starts[field];
+            int[] e = ends[field];
+            for (int i = 0; i < n; i++) {
+                byte k = kind[i];
+                if (k == MISSING) continue;
+                int g = slots[i];
+                count[g]++;
+                if (k == TEXT) {
+                    String v = lines[i].substring(s[i], e[i]);
+                    if (bestText[g] == null || sign * v.compareTo(bestText[g]) > 0) bestText[g] = v;
+                    continue;
+                }
+                int cmp = bestNumber[g] == null ? sign : Double.compare(d[i], best[g]);
+                if (sign * cmp > 0) {
+                    best[g] = d[i];
+                    bestNumber[g] = lines[i].substring(s[i], e[i]);
+                } else if (cmp == 0) {
+                    // Doubles can tie for distinct long values
+                    String v = lines[i].substring(s[i], e[i]);
+                    if (sign * Values.compare(v, bestNumber[g]) > 0) bestNumber[g] = v;
+                }
+            }
+        }
+
+        String result(int g) {
+            return switch (function) {
+                case "COUNT" -> Long.toString(count[g]);
+                case "SUM" -> count[g] == 0 ? "" : fractional[g] ? format(sum[g] + error[g]) : Long.toString(longSum[g]);
+                case "AVG" -> count[g] == 0 ? ""
+                        : format((fractional[g] ? sum[g] + error[g] : (double) longSum[g]) / count[g]);
+                case "MIN" -> bestNumber[g] != null ? bestNumber[g] : bestText[g] != null ? bestText[g] : "";
+                default -> bestText[g] != null ? bestText[g] : bestNumber[g] != null ? bestNumber[g] : "";
+            };
+        }
+    }
+
+    // Open-addressing (linear probing) map from a long key to a group slot
+    private static final class LongSlots {
+        private long[] keys = new long[64];
+        private int[] values = new int[64];
+        private boolean[] used = new boolean[64];
+        private int size;
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask)
+                if (keys[i] == key) return values[i];
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (size * 2 >= keys.length) resize();
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (used[i] && keys[i] != key) i = (i + 1) & mask;
+            if (!used[i]) size++;
+            used[i] = true;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldUsed[i]) put(oldKeys[i], oldValues[i]);
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
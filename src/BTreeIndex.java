@@ -0,0 +1,225 @@
+import java.io.File;
+import java.util.Arrays;
+
+// Ordered index: a B+tree whose leaves are linked left to right, so range
+// predicates, prefix lookups and ORDER BY read only the leaves they need.
+// Keys are ordered with Values.compare. The tree lives in memory and is
+// rebuilt from the index file when the database is opened.
+public class BTreeIndex extends Index {
+    private static final int ORDER = 64;
+
+    private static final class Postings {
+        long[] offsets = new long[1];
+        int size;
+
+        void add(long offset) {
+            if (size == offsets.length) offsets = Arrays.copyOf(offsets, size * 2);
+            offsets[size++] = offset;
+        }
+    }
+
+    private abstract static class Node {
+        final String[] keys = new String[ORDER];
+        int size;
+    }
+
+    private static final class Leaf extends Node {
+        final Postings[] values = new Postings[ORDER];
+        Leaf next;
+    }
+
+    private static final class Inner extends Node {
+        final Node[] children = new Node[ORDER + 1];
+    }
+
+    private record Split(String key, Node right) {}
+
+    private static final class OffsetList {
+        long[] items = new long[16];
+        int size;
+
+        void addAll(Postings p) {
+            if (size + p.size > items.length) items = Arrays.copyOf(items, Math.max(items.length * 2, size + p.size));
+            System.arraycopy(p.offsets, 0, items, size, p.size);
+            size += p.size;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
+
+    private Node root = new Leaf();
+
+    public BTreeIndex(File file, String table, String column) {
+        super(file, table, column);
+    }
+
+    @Override
+    public String type() {
+        return "BTREE";
+    }
+
+    @Override
+    public synchronized long[] lookup(String value) {
+        Leaf leaf = findLeaf(value);
+        int i = lowerBound(leaf, value);
+        if (i < leaf.size && Values.compare(leaf.keys[i], value) == 0)
+            return Arrays.copyOf(leaf.values[i].offsets, leaf.values[i].size);
+        return new long[0];
+    }
+
+    // Offsets of rows the condition can match, in key order
+    public synchronized long[] range(Condition cond) {
+        return switch (cond.op()) {
+            case "=" -> lookup(cond.value());
+            case "<" -> range(null, false, cond.value(), false);
+            case "<=" -> range(null, false, cond.value(), true);
+            case ">" -> range(cond.value(), false, null, false);
+            case ">=" -> range(cond.value(), true, null, false);
+            case "BETWEEN" -> range(cond.value(), true, cond.upper(), true);
+            case "LIKE" -> prefix(cond.prefix());
+            default -> throw new IllegalArgumentException("Unsupported operator: " + cond.op());
+        };
+    }
+
+    // Every offset, in key order
+    public synchronized long[] ordered() {
+        return range(null, false, null, false);
+    }
+
+    private long[] range(String lo, boolean loInclusive, String hi, boolean hiInclusive) {
+        OffsetList out = new OffsetList();
+        Leaf leaf = lo == null ? leftmost() : findLeaf(lo);
+        int i = lo == null ? 0 : lowerBound(leaf, lo);
+        for (; leaf != null; leaf = leaf.next, i = 0) {
+            for (; i < leaf.size; i++) {
+                String key = leaf.keys[i];
+                if (lo != null && !loInclusive && Values.compare(key, lo) == 0) continue;
+                if (hi != null) {
+                    int c = Values.compare(key, hi);
+                    if (c > 0 || (c == 0 && !hiInclusive)) return out.toArray();
+                }
+                out.addAll(leaf.values[i]);
+            }
+        }
+        return out.toArray();
+    }
+
+    private long[] prefix(String prefix) {
+        OffsetList out = new OffsetList();
+        // Text with this prefix is one contiguous run of keys, but numbers like
+        // 1, 10 and 1.5 are spread out by numeric order, so walk all of them.
+        boolean contiguous = !prefix.isEmpty() && !Values.isNumber(prefix) && !prefix.equals("-");
+        Leaf leaf = contiguous ? findLeaf(prefix) : leftmost();
+        int i = contiguous ? lowerBound(leaf, prefix) : 0;
+        for (; leaf != null; leaf = leaf.next, i = 0) {
+            for (; i < leaf.size; i++) {
+                if (leaf.keys[i].startsWith(prefix)) out.addAll(leaf.values[i]);
+                else if (contiguous && !Values.isNumber(leaf.keys[i])) return out.toArray();
+            }
+        }
+        return out.toArray();
+    }
+
+    @Override
+    protected void put(String value, long offset) {
+        Split split = insert(root, value, offset);
+        if (split != null) {
+            Inner top = new Inner();
+            top.keys[0] = split.key();
+            top.children[0] = root;
+            top.children[1] = split.right();
+            top.size = 1;
+            root = top;
+        }
+    }
+
+    @Override
+    protected void clear() {
+        root = new Leaf();
+    }
+
+    private Split insert(Node node, String key, long offset) {
+        if (node instanceof Leaf leaf) {
+            int i = lowerBound(leaf, key);
+            if (i < leaf.size && Values.compare(leaf.keys[i], key) == 0) {
+                leaf.values[i].add(offset);
+                return null;
+            }
+            System.arraycopy(leaf.keys, i, leaf.keys, i + 1, leaf.size - i);
+            System.arraycopy(leaf.values, i, leaf.values, i + 1, leaf.size - i);
+            leaf.keys[i] = key;
+            leaf.values[i] = new Postings();
+            leaf.values[i].add(offset);
+            if (++leaf.size < ORDER) return null;
+
+            Leaf right = new Leaf();
+            int mid = leaf.size / 2;
+            right.size = leaf.size - mid;
+            System.arraycopy(leaf.keys, mid, right.keys, 0, right.size);
+            System.arraycopy(leaf.values, mid, right.values, 0, right.size);
+            Arrays.fill(leaf.keys, mid, leaf.size, null);
+            Arrays.fill(leaf.values, mid, leaf.size, null);
+            leaf.size = mid;
+            right.next = leaf.next;
+            leaf.next = right;
+            return new Split(right.keys[0], right);
+        }
+
+        Inner inner = (Inner) node;
+        int i = childIndex(inner, key);
+        Split split = insert(inner.children[i], key, offset);
+        if (split == null) return null;
+        System.arraycopy(inner.keys, i, inner.keys, i + 1, inner.size - i);
+        System.arraycopy(inner.children, i + 1, inner.children, i + 2, inner.size - i);
+        inner.keys[i] = split.key();
+        inner.children[i + 1] = split.right();
+        if (++inner.size < ORDER) return null;
+
+        Inner right = new Inner();
+        int mid = inner.size / 2;
+        String up = inner.keys[mid];
+        right.size = inner.size - mid - 1;
+        System.arraycopy(inner.keys, mid + 1, right.keys, 0, right.size);
+        System.arraycopy(inner.children, mid + 1, right.children, 0, right.size + 1);
+        Arrays.fill(inner.keys, mid, inner.size, null);
+        Arrays.fill(inner.children, mid + 1, inner.size + 1, null);
+        inner.size = mid;
+        return new Split(up, right);
+    }
+
+    private Leaf findLeaf(String key) {
+        Node node = root;
+        while (node instanceof Inner inner) node = inner.children[childIndex(inner, key)];
+        return (Leaf) node;
+    }
+
+    private Leaf leftmost() {
+        Node node = root;
+        while (node instanceof Inner inner) node = inner.children[0];
+        return (Leaf) node;
+    }
+
+    // First slot whose key is >= key
+    private static int lowerBound(Node node, String key) {
+        int lo = 0, hi = node.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Values.compare(node.keys[mid], key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // Separators equal to the key send it right, where the leaf starting with it lives
+    private static int childIndex(Inner inner, String key) {
+        int lo = 0, hi = inner.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Values.compare(inner.keys[mid], key) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
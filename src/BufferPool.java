@@ -0,0 +1,218 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+// Fixed-size page cache shared by every table file. Pages are evicted with the
+// CLOCK algorithm, so memory never exceeds the configured pool size no matter
+// how many tables are read. Writes go through to the file first and are then
+// copied into any cached page they touch.
+//
+// A miss reserves and pins its frame under the pool's lock but reads the file
+// outside it, so a cold read only holds up readers of that same page, who wait
+// for it instead of reading it again.
+public class BufferPool {
+    public static final int PAGE_SIZE = 8192;
+
+    public static final class Page {
+        private String path;
+        private long pageNo;
+        private final byte[] data = new byte[PAGE_SIZE];
+        private int length;
+        private int pins;
+        private boolean referenced;
+        // Being read from the file by the reader that reserved it
+        private boolean loading;
+
+        public byte[] data() {
+            return data;
+        }
+
+        // Number of valid bytes; only the last page of a file is short
+        public int length() {
+            return length;
+        }
+
+        public long start() {
+            return pageNo * PAGE_SIZE;
+        }
+    }
+
+    private record PageId(String path, long pageNo) {}
+
+    private final int capacity;
+    private final List<Page> frames = new ArrayList<>();
+    private final Map<PageId, Page> pages = new HashMap<>();
+    // Bumped whenever a file is replaced, so readers still holding the old file bypass the cache
+    private final Map<String, Long> generations = new HashMap<>();
+    private int hand;
+    private long hits;
+    private long misses;
+    private long bytesRead;
+
+    public BufferPool(long maxBytes) {
+        capacity = (int) Math.max(1, maxBytes / PAGE_SIZE);
+    }
+
+    // Read before opening the file; pass it back to pin() with the channel opened afterwards.
+    public synchronized long generation(String path) {
+        return generations.getOrDefault(path, 0L);
+    }
+
+    // Returns the page pinned; callers must unpin it once they are done reading.
+    // fileEnd is the caller's view of the file length: a cached page shorter than
+    // that missed an append that raced with the caller and is re-read.
+    public Page pin(String path, long generation, long pageNo, FileChannel channel, long fileEnd)
+            throws IOException {
+        PageId id = new PageId(path, pageNo);
+        long wanted = Math.min(PAGE_SIZE, fileEnd - pageNo * PAGE_SIZE);
+        Page page;
+        synchronized (this) {
+            while (true) {
+                boolean current = generation == generation(path);
+                page = current ? pages.get(id) : null;
+                if (page == null || !page.loading) {
+                    if (page != null && page.length >= wanted) {
+                        hits++;
+                        page.pins++;
+                        page.referenced = true;
+                        return page;
+                    }
+                    if (page == null && current) {
+                        page = allocate();
+                        if (page != null) {
+                            page.path = path;
+                            page.pageNo = pageNo;
+                            page.length = 0;
+                            pages.put(id, page);
+                        }
+                    }
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a page");
+                }
+            }
+            misses++;
+            if (page != null) {
+                page.loading = true;
+                page.pins++;
+                page.referenced = true;
+            }
+        }
+        // Every frame is pinned, or the caller reads a replaced file: use an unpooled page
+        if (page == null) {
+            Page own = new Page();
+            own.pageNo = pageNo;
+            own.length = read(channel, pageNo, own.data);
+            own.pins++;
+            synchronized (this) {
+                bytesRead += own.length;
+            }
+            return own;
+        }
+        // A short page being re-read keeps its bytes: the file only grew past them
+        int length;
+        try {
+            length = read(channel, pageNo, page.data);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                page.loading = false;
+                page.pins--;
+                if (page.path != null) pages.remove(id, page);
+                page.path = null;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            page.length = length;
+            bytesRead += length;
+            page.loading = false;
+            notifyAll();
+        }
+        return page;
+    }
+
+    private static int read(FileChannel channel, long pageNo, byte[] data) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long pos = pageNo * PAGE_SIZE;
+        int n;
+        while (buf.hasRemaining() && (n = channel.read(buf, pos)) > 0) pos += n;
+        return buf.position();
+    }
+
+    public synchronized void unpin(Page page) {
+        if (page.pins > 0) page.pins--;
+    }
+
+    // Mirrors bytes that were just written to the file into the pages already cached.
+    public synchronized void write(String path, long offset, byte[] data) {
+        int done = 0;
+        while (done < data.length) {
+            long pos = offset + done;
+            int inPage = (int) (pos % PAGE_SIZE);
+            int n = Math.min(PAGE_SIZE - inPage, data.length - done);
+            Page page = pages.get(new PageId(path, pos / PAGE_SIZE));
+            // A page still loading may have read the file before these bytes; if so
+            // it comes out short and is re-read by the next caller that needs them
+            if (page != null && !page.loading) {
+                System.arraycopy(data, done, page.data, inPage, n);
+                page.length = Math.max(page.length, inPage + n);
+            }
+            done += n;
+        }
+    }
+
+    // Drops every cached page of a file that was replaced, truncated or deleted.
+    public synchronized void invalidate(String path) {
+        generations.merge(path, 1L, Long::sum);
+        Iterator<Map.Entry<PageId, Page>> it = pages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId, Page> e = it.next();
+            if (e.getKey().path().equals(path)) {
+                e.getValue().path = null;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    // Read from table files on misses
+    public synchronized long bytesRead() {
+        return bytesRead;
+    }
+
+    private Page allocate() {
+        if (frames.size() < capacity) {
+            Page page = new Page();
+            frames.add(page);
+            return page;
+        }
+        // Two sweeps: the first clears reference bits, the second is guaranteed
+        // to find an unpinned frame unless every frame is pinned.
+        for (int i = 0; i < 2 * capacity; i++) {
+            Page page = frames.get(hand);
+            hand = (hand + 1) % capacity;
+            if (page.pins > 0) continue;
+            if (page.referenced) {
+                page.referenced = false;
+                continue;
+            }
+            if (page.path != null) pages.remove(new PageId(page.path, page.pageNo));
+            page.path = null;
+            return page;
+        }
+        return null;
+    }
+}
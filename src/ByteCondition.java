@@ -0,0 +1,113 @@
+import java.nio.charset.StandardCharsets;
+
+// A Condition evaluated on the raw UTF-8 bytes of a row, so scans can reject
+// rows without building a String for them. Gives the same answers as
+// Condition.matches on the split row: equality and LIKE compare bytes,
+// integers are parsed in place, and only decimals and non-ASCII text fall
+// back to decoding the one field.
+public final class ByteCondition {
+    private final Condition condition;
+    private final int column;
+    private final byte[] value;
+    private final byte[] upper;
+
+    public ByteCondition(Condition condition, int column) {
+        this.condition = condition;
+        this.column = column;
+        String v = condition.op().equals("LIKE") ? condition.prefix() : condition.value();
+        this.value = v.getBytes(StandardCharsets.UTF_8);
+        this.upper = condition.upper() == null ? null : condition.upper().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Tests the row in line[start, end)
+    public boolean test(byte[] line, int start, int end) {
+        int from = start;
+        for (int c = 0; c < column; c++) {
+            while (from < end && line[from] != ',') from++;
+            if (from == end) return false;
+            from++;
+        }
+        int to = from;
+        while (to < end && line[to] != ',') to++;
+        // String.split drops trailing empty fields, so those count as missing
+        if (to == from && start != end && onlyCommas(line, from, end)) return false;
+
+        return switch (condition.op()) {
+            case "=" -> equal(line, from, to, value);
+            case "LIKE" -> to - from >= value.length && equal(line, from, from + value.length, value);
+            case "<" -> compare(line, from, to, value, condition.value()) < 0;
+            case "<=" -> compare(line, from, to, value, condition.value()) <= 0;
+            case ">" -> compare(line, from, to, value, condition.value()) > 0;
+            case ">=" -> compare(line, from, to, value, condition.value()) >= 0;
+            case "BETWEEN" -> compare(line, from, to, value, condition.value()) >= 0
+                    && compare(line, from, to, upper, condition.upper()) <= 0;
+            default -> throw new IllegalArgumentException("Unsupported operator: " + condition.op());
+        };
+    }
+
+    private static boolean onlyCommas(byte[] line, int from, int end) {
+        for (int i = from; i < end; i++)
+            if (line[i] != ',') return false;
+        return true;
+    }
+
+    private static boolean equal(byte[] line, int from, int to, byte[] v) {
+        if (to - from != v.length) return false;
+        for (int i = 0; i < v.length; i++)
+            if (line[from + i] != v[i]) return false;
+        return true;
+    }
+
+    // Values.compare without decoding, where that gives the same order
+    private static int compare(byte[] line, int from, int to, byte[] v, String text) {
+        int kindA = kind(line, from, to);
+        int kindB = kind(v, 0, v.length);
+        if (kindA == INTEGER && kindB == INTEGER) return Long.compare(parseLong(line, from, to), parseLong(v, 0, v.length));
+        boolean numA = kindA != TEXT && kindA != NON_ASCII;
+        boolean numB = kindB != TEXT && kindB != NON_ASCII;
+        if (numA != numB) return numA ? -1 : 1;
+        if (kindA == TEXT && kindB == TEXT) {
+            // For ASCII, byte order is String.compareTo order
+            int n = Math.min(to - from, v.length);
+            for (int i = 0; i < n; i++) {
+                int d = line[from + i] - v[i];
+                if (d != 0) return d;
+            }
+            return (to - from) - v.length;
+        }
+        return Values.compare(new String(line, from, to - from, StandardCharsets.UTF_8), text);
+    }
+
+    private static final int INTEGER = 0;
+    private static final int DECIMAL = 1;
+    private static final int TEXT = 2;
+    private static final int NON_ASCII = 3;
+
+    // Classifies like Values.isNumber; INTEGER only when it fits a long comfortably
+    private static int kind(byte[] b, int from, int to) {
+        int i = from < to && b[from] == '-' ? from + 1 : from;
+        boolean digits = false;
+        boolean dot = false;
+        for (; i < to; i++) {
+            byte c = b[i];
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                for (int j = from; j < to; j++)
+                    if (b[j] < 0) return NON_ASCII;
+                return TEXT;
+            }
+        }
+        if (!digits) return TEXT;
+        return dot || to - from > 18 ? DECIMAL : INTEGER;
+    }
+
+    private static long parseLong(byte[] b, int from, int to) {
+        boolean negative = b[from] == '-';
+        long n = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) n = n * 10 + (b[i] - '0');
+        return negative ? -n : n;
+    }
+}
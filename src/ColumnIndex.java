@@ -0,0 +1,243 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+// COLUMNAR projection of one typed column: its values in a primitive array
+// (int[] for INT, for DATE as epoch days and for BOOLEAN as 0/1, long[] for
+// BIGINT, double[] for DOUBLE) beside the offsets of their rows, both in file
+// order. A predicate is answered by a single loop over the array. On disk an
+// entry is the row offset followed by the value in its fixed binary width,
+// instead of the value's text.
+public class ColumnIndex extends Index {
+    private enum Kind { INT, LONG, DOUBLE }
+
+    private final Schema.Type type;
+    private final Kind kind;
+    private long[] offsets = new long[16];
+    private int[] ints;
+    private long[] longs;
+    private double[] doubles;
+    private int size;
+
+    public ColumnIndex(File file, String table, String column, Schema.Type type) {
+        super(file, table, column);
+        this.type = type;
+        this.kind = switch (type) {
+            case INT, DATE, BOOLEAN -> Kind.INT;
+            case BIGINT -> Kind.LONG;
+            case DOUBLE -> Kind.DOUBLE;
+            default -> throw new IllegalArgumentException("COLUMNAR needs an INT, BIGINT, DOUBLE, BOOLEAN or DATE column.");
+        };
+        clear();
+    }
+
+    @Override
+    public String type() {
+        return "COLUMNAR " + type;
+    }
+
+    @Override
+    public synchronized long[] lookup(String value) {
+        long[] result = match(Condition.equal(column(), value));
+        return result == null ? new long[0] : result;
+    }
+
+    // Offsets of the rows matching an =, <, <=, >, >= or BETWEEN condition, in
+    // file order; null if the condition can't be answered from the array
+    public synchronized long[] match(Condition cond) {
+        try {
+            return kind == Kind.DOUBLE ? matchDoubles(cond) : matchIntegers(cond);
+        } catch (RuntimeException e) {
+            // A LIKE, or a constant that isn't a value of this type
+            return null;
+        }
+    }
+
+    private long[] matchIntegers(Condition cond) {
+        // Bounds as an inclusive [lo, hi] range of integers
+        long lo = Long.MIN_VALUE;
+        long hi = Long.MAX_VALUE;
+        switch (cond.op()) {
+            case "=" -> {
+                BigDecimal v = constant(cond.value());
+                if (v.stripTrailingZeros().scale() > 0) return new long[0];
+                lo = hi = v.longValueExact();
+            }
+            case "<" -> hi = bound(cond.value(), RoundingMode.CEILING) - 1;
+            case "<=" -> hi = bound(cond.value(), RoundingMode.FLOOR);
+            case ">" -> lo = bound(cond.value(), RoundingMode.FLOOR) + 1;
+            case ">=" -> lo = bound(cond.value(), RoundingMode.CEILING);
+            case "BETWEEN" -> {
+                lo = bound(cond.value(), RoundingMode.CEILING);
+                hi = bound(cond.upper(), RoundingMode.FLOOR);
+            }
+            default -> throw new IllegalArgumentException(cond.op());
+        }
+        long[] out = new long[16];
+        int n = 0;
+        if (kind == Kind.INT) {
+            int[] values = ints;
+            for (int i = 0; i < size; i++) {
+                int v = values[i];
+                if (v >= lo && v <= hi) {
+                    if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                    out[n++] = offsets[i];
+                }
+            }
+        } else {
+            long[] values = longs;
+            for (int i = 0; i < size; i++) {
+                long v = values[i];
+                if (v >= lo && v <= hi) {
+                    if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                    out[n++] = offsets[i];
+                }
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private long[] matchDoubles(Condition cond) {
+        double lo = Double.NEGATIVE_INFINITY;
+        double hi = Double.POSITIVE_INFINITY;
+        boolean loIncl = true;
+        boolean hiIncl = true;
+        switch (cond.op()) {
+            case "=" -> lo = hi = Double.parseDouble(cond.value());
+            case "<" -> {
+                hi = Double.parseDouble(cond.value());
+                hiIncl = false;
+            }
+            case "<=" -> hi = Double.parseDouble(cond.value());
+            case ">" -> {
+                lo = Double.parseDouble(cond.value());
+                loIncl = false;
+            }
+            case ">=" -> lo = Double.parseDouble(cond.value());
+            case "BETWEEN" -> {
+                lo = Double.parseDouble(cond.value());
+                hi = Double.parseDouble(cond.upper());
+            }
+            default -> throw new IllegalArgumentException(cond.op());
+        }
+        double[] values = doubles;
+        long[] out = new long[16];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            double v = values[i];
+            if ((loIncl ? v >= lo : v > lo) && (hiIncl ? v <= hi : v < hi)) {
+                if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                out[n++] = offsets[i];
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // A constant of this column's type as a number: dates become epoch days, booleans 0/1
+    private BigDecimal constant(String value) {
+        return switch (type) {
+            case DATE -> BigDecimal.valueOf(LocalDate.parse(value).toEpochDay());
+            case BOOLEAN -> BigDecimal.valueOf(toInt(value));
+            default -> new BigDecimal(value);
+        };
+    }
+
+    private long bound(String value, RoundingMode mode) {
+        BigDecimal v = constant(value).setScale(0, mode);
+        if (v.compareTo(BigDecimal.valueOf(Long.MAX_VALUE - 1)) > 0) return Long.MAX_VALUE - 1;
+        if (v.compareTo(BigDecimal.valueOf(Long.MIN_VALUE + 1)) < 0) return Long.MIN_VALUE + 1;
+        return v.longValue();
+    }
+
+    private int toInt(String value) {
+        return switch (type) {
+            case DATE -> (int) LocalDate.parse(value).toEpochDay();
+            case BOOLEAN -> {
+                if (value.equals("true")) yield 1;
+                if (value.equals("false")) yield 0;
+                throw new IllegalArgumentException(value);
+            }
+            default -> Integer.parseInt(value);
+        };
+    }
+
+    // Rows whose value doesn't parse (there shouldn't be any in a typed table) are left out
+    @Override
+    protected void put(String value, long offset) {
+        try {
+            switch (kind) {
+                case INT -> append(offset, toInt(value), 0, 0);
+                case LONG -> append(offset, 0, Long.parseLong(value), 0);
+                case DOUBLE -> append(offset, 0, 0, Double.parseDouble(value));
+            }
+        } catch (RuntimeException ignored) {
+            // Not a value of this type
+        }
+    }
+
+    private void append(long offset, int i, long l, double d) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            if (ints != null) ints = Arrays.copyOf(ints, size * 2);
+            if (longs != null) longs = Arrays.copyOf(longs, size * 2);
+            if (doubles != null) doubles = Arrays.copyOf(doubles, size * 2);
+        }
+        offsets[size] = offset;
+        if (ints != null) ints[size] = i;
+        if (longs != null) longs[size] = l;
+        if (doubles != null) doubles[size] = d;
+        size++;
+    }
+
+    @Override
+    protected void clear() {
+        offsets = new long[16];
+        ints = kind == Kind.INT ? new int[16] : null;
+        longs = kind == Kind.LONG ? new long[16] : null;
+        doubles = kind == Kind.DOUBLE ? new double[16] : null;
+        size = 0;
+    }
+
+    // Entries are fixed-width numbers, so any value fits
+    @Override
+    protected boolean fits(String value) {
+        return true;
+    }
+
+    @Override
+    protected void writeEntry(DataOutputStream o, String value, long offset) throws IOException {
+        try {
+            switch (kind) {
+                case INT -> {
+                    int v = toInt(value);
+                    o.writeLong(offset);
+                    o.writeInt(v);
+                }
+                case LONG -> {
+                    long v = Long.parseLong(value);
+                    o.writeLong(offset);
+                    o.writeLong(v);
+                }
+                case DOUBLE -> {
+                    double v = Double.parseDouble(value);
+                    o.writeLong(offset);
+                    o.writeDouble(v);
+                }
+            }
+        } catch (RuntimeException ignored) {
+            // Left out, as in put()
+        }
+    }
+
+    @Override
+    protected void readEntry(DataInputStream in) throws IOException {
+        long offset = in.readLong();
+        switch (kind) {
+            case INT -> append(offset, in.readInt(), 0, 0);
+            case LONG -> append(offset, 0, in.readLong(), 0);
+            case DOUBLE -> append(offset, 0, 0, in.readDouble());
+        }
+    }
+}
@@ -1,144 +1,348 @@
+import java.io.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.function.Consumer;
 
 public class CommandParser {
+    private static final int PLAN_CACHE_SIZE = 256;
+
     private final Database db;
+    // Parsed statements keyed by their text, so a repeated command skips the parser entirely
+    private final Map<String, Statement> planCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Statement> eldest) {
+            return size() > PLAN_CACHE_SIZE;
+        }
+    };
+    // USE, BEGIN and PREPARE of this parser's client; every call runs in it
+    private final Session session;
+
+    // Receives a statement's output as it is produced
+    public interface ResultHandler {
+        // A result set starts; title is the text that heads it in plain output
+        void columns(String title, String[] columns);
+
+        // The next fetch-size batch of its rows; returning false stops the statement there
+        boolean rows(List<Row> batch);
+
+        // Output of any other statement, and errors
+        void message(String text);
+    }
 
     public CommandParser(Database db) {
+        this(db, db.openSession());
+    }
+
+    public CommandParser(Database db, Session session) {
         this.db = db;
+        this.session = session;
+    }
+
+    public Session session() {
+        return session;
+    }
+
+    // Rolls back the session's open transaction
+    public void close() {
+        db.closeSession(session);
     }
 
     public String execute(String command) {
-        command = command.trim();
-        if (command.isEmpty()) return "Empty command.";
+        StringBuilder sb = new StringBuilder();
+        execute(command, sb::append);
+        return sb.toString();
+    }
 
-        // Case-insensitive matching but preserve original case for values
-        String lower = command.toLowerCase();
+    // Streams the output to out as it is produced: a SELECT hands over its
+    // rows one fetch-size batch at a time instead of as one big string
+    public void execute(String command, Consumer<String> out) {
+        execute(command, text(out), new Progress());
+    }
 
+    // As above, with the rows of a result kept apart from its title. progress
+    // follows the statement's scans and can cancel it from another thread.
+    public void execute(String command, ResultHandler out, Progress progress) {
+        command = command.trim();
+        if (command.isEmpty()) {
+            out.message("Empty command.");
+            return;
+        }
+
+        Statement stmt;
         try {
-            // CREATE DATABASE
-            if (lower.startsWith("create database")) {
-                String dbName = command.split("\\s+")[2].replace(";", "");
-                return db.createDatabase(dbName);
-            }
+            stmt = parse(command);
+        } catch (IllegalArgumentException e) {
+            out.message(e.getMessage());
+            return;
+        }
+        timed(stmt, command, List.of(), out, progress);
+    }
 
-            // USE DATABASE
-            else if (lower.startsWith("use")) {
-                String dbName = command.split("\\s+")[1].replace(";", "");
-                return db.useDatabase(dbName);
+    // Runs a statement in this parser's session, recording its latency and
+    // row counts in the engine's metrics and as a JFR event. command is null
+    // for an unnamed prepared statement.
+    private void timed(Statement stmt, String command, List<String> params, ResultHandler out, Progress progress) {
+        DbEvents.StatementEvent event = new DbEvents.StatementEvent();
+        event.begin();
+        long started = System.nanoTime();
+        long[] returned = {0};
+        ResultHandler counting = new ResultHandler() {
+            @Override
+            public void columns(String title, String[] columns) {
+                out.columns(title, columns);
             }
 
-            // CREATE TABLE table(col1, col2, col3)
-            else if (lower.startsWith("create table")) {
-                Pattern p = Pattern.compile("create table (\\w+) \\((.+)\\);?", Pattern.CASE_INSENSITIVE);
-                Matcher m = p.matcher(command);
-                if (m.find()) {
-                    String table = m.group(1);
-                    String[] cols = Arrays.stream(m.group(2).split(","))
-                            .map(String::trim)
-                            .toArray(String[]::new);
-                    return db.createTable(table, cols);
-                }
-                return "Invalid CREATE TABLE syntax.";
+            @Override
+            public boolean rows(List<Row> batch) {
+                returned[0] += batch.size();
+                return out.rows(batch);
             }
 
-            // INSERT INTO table VALUES(...)
-            else if (lower.startsWith("insert into")) {
-                Pattern p = Pattern.compile("insert into (\\w+) values\\s*\\((.+)\\);?", Pattern.CASE_INSENSITIVE);
-                Matcher m = p.matcher(command);
-                if (m.find()) {
-                    String table = m.group(1);
-                    String valuesPart = m.group(2).trim();
-
-                    // ✅ Split on commas that are NOT inside quotes
-                    List<String> vals = new ArrayList<>();
-                    Matcher valueMatcher = Pattern.compile("('[^']*'|[^,]+)").matcher(valuesPart);
-                    while (valueMatcher.find()) {
-                        String val = valueMatcher.group(1).trim();
-                        // remove quotes if present
-                        if (val.startsWith("'") && val.endsWith("'"))
-                            val = val.substring(1, val.length() - 1);
-                        vals.add(val);
-                    }
-
-                    return db.insert(table, vals.toArray(new String[0]));
-                }
-                return "Invalid INSERT syntax.";
+            @Override
+            public void message(String text) {
+                out.message(text);
             }
-
-            // SELECT * FROM table [WHERE col=value]
-            else if (lower.startsWith("select")) {
-                Pattern p = Pattern.compile(
-                        "select \\* from (\\w+)( where (\\w+)=([\\w']+))?;?",
-                        Pattern.CASE_INSENSITIVE);
-                Matcher m = p.matcher(command);
-                if (m.find()) {
-                    String table = m.group(1);
-                    if (m.group(3) != null) {
-                        String col = m.group(3);
-                        String val = m.group(4).replace("'", "");
-                        return db.selectWhere(table, col, val);
-                    } else {
-                        return db.selectAll(table);
-                    }
-                }
-                return "Invalid SELECT syntax.";
+        };
+        try {
+            db.attach(session).run(() -> {
+                session.progress(progress);
+                run(stmt, params, counting);
+            });
+        } catch (Exception e) {
+            out.message("Error: " + e.getMessage());
+        } finally {
+            session.progress(Progress.NONE);
+            String type = stmt.getClass().getSimpleName();
+            db.metrics().statement(type, System.nanoTime() - started, progress.rowsScanned(), returned[0]);
+            event.end();
+            if (event.shouldCommit()) {
+                event.type = type;
+                event.command = command != null ? command : stmt.toString();
+                event.rowsScanned = progress.rowsScanned();
+                event.rowsReturned = returned[0];
+                event.commit();
             }
+        }
+    }
 
-            // UPDATE table SET col=value WHERE col=value
-            else if (lower.startsWith("update")) {
-                Pattern p = Pattern.compile(
-                        "update (\\w+) set (\\w+)=([\\w']+) where (\\w+)=([\\w']+);?",
-                        Pattern.CASE_INSENSITIVE);
-                Matcher m = p.matcher(command);
-                if (m.find()) {
-                    String table = m.group(1);
-                    String setCol = m.group(2);
-                    String setVal = m.group(3).replace("'", "");
-                    String whereCol = m.group(4);
-                    String whereVal = m.group(5).replace("'", "");
-                    return db.update(table, setCol, setVal, whereCol, whereVal);
-                }
-                return "Invalid UPDATE syntax.";
+    // Plain-text output: a result is its title followed by one line per row
+    private static ResultHandler text(Consumer<String> out) {
+        return new ResultHandler() {
+            @Override
+            public void columns(String title, String[] columns) {
+                out.accept(title);
             }
 
-            // DELETE FROM table
-            else if (lower.startsWith("delete from")) {
-                String[] parts = command.split("\\s+");
-                if (parts.length >= 3) {
-                    String table = parts[2].replace(";", "");
-                    return db.deleteAll(table);
-                }
-                return "Invalid DELETE syntax.";
+            @Override
+            public boolean rows(List<Row> batch) {
+                StringBuilder sb = new StringBuilder();
+                for (Row row : batch) sb.append(row.line()).append("\n");
+                out.accept(sb.toString());
+                return true;
             }
 
-            // DROP TABLE
-            else if (lower.startsWith("drop table")) {
-                String table = command.split("\\s+")[2].replace(";", "");
-                return db.dropTable(table);
+            @Override
+            public void message(String text) {
+                out.accept(text);
             }
+        };
+    }
 
-            // DROP DATABASE
-            else if (lower.startsWith("drop database")) {
-                String dbName = command.split("\\s+")[2].replace(";", "");
-                return db.dropDatabase(dbName);
-            }
+    // Parses a statement with ? placeholders once, for repeated execute(prepared, params) calls
+    public Statement.Prepare prepare(String sql) {
+        return SqlParser.parsePrepared(sql.trim());
+    }
 
-            // SHOW TABLES
-            else if (lower.startsWith("show tables")) {
-                return db.showTables();
-            }
+    public String execute(Statement.Prepare stmt, String... params) {
+        StringBuilder sb = new StringBuilder();
+        List<String> args;
+        try {
+            args = bindArgs(stmt, Arrays.asList(params));
+        } catch (IllegalArgumentException e) {
+            return "Error: " + e.getMessage();
+        }
+        timed(stmt.statement(), stmt.name(), args, text(sb::append), new Progress());
+        return sb.toString();
+    }
+
+    // Opens a cursor for a SELECT so callers can pull rows themselves. The
+    // session stays attached to the calling thread until the cursor is closed,
+    // so rows are fetched in it too.
+    public ResultCursor query(String command) throws IOException {
+        Statement stmt = parse(command.trim());
+        if (!isQuery(stmt)) throw new IllegalArgumentException("Not a SELECT: " + command);
+        Database.Attachment attached = db.attach(session);
+        try {
+            ResultCursor cursor = open(stmt, List.of());
+            cursor.alsoClose(attached::detach);
+            return cursor;
+        } catch (IOException | RuntimeException e) {
+            attached.detach();
+            throw e;
+        }
+    }
 
-            // SHOW DATABASES
-            else if (lower.startsWith("show databases")) {
-                return db.getDatabasesList();
+    private synchronized Statement parse(String command) {
+        Statement stmt = planCache.get(command);
+        if (stmt == null) {
+            stmt = SqlParser.parse(command);
+            planCache.put(command, stmt);
+        }
+        return stmt;
+    }
+
+    private void run(Statement stmt, List<String> params, ResultHandler out) throws IOException {
+        if (isQuery(stmt)) {
+            ResultCursor cursor;
+            try {
+                cursor = open(stmt, params);
+            } catch (FileNotFoundException e) {
+                out.message(e.getMessage());
+                return;
+            }
+            try (cursor) {
+                out.columns(cursor.title(), cursor.columns());
+                for (List<Row> batch = cursor.nextBatch(); !batch.isEmpty(); batch = cursor.nextBatch())
+                    if (!out.rows(batch)) break;
+            }
+            return;
+        }
+        if (stmt instanceof Statement.Explain e) {
+            ResultCursor cursor;
+            try {
+                cursor = open(e.query(), params);
+            } catch (FileNotFoundException ex) {
+                out.message(ex.getMessage());
+                return;
+            }
+            try (cursor) {
+                // Run to the end so every step has its actual row count
+                List<Row> batch;
+                do {
+                    batch = cursor.nextBatch();
+                } while (!batch.isEmpty());
+                out.message(cursor.plan().explain());
+            }
+            return;
+        }
+        if (stmt instanceof Statement.Execute s) {
+            Statement.Prepare p = session.prepared(s.name());
+            if (p == null) {
+                out.message("Prepared statement not found: " + s.name());
+                return;
             }
+            List<String> args = new ArrayList<>();
+            for (Statement.Value v : s.args()) args.add(bind(v, params));
+            run(p.statement(), bindArgs(p, args), out);
+            return;
+        }
+        out.message(run(stmt, params));
+    }
 
-            else {
-                return "Unknown command: " + command;
+    private static boolean isQuery(Statement stmt) {
+        return stmt instanceof Statement.Select || stmt instanceof Statement.Aggregate
+                || stmt instanceof Statement.Join;
+    }
+
+    private ResultCursor open(Statement query, List<String> params) throws IOException {
+        if (query instanceof Statement.Select s) return open(s, params);
+        if (query instanceof Statement.Join j) return open(j, params);
+        return open((Statement.Aggregate) query, params);
+    }
+
+    private ResultCursor open(Statement.Select s, List<String> params) throws IOException {
+        long limit = s.limit() == null ? -1 : count(s.limit(), params, "LIMIT");
+        long offset = s.offset() == null ? 0 : count(s.offset(), params, "OFFSET");
+        return db.query(s.table(), condition(s.where(), params), s.orderBy(), s.descending(), limit, offset);
+    }
+
+    private ResultCursor open(Statement.Aggregate s, List<String> params) throws IOException {
+        long limit = s.limit() == null ? -1 : count(s.limit(), params, "LIMIT");
+        long offset = s.offset() == null ? 0 : count(s.offset(), params, "OFFSET");
+        return db.aggregate(s.table(), s.items(), condition(s.where(), params), s.groupBy(), s.orderBy() != null,
+                s.descending(), limit, offset);
+    }
+
+    private ResultCursor open(Statement.Join s, List<String> params) throws IOException {
+        long limit = s.limit() == null ? -1 : count(s.limit(), params, "LIMIT");
+        long offset = s.offset() == null ? 0 : count(s.offset(), params, "OFFSET");
+        return db.join(s.left(), s.right(), s.leftColumn(), s.rightColumn(), s.columns(),
+                condition(s.where(), params), s.orderBy(), s.descending(), limit, offset);
+    }
+
+    private static Condition condition(Statement.Predicate p, List<String> params) {
+        if (p == null) return null;
+        return new Condition(p.column(), p.op(), bind(p.value(), params),
+                p.upper() == null ? null : bind(p.upper(), params));
+    }
+
+    private static long count(Statement.Value value, List<String> params, String clause) {
+        String text = bind(value, params);
+        try {
+            long n = Long.parseLong(text);
+            if (n >= 0) return n;
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(clause + " must be a non-negative whole number: " + text);
+    }
+
+    private String run(Statement stmt, List<String> params) {
+        if (stmt instanceof Statement.CreateDatabase s) return db.createDatabase(s.name());
+        if (stmt instanceof Statement.UseDatabase s) return db.useDatabase(s.name());
+        if (stmt instanceof Statement.DropDatabase s) return db.dropDatabase(s.name());
+        if (stmt instanceof Statement.CreateTable s)
+            return db.createTable(s.table(), s.columns().toArray(new String[0]), s.types().toArray(new String[0]),
+                    s.columnar(), s.compressed());
+        if (stmt instanceof Statement.DropTable s) return db.dropTable(s.table());
+        if (stmt instanceof Statement.CreateIndex s) return db.createIndex(s.name(), s.table(), s.column(), s.type());
+        if (stmt instanceof Statement.DropIndex s) return db.dropIndex(s.name());
+        if (stmt instanceof Statement.Insert s) {
+            List<String[]> rows = new ArrayList<>();
+            for (List<Statement.Value> values : s.rows()) {
+                String[] vals = new String[values.size()];
+                for (int i = 0; i < vals.length; i++) vals[i] = bind(values.get(i), params);
+                rows.add(vals);
             }
-        } catch (Exception e) {
-            return "Error: " + e.getMessage();
+            return rows.size() == 1 ? db.insert(s.table(), rows.get(0)) : db.insertRows(s.table(), rows);
+        }
+        if (stmt instanceof Statement.Load s) return db.load(s.table(), s.file());
+        if (stmt instanceof Statement.Update s)
+            return db.update(s.table(), s.column(), bind(s.value(), params), s.whereColumn(), bind(s.whereValue(), params));
+        if (stmt instanceof Statement.Delete s)
+            return s.where() == null ? db.deleteAll(s.table()) : db.deleteWhere(s.table(), condition(s.where(), params));
+        if (stmt instanceof Statement.Vacuum s) return db.vacuum(s.table());
+        if (stmt instanceof Statement.Analyze s) return db.analyze(s.table());
+        if (stmt instanceof Statement.Show s) {
+            return switch (s.what()) {
+                case "TABLES" -> db.showTables();
+                case "DATABASES" -> db.getDatabasesList();
+                case "STATS" -> db.stats();
+                default -> db.cacheStats();
+            };
+        }
+        if (stmt instanceof Statement.Describe s) return db.describe(s.table());
+        if (stmt instanceof Statement.Begin) return db.begin();
+        if (stmt instanceof Statement.Commit) return db.commit();
+        if (stmt instanceof Statement.Rollback) return db.rollback();
+        if (stmt instanceof Statement.Prepare s) {
+            session.prepare(s.name(), s);
+            return "Statement prepared: " + s.name() + " (" + s.paramCount() + " parameters)";
+        }
+        if (stmt instanceof Statement.Deallocate s) {
+            if (!session.deallocate(s.name())) return "Prepared statement not found: " + s.name();
+            return "Statement deallocated: " + s.name();
         }
+        throw new IllegalStateException("Unhandled statement: " + stmt);
+    }
+
+    private static List<String> bindArgs(Statement.Prepare stmt, List<String> args) {
+        if (args.size() != stmt.paramCount())
+            throw new IllegalArgumentException("Expected " + stmt.paramCount() + " parameters, got " + args.size());
+        return args;
+    }
+
+    private static String bind(Statement.Value value, List<String> params) {
+        if (value instanceof Statement.Literal l) return l.text();
+        return params.get(((Statement.Param) value).index());
     }
 }
@@ -0,0 +1,46 @@
+// A single-column WHERE predicate: =, <, <=, >, >=, BETWEEN and prefix LIKE.
+// upper is only set for BETWEEN.
+public record Condition(String column, String op, String value, String upper) {
+
+    public Condition {
+        op = op.toUpperCase();
+        if (op.equals("LIKE") && (!value.endsWith("%") || value.indexOf('%') != value.length() - 1 || value.contains("_")))
+            throw new IllegalArgumentException("Only prefix LIKE patterns ('abc%') are supported.");
+        if (op.equals("BETWEEN") && upper == null)
+            throw new IllegalArgumentException("BETWEEN needs an upper bound.");
+    }
+
+    public static Condition equal(String column, String value) {
+        return new Condition(column, "=", value, null);
+    }
+
+    public boolean matches(String v) {
+        return switch (op) {
+            case "=" -> v.equals(value);
+            case "<" -> Values.compare(v, value) < 0;
+            case "<=" -> Values.compare(v, value) <= 0;
+            case ">" -> Values.compare(v, value) > 0;
+            case ">=" -> Values.compare(v, value) >= 0;
+            case "BETWEEN" -> Values.compare(v, value) >= 0 && Values.compare(v, upper) <= 0;
+            case "LIKE" -> v.startsWith(prefix());
+            default -> throw new IllegalArgumentException("Unsupported operator: " + op);
+        };
+    }
+
+    public boolean isRange() {
+        return !op.equals("=");
+    }
+
+    public String prefix() {
+        return value.substring(0, value.length() - 1);
+    }
+
+    @Override
+    public String toString() {
+        return switch (op) {
+            case "BETWEEN" -> column + " BETWEEN " + value + " AND " + upper;
+            case "LIKE" -> column + " LIKE '" + value + "'";
+            default -> column + op + value;
+        };
+    }
+}
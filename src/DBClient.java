@@ -0,0 +1,78 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Client side of DBServer's protocol. Not thread-safe: give each thread its own
+// connection, which also gives it its own transaction.
+public class DBClient implements Closeable {
+    // Requests sent ahead of their responses in executeAll, so neither side's
+    // socket buffer fills up while the other is still writing
+    private static final int PIPELINE_WINDOW = 64;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public DBClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+    }
+
+    // Interactive shell: java DBClient [host] [port], one command per line
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("minidbms.port", 7707);
+        try (DBClient client = new DBClient(host, port);
+             BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = stdin.readLine()) != null) {
+                if (line.isBlank()) continue;
+                System.out.println(client.execute(line));
+            }
+        }
+    }
+
+    public String execute(String command) throws IOException {
+        send(command);
+        out.flush();
+        return receive();
+    }
+
+    // Pipelined: commands go out without waiting for the previous answer.
+    // Responses come back in the same order as the commands.
+    public List<String> executeAll(List<String> commands) throws IOException {
+        List<String> results = new ArrayList<>(commands.size());
+        int sent = 0;
+        while (results.size() < commands.size()) {
+            while (sent < commands.size() && sent - results.size() < PIPELINE_WINDOW) send(commands.get(sent++));
+            out.flush();
+            results.add(receive());
+        }
+        return results;
+    }
+
+    private void send(String command) throws IOException {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private String receive() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int length = in.readInt(); length > 0; length = in.readInt()) {
+            byte[] chunk = in.readNBytes(length);
+            if (chunk.length < length) throw new EOFException("Connection closed mid-response");
+            sb.append(new String(chunk, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -1,18 +1,30 @@
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.ArrayList;
 import java.util.List;
 
 public class DBMSGUI extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    // Rows a result may add to the table before the rest is left unread
+    private static final int MAX_RESULT_ROWS = Integer.getInteger("minidbms.guiMaxRows", 1_000_000);
+
     private JTextArea commandArea;
     private JTextArea outputArea;
     private JButton executeButton;
+    private JButton cancelButton;
+    private JTabbedPane outputTabs;
+    private JScrollPane resultPane;
+    private final ResultModel results = new ResultModel();
     private Database db;
     private CommandParser parser;
     private JLabel statusLabel;
     private final List<String> history = new ArrayList<>();
     private int historyIndex = -1;
+    // The statement being run in the background, if any
+    private Progress running;
 
     public DBMSGUI() {
         db = new Database();
@@ -42,7 +54,7 @@ public class DBMSGUI extends JFrame {
     JMenuItem dropDb = new JMenuItem("Drop Database");
     dropDb.addActionListener(e -> dropDatabaseDialog());
     JMenuItem showDbs = new JMenuItem("Show Databases");
-    showDbs.addActionListener(e -> appendOutput(parser.execute("SHOW DATABASES;")));
+    showDbs.addActionListener(e -> submit("SHOW DATABASES;"));
     dbMenu.add(createDb);
     dbMenu.add(useDb);
     dbMenu.add(dropDb);
@@ -55,7 +67,7 @@ public class DBMSGUI extends JFrame {
     JMenuItem dropTable = new JMenuItem("Drop Table");
     dropTable.addActionListener(e -> dropTableDialog());
     JMenuItem showTables = new JMenuItem("Show Tables");
-    showTables.addActionListener(e -> appendOutput(parser.execute("SHOW TABLES;")));
+    showTables.addActionListener(e -> submit("SHOW TABLES;"));
     tableMenu.add(createTable);
     tableMenu.add(dropTable);
     tableMenu.addSeparator();
@@ -122,19 +134,36 @@ public class DBMSGUI extends JFrame {
         executeButton.setFont(new Font("Segoe UI", Font.BOLD, 18));
         executeButton.addActionListener(e -> executeCommand());
 
+        cancelButton = new JButton("Cancel");
+        cancelButton.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> {
+            if (running != null) running.cancel();
+        });
+
     JButton clearButton = new JButton("Clear Output");
     clearButton.setFont(new Font("Segoe UI", Font.PLAIN, 14));
     clearButton.addActionListener(e -> outputArea.setText(""));
 
+        // A JTable only renders the rows in view, so large results stay cheap to show
+        JTable resultTable = new JTable(results);
+        resultTable.setFont(new Font("Consolas", Font.PLAIN, 14));
+        resultTable.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        resultPane = new JScrollPane(resultTable);
+        outputTabs = new JTabbedPane();
+        outputTabs.addTab("Output", new JScrollPane(outputArea));
+        outputTabs.addTab("Results", resultPane);
+
         JPanel center = new JPanel(new GridLayout(2, 1, 10, 10));
         center.add(new JScrollPane(commandArea));
-        center.add(new JScrollPane(outputArea));
+        center.add(outputTabs);
 
     add(center, BorderLayout.CENTER);
 
     // bottom panel with execute/clear buttons and status
     JPanel buttonsPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
     buttonsPanel.add(clearButton);
+    buttonsPanel.add(cancelButton);
     buttonsPanel.add(executeButton);
 
     statusLabel = new JLabel();
@@ -151,6 +180,7 @@ public class DBMSGUI extends JFrame {
         // Remove old loadAll/saveAll
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) {
+                if (running != null) running.cancel();
                 System.out.println("Database GUI closed.");
             }
         });
@@ -160,18 +190,150 @@ public class DBMSGUI extends JFrame {
 
     private void executeCommand() {
         String command = commandArea.getText().trim();
-        if (command.isEmpty()) return;
-        try {
-            String result = parser.execute(command);
-            appendOutput(">> " + command + "\n" + result + "\n");
-            // add to history
-            history.add(command);
-            historyIndex = -1;
-            updateStatus();
-        } catch (Exception ex) {
-            appendOutput("Error: " + ex.getMessage() + "\n");
-        }
+        if (command.isEmpty() || running != null) return;
+        outputArea.append(">> " + command + "\n");
+        // add to history
+        history.add(command);
+        historyIndex = -1;
         commandArea.setText("");
+        submit(command);
+    }
+
+    private record Columns(String title, String[] names) {}
+
+    private record Rows(List<Row> rows) {}
+
+    // Published last: chunks can reach process() after done() has run, so the
+    // statement is wrapped up when this arrives instead
+    private static final Object FINISHED = new Object();
+
+    // Runs the statement on a background thread so the window stays live. Its
+    // output comes back in batches: result rows go to the Results table, other
+    // output to the Output tab. Cancel stops the statement at its next progress
+    // report; the status bar shows rows scanned and time taken meanwhile.
+    private void submit(String command) {
+        if (running != null) {
+            appendOutput("A statement is still running.");
+            return;
+        }
+        Progress progress = new Progress();
+        long started = System.nanoTime();
+        running = progress;
+        executeButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+        Timer ticker = new Timer(200, e -> statusLabel.setText(String.format("Running: %,d rows scanned, %.1f s",
+                progress.rowsScanned(), (System.nanoTime() - started) / 1e9)));
+        ticker.start();
+
+        new SwingWorker<Void, Object>() {
+            long shown;
+            boolean result;
+
+            @Override
+            protected Void doInBackground() {
+                parser.execute(command, new CommandParser.ResultHandler() {
+                    @Override
+                    public void columns(String title, String[] names) {
+                        publish(new Columns(title, names));
+                    }
+
+                    @Override
+                    public boolean rows(List<Row> batch) {
+                        int room = (int) Math.min(batch.size(), MAX_RESULT_ROWS - shown);
+                        publish(new Rows(batch.subList(0, room)));
+                        shown += room;
+                        if (shown < MAX_RESULT_ROWS) return true;
+                        publish("Showing the first " + MAX_RESULT_ROWS + " rows.");
+                        return false;
+                    }
+
+                    @Override
+                    public void message(String text) {
+                        publish(text);
+                    }
+                }, progress);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                publish(FINISHED);
+            }
+
+            @Override
+            protected void process(List<Object> chunks) {
+                for (Object chunk : chunks) {
+                    if (chunk instanceof Columns c) {
+                        result = true;
+                        results.reset(c.names());
+                        resultPane.setBorder(BorderFactory.createTitledBorder(c.title().strip().split("\n")[0]));
+                        outputTabs.setSelectedComponent(resultPane);
+                    } else if (chunk instanceof Rows r) {
+                        results.add(r.rows());
+                    } else if (chunk == FINISHED) {
+                        finish();
+                    } else {
+                        appendOutput((String) chunk);
+                        outputTabs.setSelectedIndex(0);
+                    }
+                }
+            }
+
+            private void finish() {
+                ticker.stop();
+                double seconds = (System.nanoTime() - started) / 1e9;
+                if (result)
+                    appendOutput(String.format("%,d rows in %.2f s (%,d rows scanned).", shown, seconds,
+                            progress.rowsScanned()));
+                appendOutput("");
+                running = null;
+                executeButton.setEnabled(true);
+                cancelButton.setEnabled(false);
+                updateStatus();
+            }
+        }.execute();
+    }
+
+    // Rows of the last result; the JTable asks only for the cells it paints
+    private static final class ResultModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+
+        private String[] columns = new String[0];
+        private final List<String[]> rows = new ArrayList<>();
+
+        void reset(String[] names) {
+            columns = names;
+            rows.clear();
+            fireTableStructureChanged();
+        }
+
+        void add(List<Row> batch) {
+            if (batch.isEmpty()) return;
+            int first = rows.size();
+            for (Row row : batch) rows.add(row.values());
+            fireTableRowsInserted(first, rows.size() - 1);
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columns[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            String[] values = rows.get(row);
+            return column < values.length ? values[column] : "";
+        }
     }
 
     private void appendOutput(String text) {
@@ -180,7 +342,7 @@ public class DBMSGUI extends JFrame {
 
     private void updateStatus() {
         try {
-            String cur = db.getCurrentDatabase();
+            String cur = parser.session().database();
             statusLabel.setText("Current DB: " + (cur == null ? "<none>" : cur));
         } catch (Exception e) {
             statusLabel.setText("Current DB: <unknown>");
@@ -191,24 +353,21 @@ public class DBMSGUI extends JFrame {
     private void createDatabaseDialog() {
         String name = JOptionPane.showInputDialog(this, "Database name:");
         if (name != null && !name.isBlank()) {
-            appendOutput(parser.execute("CREATE DATABASE " + name + ";"));
-            updateStatus();
+            submit("CREATE DATABASE " + name + ";");
         }
     }
 
     private void useDatabaseDialog() {
         String name = JOptionPane.showInputDialog(this, "Use database:");
         if (name != null && !name.isBlank()) {
-            appendOutput(parser.execute("USE " + name + ";"));
-            updateStatus();
+            submit("USE " + name + ";");
         }
     }
 
     private void dropDatabaseDialog() {
         String name = JOptionPane.showInputDialog(this, "Drop database:");
         if (name != null && !name.isBlank()) {
-            appendOutput(parser.execute("DROP DATABASE " + name + ";"));
-            updateStatus();
+            submit("DROP DATABASE " + name + ";");
         }
     }
 
@@ -217,13 +376,13 @@ public class DBMSGUI extends JFrame {
         if (name == null || name.isBlank()) return;
         String cols = JOptionPane.showInputDialog(this, "Columns (comma separated):");
         if (cols == null || cols.isBlank()) return;
-        appendOutput(parser.execute("CREATE TABLE " + name + " (" + cols + ");"));
+        submit("CREATE TABLE " + name + " (" + cols + ");");
     }
 
     private void dropTableDialog() {
         String name = JOptionPane.showInputDialog(this, "Drop table:");
         if (name != null && !name.isBlank()) {
-            appendOutput(parser.execute("DROP TABLE " + name + ";"));
+            submit("DROP TABLE " + name + ";");
         }
     }
 
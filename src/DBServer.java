@@ -0,0 +1,144 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless server: one Database shared by every client over TCP.
+//
+// Wire protocol, both directions big-endian:
+//   request  = [int length][length bytes of UTF-8 command]
+//   response = one or more chunks [int length][UTF-8 text], ended by a chunk of length 0
+// A SELECT is sent as it is read, one fetch-size batch per chunk.
+//
+// Clients may pipeline: send several requests without waiting. They are run in
+// order and answered in order, and responses to requests that are already
+// waiting are buffered and flushed together. Each connection has its own
+// thread and its own Session, so USE, BEGIN ... COMMIT and prepared statements
+// are its own; a transaction left open when the connection closes is rolled back.
+//
+// There is no authentication, so the server listens on loopback unless
+// -Dminidbms.bindAddress says otherwise, and its sessions may only LOAD DATA
+// from -Dminidbms.importDir.
+public class DBServer implements Closeable {
+    // Longer requests are a protocol error and close the connection
+    private static final int MAX_REQUEST_BYTES = 64 << 20;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Database db;
+    private final ServerSocket server;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "db-connection-" + nextId.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+    public DBServer(Database db, int port) throws IOException {
+        this(db, port, InetAddress.getByName(System.getProperty("minidbms.bindAddress", "127.0.0.1")));
+    }
+
+    public DBServer(Database db, int port, InetAddress bindAddress) throws IOException {
+        this.db = db;
+        this.server = new ServerSocket(port, 0, bindAddress);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("minidbms.port", 7707);
+        try (DBServer server = new DBServer(new Database(), port)) {
+            System.out.println("Listening on " + server.server.getInetAddress().getHostAddress() + ":" + server.port());
+            server.serve();
+        }
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    // Accepts connections until close()
+    public void serve() throws IOException {
+        while (!server.isClosed()) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketException e) {
+                // Closed while waiting
+                if (server.isClosed()) return;
+                throw e;
+            }
+            open.add(socket);
+            connections.execute(() -> handle(socket));
+        }
+    }
+
+    private void handle(Socket socket) {
+        CommandParser parser;
+        try {
+            parser = new CommandParser(db);
+            parser.session().remote(true);
+        } catch (IllegalStateException e) {
+            // Over minidbms.maxSessions: answer the first request with the error and hang up
+            reject(socket, "Error: " + e.getMessage());
+            return;
+        }
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES))) {
+            socket.setTcpNoDelay(true);
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 0 || length > MAX_REQUEST_BYTES) return;
+                byte[] request = in.readNBytes(length);
+                if (request.length < length) return;
+
+                parser.execute(new String(request, StandardCharsets.UTF_8), chunk -> {
+                    if (chunk.isEmpty()) return;
+                    byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+                    try {
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.writeInt(0);
+                // More pipelined requests already here: answer them before flushing
+                if (in.available() == 0) out.flush();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // The client went away; nothing to answer
+        } finally {
+            open.remove(socket);
+            parser.close();
+        }
+    }
+
+    private void reject(Socket socket, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        try (socket; DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeInt(0);
+        } catch (IOException ignored) {
+            // Already gone
+        } finally {
+            open.remove(socket);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket s : open) s.close();
+        connections.shutdown();
+    }
+}
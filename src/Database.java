@@ -1,18 +1,119 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
 
 public class Database {
     private final String root = "data";
-    private String currentDatabase;
-    private final ReentrantLock dbLock = new ReentrantLock(true);
-    private final File commitLog = new File("commit.log");
+    private final LockManager locks = new LockManager();
+    private final WriteAheadLog wal;
+    private final long checkpointBytes = Long.getLong("minidbms.checkpointBytes", 64L << 20);
+    private final AtomicBoolean checkpointPending = new AtomicBoolean();
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "wal-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    // Every table read goes through one bounded page cache
+    private final BufferPool bufferPool = new BufferPool(Long.getLong("minidbms.bufferPoolBytes", 64L << 20));
+    private final IndexManager indexes = new IndexManager(bufferPool);
+    private final TableCache tableCache = new TableCache(Long.getLong("minidbms.tableCacheBytes", 0));
+    private final ParallelScanner parallelScanner = new ParallelScanner(
+            Long.getLong("minidbms.parallelScanBytes", 8L << 20),
+            Integer.getInteger("minidbms.scanThreads", Runtime.getRuntime().availableProcessors()));
+    // Column names per table file, so appends don't have to re-read the header
+    private final Map<String, String[]> headerCache = new ConcurrentHashMap<>();
+    // Column types per table file, from its .schema file
+    private final Map<String, Schema> schemaCache = new ConcurrentHashMap<>();
+    // Rows deleted in place, per table, until VACUUM rewrites it
+    private final Tombstones tombstones = new Tombstones();
+    private final Metrics metrics = new Metrics();
+    // LOAD DATA reads only files under it when set, like MySQL's secure_file_priv
+    private final String importDir = System.getProperty("minidbms.importDir");
+    // ANALYZE statistics per table file, empty for tables never analyzed
+    private final Map<String, Optional<TableStats>> statsCache = new ConcurrentHashMap<>();
+    // Memory a hash join's build side may take before it spills to partition files
+    private final long joinMemoryBytes = Long.getLong("minidbms.joinMemoryBytes", 64L << 20);
+    // Rows an ORDER BY may hold before it writes sorted runs to temp files
+    private final long sortMemoryBytes = Long.getLong("minidbms.sortMemoryBytes", 64L << 20);
+    private final double vacuumRatio = Double.parseDouble(System.getProperty("minidbms.vacuumRatio", "0.3"));
+    private final long vacuumMinBytes = Long.getLong("minidbms.vacuumMinBytes", 64 * 1024);
+    private final TransactionManager transactions = new TransactionManager(bufferPool, tableCache, tombstones,
+            Long.getLong("minidbms.transactionTimeoutSeconds", 600) * 1000);
+    private final SessionPool sessions = new SessionPool(Integer.getInteger("minidbms.maxSessions", 10000));
+    // The session statements run in: the one attached to the thread, else the
+    // thread's own. Without an open transaction a session runs in autocommit mode.
+    private final ThreadLocal<Session> session = ThreadLocal.withInitial(sessions::detached);
 
     public Database() {
         File rootDir = new File(root);
         if (!rootDir.exists()) rootDir.mkdir();
+        try {
+            wal = new WriteAheadLog(new File(root, "wal.log"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open write-ahead log", e);
+        }
         recoverUnfinishedTransactions();
+        long seconds = Long.getLong("minidbms.checkpointSeconds", 30);
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, seconds, seconds, TimeUnit.SECONDS);
+        checkpointer.scheduleWithFixedDelay(transactions::sweep, 10, 10, TimeUnit.SECONDS);
+        long vacuumSeconds = Long.getLong("minidbms.vacuumSeconds", 30);
+        checkpointer.scheduleWithFixedDelay(this::vacuumDeadTables, vacuumSeconds, vacuumSeconds, TimeUnit.SECONDS);
+    }
+
+    // ---------------- SESSIONS ----------------
+    public Session openSession() {
+        return sessions.open();
+    }
+
+    // Makes s the calling thread's session until the attachment is detached
+    public Attachment attach(Session s) {
+        Session previous = session.get();
+        session.set(s);
+        return () -> session.set(previous);
+    }
+
+    // run() keeps the session attached just for the work it is given
+    @FunctionalInterface
+    public interface Attachment {
+        void detach();
+
+        default void run(SessionWork work) throws IOException {
+            try {
+                work.run();
+            } finally {
+                detach();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface SessionWork {
+        void run() throws IOException;
+    }
+
+    // Rolls back the session's open transaction, if any
+    public void closeSession(Session s) {
+        Attachment attached = attach(s);
+        try {
+            rollback();
+        } finally {
+            attached.detach();
+        }
+        sessions.remove(s);
+    }
+
+    public int sessionCount() {
+        return sessions.size();
     }
 
     // ---------------- DATABASE MANAGEMENT ----------------
@@ -24,39 +125,120 @@ public class Database {
     }
 
     public String useDatabase(String name) {
+        ensureNoTransaction("USE");
         File dbFolder = new File(root, name);
         if (dbFolder.exists()) {
-            currentDatabase = name;
+            session.get().database(name);
             return "Using database: " + name;
         }
         return "Database not found.";
     }
 
     public String dropDatabase(String name) {
+        ensureNoTransaction("DROP DATABASE");
         File dbFolder = new File(root, name);
         if (!dbFolder.exists()) return "Database not found.";
-        for (File f : Objects.requireNonNull(dbFolder.listFiles())) f.delete();
-        dbFolder.delete();
-        if (name.equals(currentDatabase)) currentDatabase = null;
+        String[] tables = Arrays.stream(Objects.requireNonNull(dbFolder.listFiles())).map(File::getPath).toArray(String[]::new);
+        try {
+            locks.exclusive(tables).run(() -> {
+                // Cut the log first so replay never resurrects the dropped tables
+                checkpointLocked();
+                indexes.forgetDatabase(dbFolder);
+                tombstones.forgetDatabase(dbFolder);
+                for (File f : Objects.requireNonNull(dbFolder.listFiles())) {
+                    headerCache.remove(f.getPath());
+                    schemaCache.remove(f.getPath());
+                    statsCache.remove(f.getPath());
+                    bufferPool.invalidate(f.getPath());
+                    tableCache.bump(f.getPath());
+                    f.delete();
+                }
+                dbFolder.delete();
+            });
+        } catch (IOException e) {
+            return "Error: Could not drop database: " + e.getMessage();
+        }
+        if (name.equals(session.get().database())) session.get().database(null);
         return "Database deleted: " + name;
     }
 
     // ---------------- TABLE MANAGEMENT ----------------
     public String createTable(String table, String[] columns) {
+        return createTable(table, columns, new String[columns.length], false, false);
+    }
+
+    // types[i] is the type of columns[i] (INT, VARCHAR(20), ...) or null for TEXT.
+    // A columnar table also keeps each primitive-typed column in a COLUMNAR
+    // projection named <table>_<column>_col; a compressed one keeps its rows in
+    // COMPRESSED segments as well, which scans read instead of the text.
+    public String createTable(String table, String[] columns, String[] types, boolean columnar, boolean compressed) {
         ensureDBSelected();
+        ensureNoTransaction("CREATE TABLE");
+        Schema.Column[] defs = new Schema.Column[columns.length];
+        try {
+            for (int i = 0; i < columns.length; i++) defs[i] = Schema.column(columns[i], types[i]);
+        } catch (IllegalArgumentException e) {
+            return "Error creating table: " + e.getMessage();
+        }
+        Schema schema = new Schema(defs);
+        if (columnar && schema.columns().stream().noneMatch(c -> c.type().primitive()))
+            return "Error creating table: USING COLUMNAR needs an INT, BIGINT, DOUBLE, BOOLEAN or DATE column.";
         File tableFile = getTableFile(table);
-        if (tableFile.exists()) return "Table already exists.";
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(tableFile))) {
-            bw.write(String.join(",", columns));
-            return "Table created: " + table;
+        long lsn;
+        try {
+            // 0 when the table is already there
+            lsn = locks.write(tableFile.getPath()).call(() -> {
+                if (tableFile.exists()) return 0L;
+                tombstones.reset(tableFile);
+                schema.save(tableFile);
+                byte[] header = (String.join(",", columns) + "\n").getBytes(StandardCharsets.UTF_8);
+                long logged = wal.append(WriteAheadLog.REPLACE, tableFile.getPath(), 0, header);
+                Files.write(tableFile.toPath(), header);
+                bufferPool.invalidate(tableFile.getPath());
+                tableCache.bump(tableFile.getPath());
+                headerCache.put(tableFile.getPath(), columns.clone());
+                schemaCache.put(tableFile.getPath(), schema);
+                if (columnar) {
+                    for (Schema.Column c : schema.columns())
+                        if (c.type().primitive())
+                            indexes.create(tableFile, table + "_" + c.name() + "_col", c.name(), "COLUMNAR " + c.type());
+                }
+                if (compressed) indexes.compress(tableFile);
+                return logged;
+            });
         } catch (IOException e) {
             return "Error creating table: " + e.getMessage();
         }
+        if (lsn == 0) return "Table already exists.";
+        return commitDurably(lsn, "Table created: " + table, "Error creating table: ");
+    }
+
+    // Column names and types of a table, which columns have a COLUMNAR
+    // projection, and how much its COMPRESSED segments hold
+    public String describe(String table) {
+        ensureDBSelected();
+        File tableFile = getTableFile(table);
+        try {
+            if (!tableFile.exists()) return "Table not found: " + table;
+            StringBuilder sb = new StringBuilder("Columns of ").append(table).append(":\n");
+            for (Schema.Column c : getSchema(tableFile).columns()) {
+                sb.append(c.name()).append(' ').append(c.typeName());
+                if (indexes.find(tableFile, c.name()) instanceof ColumnIndex) sb.append(" (columnar)");
+                sb.append('\n');
+            }
+            SegmentStore store = indexes.segments(tableFile);
+            if (store != null)
+                sb.append("Compressed: ").append(store.rows()).append(" rows in ").append(store.segmentCount())
+                        .append(" segments, ").append(store.bytes()).append(" bytes\n");
+            return sb.toString();
+        } catch (IOException e) {
+            return "Error: " + e.getMessage();
+        }
     }
 
     public String showTables() {
         ensureDBSelected();
-        File folder = new File(root, currentDatabase);
+        File folder = new File(root, session.get().database());
         String[] tables = folder.list((dir, name) -> name.endsWith(".txt"));
         if (tables == null || tables.length == 0)
             return "No tables found.";
@@ -67,152 +249,1578 @@ public class Database {
 
     public String dropTable(String table) {
         ensureDBSelected();
+        ensureNoTransaction("DROP TABLE");
         File tableFile = getTableFile(table);
-        if (tableFile.exists() && tableFile.delete())
-            return "Table deleted: " + table;
-        return "Table not found.";
+        try {
+            return locks.exclusive(tableFile.getPath()).call(() -> {
+                if (!tableFile.exists()) return "Table not found.";
+                // Cut the log first so replay never resurrects the dropped table
+                checkpointLocked();
+                indexes.dropTable(tableFile);
+                headerCache.remove(tableFile.getPath());
+                schemaCache.remove(tableFile.getPath());
+                Schema.file(tableFile).delete();
+                statsCache.remove(tableFile.getPath());
+                TableStats.file(tableFile).delete();
+                tombstones.reset(tableFile);
+                bufferPool.invalidate(tableFile.getPath());
+                tableCache.bump(tableFile.getPath());
+                if (tableFile.delete())
+                    return "Table deleted: " + table;
+                return "Table not found.";
+            });
+        } catch (IOException e) {
+            return "Error: Could not drop table: " + e.getMessage();
+        }
     }
 
-    // ---------------- CRUD ----------------
+    // ---------------- INDEXES ----------------
+    public String createIndex(String name, String table, String column, String type) {
+        ensureDBSelected();
+        ensureNoTransaction("CREATE INDEX");
+        File tableFile = getTableFile(table);
+        try {
+            return locks.write(tableFile.getPath()).call(() -> {
+                if (!tableFile.exists()) return "Table not found: " + table;
+                if (indexes.find(tableFile, column) != null) return "Column is already indexed: " + column;
+                if (!type.equalsIgnoreCase("COLUMNAR")) return indexes.create(tableFile, name, column, type);
+                Schema.Column c = getSchema(tableFile).column(column);
+                if (c == null) return "Column not found: " + column;
+                if (!c.type().primitive())
+                    return "Error creating index: COLUMNAR needs an INT, BIGINT, DOUBLE, BOOLEAN or DATE column, "
+                            + column + " is " + c.typeName();
+                return indexes.create(tableFile, name, column, "COLUMNAR " + c.type());
+            });
+        } catch (IOException e) {
+            return "Error creating index: " + e.getMessage();
+        }
+    }
 
-    public String insert(String table, String[] values) {
+    public String dropIndex(String name) {
         ensureDBSelected();
-        dbLock.lock();
+        ensureNoTransaction("DROP INDEX");
+        // Queries hold on to the index they chose, so only writers need keeping out
         try {
-            File tableFile = getTableFile(table);
-            if (!tableFile.exists()) throw new IOException("Table not found");
-            File tempFile = new File(tableFile + ".tmp");
+            File dbDir = new File(root, session.get().database());
+            return locks.write().call(() -> indexes.drop(dbDir, name));
+        } catch (IOException e) {
+            return "Error dropping index: " + e.getMessage();
+        }
+    }
 
-            try (BufferedReader br = new BufferedReader(new FileReader(tableFile));
-                 BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile))) {
+    // ---------------- CRUD ----------------
 
-                String header = br.readLine();
-                if (header == null) throw new IOException("Corrupted table");
-                bw.write(header + "\n");
-                String[] cols = header.split(",");
+    public String insert(String table, String[] row) {
+        ensureDBSelected();
+        long lsn;
+        File tableFile = getTableFile(table);
+        String[] values;
+        try {
+            values = tableFile.exists() ? getSchema(tableFile).normalize(row) : row;
+        } catch (IOException | IllegalArgumentException e) {
+            return "Insert failed: " + e.getMessage();
+        }
+        Transaction tx = activeTransaction();
+        if (tx != null) {
+            return writeInTransaction(tx, tableFile, copy -> {
+                String[] cols = readHeader(copy);
                 if (values.length != cols.length)
                     throw new IOException("Value count mismatch with columns");
-
-                String line;
-                while ((line = br.readLine()) != null)
-                    bw.write(line + "\n");
-                bw.write(String.join(",", values) + "\n");
-            }
-            commitTransaction(tempFile, tableFile);
-            return "Row inserted successfully.";
+                indexes.check(tableFile, cols, values);
+                appendToCopy(copy, (String.join(",", values) + "\n").getBytes(StandardCharsets.UTF_8));
+            }, "Row inserted successfully.", "Insert failed: ");
+        }
+        try {
+            lsn = locks.write(tableFile.getPath()).call(() -> {
+                if (!tableFile.exists()) throw new IOException("Table not found");
+                String[] cols = getHeader(tableFile);
+                if (values.length != cols.length)
+                    throw new IOException("Value count mismatch with columns");
+                // Checked first, so a row is never stored without its index entries
+                indexes.check(tableFile, cols, values);
+                Append append = appendTransaction(tableFile, (String.join(",", values) + "\n").getBytes(StandardCharsets.UTF_8));
+                indexes.onAppend(tableFile, cols, values, append.offset());
+                return append.lsn();
+            });
         } catch (IOException e) {
             rollbackTransaction();
             return "Insert failed: " + e.getMessage();
-        } finally {
-            dbLock.unlock();
         }
+        return commitDurably(lsn, "Row inserted successfully.", "Insert failed: ");
     }
 
-    public String selectAll(String table) {
+    // ---------------- BULK INSERT ----------------
+    // A bulk append is written in chunks of about this size, each logged as it goes
+    private static final int BATCH_CHUNK_BYTES = 4 << 20;
+
+    // Rows of a bulk insert, one at a time; null after the last
+    @FunctionalInterface
+    private interface RowSource {
+        String[] next() throws IOException;
+    }
+
+    // Rows one logged write added or removed, and the LSN that commits it
+    private record Batch(long rows, long lsn) {}
+
+    // INSERT INTO t VALUES (...), (...): all rows or none, with one commit
+    public String insertRows(String table, List<String[]> rows) {
+        Iterator<String[]> it = rows.iterator();
+        return bulkInsert(table, () -> it.hasNext() ? it.next() : null, "Insert failed: ");
+    }
+
+    // LOAD DATA 'file' INTO t: streams a CSV file into the table with one commit.
+    // A first line that repeats the table's column names is skipped.
+    public String load(String table, String path) {
         ensureDBSelected();
+        File csv;
+        try {
+            csv = importFile(path);
+        } catch (IOException e) {
+            return "Load failed: " + e.getMessage();
+        }
+        if (!csv.isFile()) return "Load failed: File not found: " + path;
         File tableFile = getTableFile(table);
-        if (!tableFile.exists()) return "Table not found: " + table;
+        try (BufferedReader in = Files.newBufferedReader(csv.toPath(), StandardCharsets.UTF_8)) {
+            String header = tableFile.exists() ? String.join(",", getHeader(tableFile)) : null;
+            return bulkInsert(table, new RowSource() {
+                boolean first = true;
 
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
-            sb.append("---- ").append(table).append(" ----\n");
-            String line;
-            while ((line = br.readLine()) != null)
-                sb.append(line).append("\n");
+                @Override
+                public String[] next() throws IOException {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        boolean skip = first && line.equalsIgnoreCase(header);
+                        first = false;
+                        if (!skip && !line.isEmpty()) return line.split(",", -1);
+                    }
+                    return null;
+                }
+            }, "Load failed: ");
         } catch (IOException e) {
-            sb.append("Error reading: ").append(e.getMessage());
+            return "Load failed: " + e.getMessage();
         }
-        return sb.toString();
     }
 
-    public String selectWhere(String table, String column, String value) {
+    // With -Dminidbms.importDir a relative path is taken from there and the
+    // file, symlinks resolved, must lie under it. Without one, only local
+    // sessions may load files.
+    private File importFile(String path) throws IOException {
+        if (importDir == null) {
+            if (session.get().remote())
+                throw new IOException("LOAD DATA over the network needs -Dminidbms.importDir on the server");
+            return new File(path);
+        }
+        File dir = new File(importDir).getCanonicalFile();
+        File csv = new File(path);
+        if (!csv.isAbsolute()) csv = new File(dir, path);
+        csv = csv.getCanonicalFile();
+        if (!csv.toPath().startsWith(dir.toPath()))
+            throw new IOException("File is outside the import directory: " + path);
+        return csv;
+    }
+
+    private String bulkInsert(String table, RowSource source, String failurePrefix) {
         ensureDBSelected();
+        long started = System.nanoTime();
         File tableFile = getTableFile(table);
-        if (!tableFile.exists()) return "Table not found: " + table;
+        Transaction tx = activeTransaction();
+        if (tx != null) {
+            return writeInTransaction(tx, tableFile,
+                    copy -> appendBatchToCopy(tableFile, copy, readHeader(copy), getSchema(tableFile), source),
+                    rows -> batchSummary(rows, started), failurePrefix);
+        }
+        Batch batch;
+        try {
+            batch = locks.write(tableFile.getPath()).call(() -> {
+                if (!tableFile.exists()) throw new IOException("Table not found");
+                return appendBatch(tableFile, getHeader(tableFile), getSchema(tableFile), source);
+            });
+        } catch (IOException e) {
+            rollbackTransaction();
+            return failurePrefix + e.getMessage();
+        }
+        if (batch.rows() > 0) {
+            String error = commitDurably(batch.lsn(), "", failurePrefix);
+            if (!error.isEmpty()) return error;
+        }
+        return batchSummary(batch.rows(), started);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(tableFile))) {
-            String header = br.readLine();
-            String[] cols = header.split(",");
-            int index = getColumnIndex(cols, column);
-            sb.append("---- ").append(table)
-                    .append(" WHERE ").append(column).append("=").append(value).append(" ----\n");
+    private static String batchSummary(long rows, long started) {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return String.format("%d rows inserted in %.2f s (%.0f rows/sec).", rows, seconds,
+                seconds > 0 ? rows / seconds : 0);
+    }
 
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] vals = line.split(",");
-                if (vals.length > index && vals[index].equals(value))
-                    sb.append(line).append("\n");
+    // Also turns away values the table's indexes can't hold, before anything is written
+    private String[] checkRow(File tableFile, String[] cols, Schema schema, String[] values, long n)
+            throws IOException {
+        if (values.length != cols.length)
+            throw new IOException("Row " + n + ": expected " + cols.length + " values, found " + values.length);
+        try {
+            String[] normalized = schema.normalize(values);
+            indexes.check(tableFile, cols, normalized);
+            return normalized;
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IOException("Row " + n + ": " + e.getMessage());
+        }
+    }
+
+    // Appends the rows in chunks under the caller's write lock. The chunks are
+    // logged as one batch that only counts once its COMMIT is in the log; if a
+    // row is rejected halfway the table is cut back to where it was.
+    private Batch appendBatch(File tableFile, String[] cols, Schema schema, RowSource source) throws IOException {
+        String path = tableFile.getPath();
+        try (FileChannel ch = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long start = ch.size();
+            long pos = start;
+            long rows = 0;
+            boolean logged = false;
+            Progress progress = session.get().progress();
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+            List<String[]> chunkRows = new ArrayList<>();
+            long[] chunkOffsets = new long[1024];
+            // Tables created before headers were newline-terminated
+            if (start > 0 && !endsWithNewline(ch, start)) chunk.write('\n');
+            try {
+                for (String[] row = source.next(); row != null; row = source.next()) {
+                    progress.tick();
+                    String[] values = checkRow(tableFile, cols, schema, row, ++rows);
+                    if (chunkRows.size() == chunkOffsets.length)
+                        chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
+                    chunkOffsets[chunkRows.size()] = pos + chunk.size();
+                    chunkRows.add(values);
+                    chunk.write((String.join(",", values) + "\n").getBytes(StandardCharsets.UTF_8));
+                    if (chunk.size() >= BATCH_CHUNK_BYTES) {
+                        logged = true;
+                        pos = writeChunk(ch, tableFile, cols, pos, chunk, chunkRows, chunkOffsets);
+                    }
+                }
+                if (rows == 0) return new Batch(0, 0);
+                logged = true;
+                writeChunk(ch, tableFile, cols, pos, chunk, chunkRows, chunkOffsets);
+                return new Batch(rows, wal.commitBatch(path));
+            } catch (IOException | RuntimeException e) {
+                ch.truncate(start);
+                bufferPool.invalidate(path);
+                tableCache.bump(path);
+                // Closes the batch in the log, so replay drops whatever of it was logged
+                if (logged) {
+                    wal.append(WriteAheadLog.TRUNCATE, path, start, new byte[0]);
+                    indexes.rebuild(tableFile);
+                }
+                throw e;
             }
-        } catch (IOException e) {
+        }
+    }
+
+    private long writeChunk(FileChannel ch, File tableFile, String[] cols, long pos, ByteArrayOutputStream chunk,
+                            List<String[]> rows, long[] offsets) throws IOException {
+        byte[] bytes = chunk.toByteArray();
+        wal.appendBatch(tableFile.getPath(), pos, bytes);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long at = pos;
+        while (buf.hasRemaining()) at += ch.write(buf, at);
+        metrics.tableWrite(bytes.length);
+        bufferPool.write(tableFile.getPath(), pos, bytes);
+        tableCache.bump(tableFile.getPath());
+        for (int i = 0; i < rows.size(); i++) indexes.onAppend(tableFile, cols, rows.get(i), offsets[i]);
+        chunk.reset();
+        rows.clear();
+        return at;
+    }
+
+    // The transaction's copy gets the rows chunk by chunk; a rejected row cuts it back
+    private long appendBatchToCopy(File tableFile, File copy, String[] cols, Schema schema, RowSource source)
+            throws IOException {
+        long start = copy.length();
+        long rows = 0;
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        try {
+            for (String[] row = source.next(); row != null; row = source.next()) {
+                chunk.write((String.join(",", checkRow(tableFile, cols, schema, row, ++rows)) + "\n").getBytes(StandardCharsets.UTF_8));
+                if (chunk.size() >= BATCH_CHUNK_BYTES) {
+                    appendToCopy(copy, chunk.toByteArray());
+                    chunk.reset();
+                }
+            }
+            if (chunk.size() > 0) appendToCopy(copy, chunk.toByteArray());
+            return rows;
+        } catch (IOException | RuntimeException e) {
+            try (FileChannel ch = FileChannel.open(copy.toPath(), StandardOpenOption.WRITE)) {
+                ch.truncate(start);
+            }
+            throw e;
+        }
+    }
+
+    public String selectAll(String table) {
+        return select(table, null, null);
+    }
+
+    public String selectWhere(String table, String column, String value) {
+        return select(table, Condition.equal(column, value), null);
+    }
+
+    public String select(String table, Condition where, String orderBy) {
+        StringBuilder sb = new StringBuilder();
+        try (ResultCursor cursor = query(table, where, orderBy, false, -1, 0)) {
+            sb.append(cursor.title());
+            while (cursor.hasNext()) sb.append(cursor.next().line()).append("\n");
+        } catch (FileNotFoundException e) {
+            return e.getMessage();
+        } catch (IOException | UncheckedIOException e) {
             sb.append("Error: ").append(e.getMessage());
         }
         return sb.toString();
     }
 
-    public String update(String table, String column, String value, String condCol, String condVal) {
+    // Opens a cursor over the matching rows; where and orderBy are optional,
+    // limit < 0 means no limit. The caller must close the cursor.
+    public ResultCursor query(String table, Condition filter, String orderBy, boolean descending, long limit,
+                              long offset) throws IOException {
+        ensureDBSelected();
+        File tableFile = getTableFile(table);
+        // Constants in the typed column's spelling, so WHERE id=07 finds 7
+        Condition where = filter != null && tableFile.exists() ? getSchema(tableFile).normalize(filter) : filter;
+        Transaction tx = activeTransaction();
+        if (tx != null) {
+            synchronized (tx) {
+                tx.touch();
+                // Our own writes, else the table as it was at BEGIN
+                File copy = tx.copy(tableFile.getPath());
+                if (copy != null)
+                    return open(tableFile, table, where, orderBy, descending, limit, offset,
+                            new TableReader(bufferPool, copy), Tombstones.NONE, -1, null);
+                TransactionManager.Snapshot snapshot = tx.snapshot(tableFile.getPath());
+                if (snapshot == null) throw new FileNotFoundException("Table not found: " + table);
+                snapshot.retain();
+                return open(tableFile, table, where, orderBy, descending, limit, offset,
+                        snapshot.reader(bufferPool), snapshot.dead(), snapshot.version(), snapshot::release);
+            }
+        }
+
+        // The cursor reads through its own channel up to the length seen when
+        // it was opened, so only opening it has to be consistent with writers.
+        // Try that optimistically and redo it under the read lock if a writer
+        // committed in the meantime.
+        StampedLock lock = locks.table(tableFile.getPath());
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                ResultCursor cursor = openTable(tableFile, table, where, orderBy, descending, limit, offset);
+                if (lock.validate(stamp)) return cursor;
+                cursor.close();
+            } catch (IOException | RuntimeException e) {
+                if (lock.validate(stamp)) throw e;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return openTable(tableFile, table, where, orderBy, descending, limit, offset);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Runs COUNT/SUM/AVG/MIN/MAX over the rows matching where, grouped by
+    // groupBy when it is set. The rows come from query(), so they are read
+    // through the same indexes, snapshots and scans as a SELECT.
+    public ResultCursor aggregate(String table, List<Statement.SelectItem> items, Condition where, String groupBy,
+                                  boolean orderByGroup, boolean descending, long limit, long offset)
+            throws IOException {
+        List<Row> groups;
+        String[] columns;
+        Planner.Plan plan;
+        try (ResultCursor rows = query(table, where, null, false, -1, 0)) {
+            Aggregator aggregator = new Aggregator(rows.columns(), getSchema(getTableFile(table)), items, groupBy);
+            rows.setFetchSize(Aggregator.VECTOR_SIZE);
+            for (List<Row> batch = rows.nextBatch(); !batch.isEmpty(); batch = rows.nextBatch()) aggregator.add(batch);
+            groups = aggregator.result(orderByGroup, descending);
+            columns = aggregator.columns();
+            plan = rows.plan();
+        }
+        int groupCount = groups.size();
+        plan.step("Aggregate " + String.join(", ", columns) + (groupBy == null ? "" : " GROUP BY " + groupBy),
+                Planner.groups(stats(getTableFile(table)), groupBy, plan.estimated()), () -> groupCount);
+        StringBuilder title = new StringBuilder("---- ").append(table);
+        if (where != null) title.append(" WHERE ").append(where);
+        if (groupBy != null) title.append(" GROUP BY ").append(groupBy);
+        if (orderByGroup) title.append(" ORDER BY ").append(groupBy).append(descending ? " DESC" : "");
+        if (limit >= 0) title.append(" LIMIT ").append(limit);
+        if (offset > 0) title.append(" OFFSET ").append(offset);
+        title.append(" ----\n").append(String.join(",", columns)).append("\n");
+        Iterator<Row> it = groups.iterator();
+        ResultCursor cursor = new ResultCursor(title.toString(), columns, () -> it.hasNext() ? it.next() : null,
+                limit, offset, null);
+        limitStep(plan, limit, offset, cursor);
+        cursor.setPlan(plan);
+        return cursor;
+    }
+
+    // ---------------- JOIN ----------------
+    // Inner equi-join of two tables. Each side is read through query(), with
+    // the WHERE clause pushed down to the table it names, and the side expected
+    // to be smaller on disk becomes the hash join's build input. Columns of
+    // either table may be qualified with its name, and must be when both have
+    // them; columns is null for all of them, and orderBy must be one of them.
+    public ResultCursor join(String left, String right, String leftColumn, String rightColumn, List<String> columns,
+                             Condition where, String orderBy, boolean descending, long limit, long offset)
+            throws IOException {
         ensureDBSelected();
-        dbLock.lock();
+        if (left.equalsIgnoreCase(right)) throw new IllegalArgumentException("A table cannot be joined with itself.");
+        File leftFile = getTableFile(left);
+        File rightFile = getTableFile(right);
+        if (!leftFile.exists()) throw new FileNotFoundException("Table not found: " + left);
+        if (!rightFile.exists()) throw new FileNotFoundException("Table not found: " + right);
+        String[] leftCols = getHeader(leftFile);
+        String[] rightCols = getHeader(rightFile);
+        int leftKey = joinColumn(leftColumn, left, leftCols, right, rightCols);
+        int rightKey = joinColumn(rightColumn, left, leftCols, right, rightCols);
+        if (leftKey >= leftCols.length && rightKey < leftCols.length) {
+            int swap = leftKey;
+            leftKey = rightKey;
+            rightKey = swap;
+        }
+        if (leftKey >= leftCols.length || rightKey < leftCols.length)
+            throw new IllegalArgumentException("JOIN ... ON must compare a column of " + left + " with one of "
+                    + right + ".");
+        rightKey -= leftCols.length;
+        int[] projection = null;
+        String[] header = new String[leftCols.length + rightCols.length];
+        for (int i = 0; i < leftCols.length; i++) header[i] = left + "." + leftCols[i];
+        for (int i = 0; i < rightCols.length; i++) header[leftCols.length + i] = right + "." + rightCols[i];
+        if (columns != null) {
+            projection = new int[columns.size()];
+            for (int i = 0; i < projection.length; i++)
+                projection[i] = joinColumn(columns.get(i), left, leftCols, right, rightCols);
+            header = columns.toArray(new String[0]);
+        }
+        int orderIndex = -1;
+        if (orderBy != null) {
+            int at = joinColumn(orderBy, left, leftCols, right, rightCols);
+            orderIndex = projection == null ? at : -1;
+            for (int i = 0; projection != null && i < projection.length; i++)
+                if (projection[i] == at) orderIndex = i;
+            if (orderIndex < 0)
+                throw new IllegalArgumentException("The ORDER BY column of a JOIN must be selected: " + orderBy);
+        }
+        Condition leftWhere = null;
+        Condition rightWhere = null;
+        if (where != null) {
+            int at = joinColumn(where.column(), left, leftCols, right, rightCols);
+            boolean onLeft = at < leftCols.length;
+            Condition pushed = new Condition(onLeft ? leftCols[at] : rightCols[at - leftCols.length], where.op(),
+                    where.value(), where.upper());
+            if (onLeft) leftWhere = pushed;
+            else rightWhere = pushed;
+        }
+
+        ResultCursor leftRows = query(left, leftWhere, null, false, -1, 0);
+        ResultCursor rightRows;
         try {
-            File tableFile = getTableFile(table);
-            if (!tableFile.exists()) throw new IOException("Table not found");
-            File tempFile = new File(tableFile + ".tmp");
+            rightRows = query(right, rightWhere, null, false, -1, 0);
+        } catch (IOException | RuntimeException e) {
+            leftRows.close();
+            throw e;
+        }
+        String on = left + "." + leftCols[leftKey] + " = " + right + "." + rightCols[rightKey];
+        double leftBytes = inputBytes(leftFile, leftRows.plan());
+        double rightBytes = inputBytes(rightFile, rightRows.plan());
+        boolean buildLeft = leftBytes <= rightBytes;
+        Planner.Plan buildPlan = buildLeft ? leftRows.plan() : rightRows.plan();
+        int partitions = HashJoin.partitions(buildPlan.estimated(), buildLeft ? leftBytes : rightBytes,
+                joinMemoryBytes);
+        HashJoin join = buildLeft
+                ? new HashJoin(leftRows, leftKey, rightRows, rightKey, true, leftCols.length, projection,
+                        joinMemoryBytes, partitions, new File(root, session.get().database()),
+                        session.get().progress())
+                : new HashJoin(rightRows, rightKey, leftRows, leftKey, false, leftCols.length, projection,
+                        joinMemoryBytes, partitions, new File(root, session.get().database()),
+                        session.get().progress());
 
-            try (BufferedReader br = new BufferedReader(new FileReader(tableFile));
-                 BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile))) {
+        StringBuilder title = new StringBuilder("---- ").append(left).append(" JOIN ").append(right)
+                .append(" ON ").append(on);
+        if (where != null) title.append(" WHERE ").append(where);
+        if (orderBy != null) title.append(" ORDER BY ").append(orderBy).append(descending ? " DESC" : "");
+        if (limit >= 0) title.append(" LIMIT ").append(limit);
+        if (offset > 0) title.append(" OFFSET ").append(offset);
+        title.append(" ----\n").append(String.join(",", header)).append("\n");
 
-                String header = br.readLine();
-                String[] cols = header.split(",");
-                int colIndex = getColumnIndex(cols, column);
-                int condIndex = getColumnIndex(cols, condCol);
-                bw.write(header + "\n");
+        Planner.Plan probe = buildLeft ? rightRows.plan() : leftRows.plan();
+        probe.build(buildPlan);
+        String buildTable = buildLeft ? left : right;
+        double estimated = Planner.joinRows(leftRows.plan().estimated(), columnStats(leftFile, leftCols[leftKey]),
+                rightRows.plan().estimated(), columnStats(rightFile, rightCols[rightKey]));
+        probe.step(() -> "Hash join ON " + on + ", hash table on " + buildTable
+                        + (join.spilled() > 0 ? " (spilled to " + join.spilled() + " partition files)" : ""),
+                estimated, join::produced);
+        ResultCursor.Source source = join;
+        Closeable close = join;
+        if (orderBy != null) {
+            Sorter sorter = sort(probe, join, orderIndex, orderBy, descending, limit, offset,
+                    session.get().progress());
+            source = sorter;
+            close = () -> {
+                try {
+                    sorter.close();
+                } finally {
+                    join.close();
+                }
+            };
+        }
+        ResultCursor cursor = new ResultCursor(title.toString(), header, source, limit, offset, close);
+        limitStep(probe, limit, offset, cursor);
+        cursor.setPlan(probe);
+        return cursor;
+    }
+
+    // Index of a join column among the left table's columns followed by the right one's
+    private static int joinColumn(String ref, String left, String[] leftCols, String right, String[] rightCols) {
+        int dot = ref.indexOf('.');
+        String table = dot < 0 ? null : ref.substring(0, dot);
+        String column = ref.substring(dot + 1);
+        if (table != null && !table.equalsIgnoreCase(left) && !table.equalsIgnoreCase(right))
+            throw new IllegalArgumentException("Table " + table + " is not part of the join: " + ref);
+        int l = table == null || table.equalsIgnoreCase(left) ? find(leftCols, column) : -1;
+        int r = table == null || table.equalsIgnoreCase(right) ? find(rightCols, column) : -1;
+        if (l >= 0 && r >= 0)
+            throw new IllegalArgumentException("Column " + column + " is ambiguous: use " + left + "." + column
+                    + " or " + right + "." + column + ".");
+        if (l < 0 && r < 0) throw new IllegalArgumentException("Column not found: " + ref);
+        return l >= 0 ? l : leftCols.length + r;
+    }
+
+    private static int find(String[] cols, String col) {
+        for (int i = 0; i < cols.length; i++)
+            if (cols[i].equalsIgnoreCase(col)) return i;
+        return -1;
+    }
 
+    // Bytes of the table file the planner expects a join input to read
+    private static double inputBytes(File tableFile, Planner.Plan plan) {
+        double rows = plan.tableRows();
+        return rows <= 0 ? 0 : tableFile.length() * Math.min(1, plan.estimated() / rows);
+    }
+
+    private TableStats.ColumnStats columnStats(File tableFile, String column) {
+        TableStats stats = stats(tableFile);
+        return stats == null ? null : stats.column(column);
+    }
+
+    private ResultCursor openTable(File tableFile, String table, Condition where, String orderBy,
+                                   boolean descending, long limit, long offset) throws IOException {
+        if (!tableFile.exists()) throw new FileNotFoundException("Table not found: " + table);
+        long version = tableCache.version(tableFile.getPath());
+        Tombstones.View dead = tombstones.view(tableFile);
+        return open(tableFile, table, where, orderBy, descending, limit, offset,
+                new TableReader(bufferPool, tableFile), dead, version, null);
+    }
+
+    // br reads the table as of the given commit version, skipping the rows in
+    // dead. Indexes and the table cache describe the current version, so they
+    // are only used while that is still the one being read; -1 (a private
+    // copy) never uses them.
+    private ResultCursor open(File tableFile, String table, Condition where, String orderBy, boolean descending,
+                              long limit, long offset, TableReader br, Tombstones.View dead, long version,
+                              Runnable release) throws IOException {
+        Progress progress = session.get().progress();
+        Closeable onClose = () -> {
+            try {
+                br.close();
+            } finally {
+                if (release != null) release.run();
+            }
+        };
+        SegmentStore.Snapshot segments = null;
+        try {
+            String header = br.readLine();
+            String[] cols = header.split(",");
+            int index = where == null ? -1 : getColumnIndex(cols, where.column());
+            int orderIndex = orderBy == null ? -1 : getColumnIndex(cols, orderBy);
+            StringBuilder title = new StringBuilder("---- ").append(table);
+            if (where != null) title.append(" WHERE ").append(where);
+            if (orderBy != null) title.append(" ORDER BY ").append(orderBy).append(descending ? " DESC" : "");
+            if (limit >= 0) title.append(" LIMIT ").append(limit);
+            if (offset > 0) title.append(" OFFSET ").append(offset);
+            title.append(" ----\n");
+            if (where == null) title.append(header).append("\n");
+
+            IndexPath path = null;
+            long[] offsets = null;
+            TableCache.Rows cached = null;
+            if (version == tableCache.version(tableFile.getPath())) {
+                path = chooseIndex(tableFile, where, orderBy);
+                cached = tableCache.get(tableFile.getPath());
+                segments = segments(tableFile, br);
+            }
+            Planner.Plan plan = plan(tableFile, table, where, orderBy, limit, offset, br, path, cached, segments);
+            if (plan.access() == Planner.Access.INDEX) offsets = offsets(path, where, orderBy, descending);
+            // A commit landed while the index was consulted: it and the segments describe a newer version
+            if ((path != null || segments != null) && version != tableCache.version(tableFile.getPath())) {
+                path = null;
+                offsets = null;
+                cached = null;
+                plan = plan(tableFile, table, where, orderBy, limit, offset, br, null, null, null);
+            }
+            if (segments != null && plan.access() != Planner.Access.SEGMENTS) {
+                segments.close();
+                segments = null;
+            }
+            ResultCursor.Source source = switch (plan.access()) {
+                case INDEX -> indexSource(br, offsets, cached, dead, index, where, progress);
+                case CACHE -> cachedSource(cached, index, where, progress);
+                case PARALLEL -> parallelScanner.scan(br.channel(), br.position(), br.length(),
+                        new ByteCondition(where, index), dead, progress);
+                case BYTES -> byteScanSource(br, new ByteCondition(where, index), dead, progress);
+                case SEGMENTS -> segmentSource(br, segments, dead, index, where, progress);
+                case SCAN -> scanSource(br, tableFile, version, dead, index, where, progress);
+            };
+            Closeable close = segments == null ? onClose : closeBoth(segments, onClose);
+            // A parallel scan has tasks to stop before the file is closed
+            if (source instanceof ParallelScanner.Scan scan) close = closeBoth(scan, close);
+            ResultCursor.Source access = source;
+            Planner.Plan counted = plan;
+            source = () -> {
+                Row row = access.next();
+                counted.produced(row);
+                return row;
+            };
+            if (orderBy != null && (plan.access() != Planner.Access.INDEX || !path.ordered())) {
+                // No index hands the rows over in order
+                Sorter sorter = sort(plan, source, orderIndex, orderBy, descending, limit, offset, progress);
+                source = sorter;
+                close = closeBoth(sorter, close);
+            }
+            ResultCursor cursor = new ResultCursor(title.toString(), cols, source, limit, offset, close);
+            limitStep(plan, limit, offset, cursor);
+            cursor.setPlan(plan);
+            return cursor;
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (segments != null) segments.close();
+            } finally {
+                onClose.close();
+            }
+            throw e;
+        }
+    }
+
+    // Closes first and then second, even if first fails
+    private static Closeable closeBoth(Closeable first, Closeable second) {
+        return () -> {
+            try {
+                first.close();
+            } finally {
+                second.close();
+            }
+        };
+    }
+
+    private static ResultCursor.Source cachedSource(TableCache.Rows cached, int index, Condition where,
+                                                    Progress progress) {
+        return new ResultCursor.Source() {
+            int i;
+
+            @Override
+            public Row next() {
+                while (i < cached.lines().length) {
+                    progress.tick();
+                    String line = cached.lines()[i++];
+                    if (matches(line, index, where)) return new Row(line);
+                }
+                return null;
+            }
+        };
+    }
+
+    private ResultCursor.Source indexSource(TableReader br, long[] offsets, TableCache.Rows cached,
+                                            Tombstones.View dead, int index, Condition where, Progress progress) {
+        return new ResultCursor.Source() {
+            int i;
+
+            @Override
+            public Row next() throws IOException {
+                while (i < offsets.length) {
+                    progress.tick();
+                    long offset = offsets[i++];
+                    // Indexes keep entries for deleted rows until the table is rewritten
+                    if (dead.contains(offset)) continue;
+                    String line = cached != null ? cached.lineAt(offset) : null;
+                    if (line == null) {
+                        br.seek(offset);
+                        line = br.readLine();
+                    }
+                    if (line != null && matches(line, index, where)) return new Row(line);
+                }
+                return null;
+            }
+        };
+    }
+
+    // Reads the rows of the COMPRESSED segments, then the ones appended after
+    // them from the table file
+    private static ResultCursor.Source segmentSource(TableReader br, SegmentStore.Snapshot segments,
+                                                     Tombstones.View dead, int index, Condition where,
+                                                     Progress progress) {
+        ResultCursor.Source sealed = segments.rows(index, where, dead, progress);
+        return new ResultCursor.Source() {
+            boolean tail;
+
+            @Override
+            public Row next() throws IOException {
+                if (!tail) {
+                    Row row = sealed.next();
+                    if (row != null) return row;
+                    tail = true;
+                    br.seek(segments.end());
+                }
+                String line;
+                while ((line = br.readLine()) != null) {
+                    progress.tick();
+                    if (!dead.contains(br.offset()) && matches(line, index, where)) return new Row(line);
+                }
+                return null;
+            }
+        };
+    }
+
+    // A snapshot of the table's COMPRESSED segments, or null when it has none
+    // or they cover rows br can't see
+    private SegmentStore.Snapshot segments(File tableFile, TableReader br) throws IOException {
+        SegmentStore store = indexes.segments(tableFile);
+        if (store == null || store.segmentCount() == 0) return null;
+        SegmentStore.Snapshot snapshot = store.snapshot();
+        if (snapshot.end() <= br.length()) return snapshot;
+        snapshot.close();
+        return null;
+    }
+
+    // Tests rows on their bytes and decodes only the ones that match
+    private static ResultCursor.Source byteScanSource(TableReader br, ByteCondition where, Tombstones.View dead,
+                                                      Progress progress) {
+        RowScanner scanner = new RowScanner(br.channel(), br.position(), br.length());
+        return () -> {
+            while (scanner.next()) {
+                progress.tick();
+                if (where.test(scanner.buffer(), scanner.start(), scanner.end()) && !dead.contains(scanner.offset()))
+                    return new Row(scanner.line());
+            }
+            return null;
+        };
+    }
+
+    // Streams the table; a scan that runs to the end also fills the table cache
+    // with the live rows
+    private ResultCursor.Source scanSource(TableReader br, File tableFile, long version, Tombstones.View dead,
+                                           int index, Condition where, Progress progress) {
+        return new ResultCursor.Source() {
+            List<String> lines = tableCache.enabled() ? new ArrayList<>() : null;
+            long[] offsets = new long[16];
+            long size;
+
+            @Override
+            public Row next() throws IOException {
                 String line;
                 while ((line = br.readLine()) != null) {
-                    String[] vals = line.split(",");
-                    if (vals[condIndex].equals(condVal))
-                        vals[colIndex] = value;
-                    bw.write(String.join(",", vals) + "\n");
+                    progress.tick();
+                    if (dead.contains(br.offset())) continue;
+                    remember(line);
+                    if (matches(line, index, where)) return new Row(line);
+                }
+                if (lines != null)
+                    tableCache.put(tableFile.getPath(), version, new TableCache.Rows(
+                            lines.toArray(new String[0]), Arrays.copyOf(offsets, lines.size())));
+                lines = null;
+                return null;
+            }
+
+            private void remember(String line) {
+                if (lines == null) return;
+                size += TableCache.estimate(line);
+                if (size > tableCache.maxBytes()) {
+                    lines = null;
+                    return;
                 }
+                if (lines.size() == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                offsets[lines.size()] = br.offset();
+                lines.add(line);
+            }
+        };
+    }
+
+    // An index that can serve the query, and whether it hands the rows over in ORDER BY order
+    private record IndexPath(Index index, Planner.Lookup lookup, boolean ordered) {}
+
+    // Picks an index that answers the predicate, or failing that one that
+    // yields rows in ORDER BY order. Null means a full scan.
+    private IndexPath chooseIndex(File tableFile, Condition where, String orderBy) throws IOException {
+        if (where != null) {
+            Index idx = indexes.find(tableFile, where.column());
+            boolean sameColumn = orderBy == null || orderBy.equalsIgnoreCase(where.column());
+            if (idx != null && !where.isRange()) return new IndexPath(idx, Planner.Lookup.EQUAL, sameColumn);
+            // One pass over the primitive values; rows come back in file order. It can't do LIKE
+            if (idx instanceof ColumnIndex && !where.op().equals("LIKE"))
+                return new IndexPath(idx, Planner.Lookup.MATCH, orderBy == null);
+            if (idx instanceof BTreeIndex) return new IndexPath(idx, Planner.Lookup.RANGE, sameColumn);
+        }
+        if (orderBy != null && indexes.find(tableFile, orderBy) instanceof BTreeIndex tree)
+            return new IndexPath(tree, Planner.Lookup.ORDERED, true);
+        return null;
+    }
+
+    // Runs the index lookup the planner chose
+    private static long[] offsets(IndexPath path, Condition where, String orderBy, boolean descending) {
+        long[] offsets = switch (path.lookup()) {
+            case EQUAL -> path.index().lookup(where.value());
+            case MATCH -> ((ColumnIndex) path.index()).match(where);
+            case RANGE -> {
+                long[] range = ((BTreeIndex) path.index()).range(where);
+                // Without ORDER BY keep file order, which also reads pages sequentially
+                if (orderBy == null) Arrays.sort(range);
+                yield range;
             }
-            commitTransaction(tempFile, tableFile);
-            return "Update successful.";
+            case ORDERED -> ((BTreeIndex) path.index()).ordered();
+        };
+        // A B+tree hands its offsets over in ascending key order
+        if (descending && orderBy != null && path.lookup() != Planner.Lookup.EQUAL) reverse(offsets);
+        return offsets;
+    }
+
+    private static void reverse(long[] a) {
+        for (int i = 0, j = a.length - 1; i < j; i++, j--) {
+            long t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    // Sorts what source hands over on one of its columns: the first limit +
+    // offset rows through a bounded heap when there is a LIMIT, else every row,
+    // spilling sorted runs under data/<db>/ past -Dminidbms.sortMemoryBytes
+    // (which a heap that outgrows it does too)
+    private Sorter sort(Planner.Plan plan, ResultCursor.Source source, int column, String orderBy,
+                        boolean descending, long limit, long offset, Progress progress) {
+        long keep = limit < 0 ? -1 : limit + offset;
+        Sorter sorter = new Sorter(source, column, descending, keep, sortMemoryBytes,
+                new File(root, session.get().database()), progress);
+        String by = orderBy + (descending ? " DESC" : "");
+        double estimated = keep < 0 ? plan.output() : Math.min(plan.output(), keep);
+        plan.step(() -> (keep >= 0 ? "Top-" + keep + " sort by " : "Sort by ") + by
+                        + (sorter.runs() > 0 ? " (external, " + sorter.runs() + " runs)" : ""),
+                estimated, () -> keep < 0 ? sorter.rows() : Math.min(sorter.rows(), keep));
+        return sorter;
+    }
+
+    // ---------------- PLANNER ----------------
+    // Costs the ways open() can read the rows; path, cached and segments are
+    // null when the index, table cache or COMPRESSED segments can't be used
+    private Planner.Plan plan(File tableFile, String table, Condition where, String orderBy, long limit, long offset,
+                              TableReader br, IndexPath path, TableCache.Rows cached,
+                              SegmentStore.Snapshot segments) {
+        // A LIMIT without ORDER BY is better served by a scan that stops early
+        boolean parallel = where != null && (limit < 0 || orderBy != null) && parallelScanner.worthIt(br.length());
+        Planner.Options options = new Planner.Options(path == null ? null : path.index(),
+                path == null ? null : path.lookup(), path != null && path.ordered(),
+                cached == null ? -1 : cached.lines().length, parallel ? parallelScanner.parallelism() : 0,
+                !tableCache.enabled(), segments == null ? 0 : segments.end() - br.position());
+        return Planner.plan(table, where, orderBy, limit, offset, br.length(), width(tableFile), stats(tableFile),
+                options);
+    }
+
+    private static void limitStep(Planner.Plan plan, long limit, long offset, ResultCursor cursor) {
+        if (limit < 0 && offset == 0) return;
+        double estimated = Math.max(0, plan.output() - offset);
+        if (limit >= 0) estimated = Math.min(estimated, limit);
+        plan.step(limit < 0 ? "Offset " + offset : "Limit " + limit + (offset > 0 ? " offset " + offset : ""),
+                estimated, cursor::returned);
+    }
+
+    private int width(File tableFile) {
+        try {
+            return Planner.width(getSchema(tableFile));
         } catch (IOException e) {
+            return Planner.width(new Schema(new Schema.Column[0]));
+        }
+    }
+
+    // The table's ANALYZE statistics, or null
+    private TableStats stats(File tableFile) {
+        return statsCache.computeIfAbsent(tableFile.getPath(), p -> {
+            try {
+                return Optional.ofNullable(TableStats.load(tableFile));
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    // Gathers planner statistics for one table, or every table of the current database when table is null
+    public String analyze(String table) {
+        ensureDBSelected();
+        ensureNoTransaction("ANALYZE");
+        List<String> tables = new ArrayList<>();
+        if (table != null) {
+            tables.add(table);
+        } else {
+            String[] files = new File(root, session.get().database()).list((dir, name) -> name.endsWith(".txt"));
+            for (String f : files == null ? new String[0] : files) tables.add(f.substring(0, f.length() - 4));
+            Collections.sort(tables);
+            if (tables.isEmpty()) return "No tables found.";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String t : tables) {
+            File tableFile = getTableFile(t);
+            try (ResultCursor rows = query(t, null, null, false, -1, 0)) {
+                long bytes = tableFile.length();
+                TableStats.Collector collector = new TableStats.Collector(rows.columns());
+                rows.setFetchSize(Aggregator.VECTOR_SIZE);
+                for (List<Row> batch = rows.nextBatch(); !batch.isEmpty(); batch = rows.nextBatch())
+                    for (Row row : batch) collector.add(row.line());
+                TableStats stats = collector.finish(bytes);
+                stats.save(tableFile);
+                statsCache.put(tableFile.getPath(), Optional.of(stats));
+                sb.append(sb.length() == 0 ? "" : "\n").append("Analyzed ").append(t).append(": ")
+                        .append(stats.rows()).append(" rows.");
+            } catch (FileNotFoundException e) {
+                return e.getMessage();
+            } catch (IOException | UncheckedIOException e) {
+                return "Error: Could not analyze " + t + ": " + e.getMessage();
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean matches(String line, int index, Condition where) {
+        if (where == null) return true;
+        String[] vals = line.split(",");
+        return vals.length > index && where.matches(vals[index]);
+    }
+
+    public String update(String table, String column, String newValue, String condCol, String condValue) {
+        ensureDBSelected();
+        long lsn;
+        File tableFile = getTableFile(table);
+        String value;
+        String condVal;
+        try {
+            Schema schema = tableFile.exists() ? getSchema(tableFile) : null;
+            value = normalize(schema, column, newValue);
+            condVal = normalize(schema, condCol, condValue);
+        } catch (IOException | IllegalArgumentException e) {
+            return "Update failed: " + e.getMessage();
+        }
+        Transaction tx = activeTransaction();
+        if (tx != null) {
+            return writeInTransaction(tx, tableFile, copy -> {
+                indexes.check(tableFile, column, value);
+                File tempFile = new File(copy + ".tmp");
+                writeUpdated(copy, tempFile, column, value, condCol, condVal);
+                Files.move(tempFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }, "Update successful.", "Update failed: ");
+        }
+        try {
+            // 0 when no row matches
+            lsn = locks.write(tableFile.getPath()).call(() -> {
+                if (!tableFile.exists()) throw new IOException("Table not found");
+                String[] cols = getHeader(tableFile);
+                int colIndex = getColumnIndex(cols, column);
+
+                // The old rows die in place and their new versions go at the end
+                List<Hit> hits = findLive(tableFile, cols, Condition.equal(condCol, condVal));
+                if (hits.isEmpty()) return 0L;
+                List<String[]> rows = new ArrayList<>(hits.size());
+                for (Hit hit : hits) {
+                    String[] vals = hit.line().split(",", -1);
+                    vals[colIndex] = value;
+                    rows.add(vals);
+                }
+                return replaceRows(tableFile, cols, hits, rows);
+            });
+        } catch (IOException | IllegalArgumentException e) {
             rollbackTransaction();
             return "Update failed: " + e.getMessage();
-        } finally {
-            dbLock.unlock();
         }
+        if (lsn == 0) return "Update successful.";
+        return commitDurably(lsn, "Update successful.", "Update failed: ");
     }
 
-    public String deleteAll(String table) {
+    // DELETE FROM t WHERE ...: the matching rows are marked dead, not cut out
+    public String deleteWhere(String table, Condition filter) {
         ensureDBSelected();
-        dbLock.lock();
+        long lsn;
+        File tableFile = getTableFile(table);
+        Condition where;
         try {
-            File tableFile = getTableFile(table);
-            if (!tableFile.exists()) throw new IOException("Table not found");
-            File tempFile = new File(tableFile + ".tmp");
-            try (BufferedReader br = new BufferedReader(new FileReader(tableFile));
-                 BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile))) {
-                String header = br.readLine();
-                if (header != null) bw.write(header + "\n");
+            where = tableFile.exists() ? getSchema(tableFile).normalize(filter) : filter;
+        } catch (IOException | IllegalArgumentException e) {
+            return "Delete failed: " + e.getMessage();
+        }
+        Transaction tx = activeTransaction();
+        if (tx != null) {
+            return writeInTransaction(tx, tableFile, copy -> {
+                File tempFile = new File(copy + ".tmp");
+                int deleted = writeDeleted(copy, tempFile, where);
+                Files.move(tempFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return deleted;
+            }, deleted -> deleted + " rows deleted.", "Delete failed: ");
+        }
+        Batch batch;
+        try {
+            batch = locks.write(tableFile.getPath()).call(() -> {
+                if (!tableFile.exists()) throw new IOException("Table not found");
+                String[] cols = getHeader(tableFile);
+                List<Hit> hits = findLive(tableFile, cols, where);
+                if (hits.isEmpty()) return new Batch(0, 0);
+                return new Batch(hits.size(), replaceRows(tableFile, cols, hits, List.of()));
+            });
+        } catch (IOException | IllegalArgumentException e) {
+            rollbackTransaction();
+            return "Delete failed: " + e.getMessage();
+        }
+        if (batch.rows() == 0) return "0 rows deleted.";
+        return commitDurably(batch.lsn(), batch.rows() + " rows deleted.", "Delete failed: ");
+    }
+
+    // A live row of the table, where it starts and how many bytes it takes with its newline
+    private record Hit(long offset, int length, String line) {}
+
+    // The rows matching the condition that aren't dead yet, in file order.
+    // The caller holds the table's write lock.
+    private List<Hit> findLive(File tableFile, String[] cols, Condition where) throws IOException {
+        int index = getColumnIndex(cols, where.column());
+        Tombstones.View dead = tombstones.view(tableFile);
+        Progress progress = session.get().progress();
+        IndexPath path = chooseIndex(tableFile, where, null);
+        List<Hit> hits = new ArrayList<>();
+        try (TableReader br = new TableReader(bufferPool, tableFile)) {
+            br.readLine();
+            // The index only if the planner prefers it to a scan of the row bytes
+            if (path != null) {
+                Planner.Options options = new Planner.Options(path.index(), path.lookup(), false, -1, 0, true, 0);
+                String table = tableFile.getName().replace(".txt", "");
+                if (Planner.plan(table, where, null, -1, 0, br.length(), width(tableFile), stats(tableFile), options)
+                        .access() != Planner.Access.INDEX) path = null;
+            }
+            if (path != null) {
+                long[] offsets = offsets(path, where, null, false).clone();
+                Arrays.sort(offsets);
+                long previous = -1;
+                for (long offset : offsets) {
+                    progress.tick();
+                    if (offset == previous || dead.contains(offset)) continue;
+                    previous = offset;
+                    br.seek(offset);
+                    String line = br.readLine();
+                    if (line != null && matches(line, index, where))
+                        hits.add(new Hit(offset, (int) (br.position() - offset), line));
+                }
+            } else {
+                ByteCondition cond = new ByteCondition(where, index);
+                RowScanner scanner = new RowScanner(br.channel(), br.position(), br.length());
+                while (scanner.next()) {
+                    progress.tick();
+                    if (cond.test(scanner.buffer(), scanner.start(), scanner.end()) && !dead.contains(scanner.offset()))
+                        hits.add(new Hit(scanner.offset(), scanner.length(), scanner.line()));
+                }
+            }
+        }
+        return hits;
+    }
+
+    // Marks the hit rows dead and appends their replacements (none for a DELETE).
+    // The new rows and the .del entries are logged as one batch with a single
+    // commit over both files, so after a crash either both count or neither does.
+    private long replaceRows(File tableFile, String[] cols, List<Hit> hits, List<String[]> replacements)
+            throws IOException {
+        String path = tableFile.getPath();
+        File delFile = Tombstones.file(tableFile);
+        int n = hits.size();
+        long[] offsets = new long[n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            offsets[i] = hits.get(i).offset();
+            lengths[i] = hits.get(i).length();
+        }
+        for (String[] row : replacements) indexes.check(tableFile, cols, row);
+        byte[] entries = Tombstones.encode(offsets, lengths, n);
+        long delStart = tombstones.fileLength(tableFile);
+        try (FileChannel ch = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel del = FileChannel.open(delFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long start = ch.size();
+            boolean logged = false;
+            try {
+                if (!replacements.isEmpty()) {
+                    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                    List<String[]> rows = new ArrayList<>(replacements);
+                    long[] rowOffsets = new long[rows.size()];
+                    // Tables created before headers were newline-terminated
+                    if (start > 0 && !endsWithNewline(ch, start)) chunk.write('\n');
+                    for (int i = 0; i < rows.size(); i++) {
+                        rowOffsets[i] = start + chunk.size();
+                        chunk.write((String.join(",", rows.get(i)) + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                    logged = true;
+                    writeChunk(ch, tableFile, cols, start, chunk, rows, rowOffsets);
+                }
+                logged = true;
+                wal.appendBatch(delFile.getPath(), delStart, entries);
+                ByteBuffer buf = ByteBuffer.wrap(entries);
+                long at = delStart;
+                while (buf.hasRemaining()) at += del.write(buf, at);
+                metrics.tableWrite(entries.length);
+                long lsn = wal.commitBatch(path, delFile.getPath());
+                tombstones.add(tableFile, offsets, lengths, n);
+                tableCache.bump(path);
+                return lsn;
+            } catch (IOException | RuntimeException e) {
+                ch.truncate(start);
+                del.truncate(delStart);
+                bufferPool.invalidate(path);
+                tableCache.bump(path);
+                if (logged) {
+                    wal.append(WriteAheadLog.TRUNCATE, path, start, new byte[0]);
+                    wal.append(WriteAheadLog.TRUNCATE, delFile.getPath(), delStart, new byte[0]);
+                    indexes.rebuild(tableFile);
+                }
+                throw e;
             }
-            commitTransaction(tempFile, tableFile);
-            return "All rows deleted.";
+        }
+    }
+
+    public String deleteAll(String table) {
+        ensureDBSelected();
+        long lsn;
+        File tableFile = getTableFile(table);
+        Transaction tx = activeTransaction();
+        if (tx != null) {
+            return writeInTransaction(tx, tableFile, copy -> {
+                File tempFile = new File(copy + ".tmp");
+                writeHeaderOnly(copy, tempFile);
+                Files.move(tempFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }, "All rows deleted.", "Delete failed: ");
+        }
+        try {
+            lsn = locks.write(tableFile.getPath()).call(() -> {
+                if (!tableFile.exists()) throw new IOException("Table not found");
+                File tempFile = replacementFile(tableFile);
+                long logged;
+                try {
+                    writeHeaderOnly(tableFile, tempFile);
+                    logged = commitTransaction(tempFile, tableFile);
+                } finally {
+                    // Already moved into place unless something failed
+                    tempFile.delete();
+                }
+                indexes.rebuild(tableFile);
+                return logged;
+            });
         } catch (IOException e) {
             rollbackTransaction();
             return "Delete failed: " + e.getMessage();
+        }
+        return commitDurably(lsn, "All rows deleted.", "Delete failed: ");
+    }
+
+    // Rows that don't match are copied as bytes; only matching rows are decoded and rebuilt
+    private void writeUpdated(File source, File target, String column, String value, String condCol, String condVal)
+            throws IOException {
+        try (TableReader br = new TableReader(bufferPool, source);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+
+            String header = br.readLine();
+            String[] cols = header.split(",");
+            int colIndex = getColumnIndex(cols, column);
+            ByteCondition cond = new ByteCondition(Condition.equal(condCol, condVal), getColumnIndex(cols, condCol));
+            out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+
+            RowScanner scanner = new RowScanner(br.channel(), br.position(), br.length());
+            while (scanner.next()) {
+                if (cond.test(scanner.buffer(), scanner.start(), scanner.end())) {
+                    String[] vals = scanner.line().split(",", -1);
+                    vals[colIndex] = value;
+                    out.write(String.join(",", vals).getBytes(StandardCharsets.UTF_8));
+                } else {
+                    out.write(scanner.buffer(), scanner.start(), scanner.end() - scanner.start());
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    private void writeHeaderOnly(File source, File target) throws IOException {
+        try (TableReader br = new TableReader(bufferPool, source);
+             BufferedWriter bw = new BufferedWriter(new FileWriter(target, StandardCharsets.UTF_8))) {
+            String header = br.readLine();
+            if (header != null) bw.write(header + "\n");
+        }
+    }
+
+    // A transaction's copy has no tombstones; it is simply rewritten without the rows
+    private int writeDeleted(File source, File target, Condition where) throws IOException {
+        int deleted = 0;
+        try (TableReader br = new TableReader(bufferPool, source);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+
+            String header = br.readLine();
+            ByteCondition cond = new ByteCondition(where, getColumnIndex(header.split(","), where.column()));
+            out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+
+            RowScanner scanner = new RowScanner(br.channel(), br.position(), br.length());
+            while (scanner.next()) {
+                if (cond.test(scanner.buffer(), scanner.start(), scanner.end())) {
+                    deleted++;
+                    continue;
+                }
+                out.write(scanner.buffer(), scanner.start(), scanner.end() - scanner.start());
+                out.write('\n');
+            }
+        }
+        return deleted;
+    }
+
+    // ---------------- VACUUM ----------------
+    // VACUUM [t] rewrites tables with dead rows so that only the live ones are
+    // left. The background pass does the same for any table whose dead rows
+    // reach -Dminidbms.vacuumRatio of the file and -Dminidbms.vacuumMinBytes.
+    public String vacuum(String table) {
+        ensureDBSelected();
+        ensureNoTransaction("VACUUM");
+        List<File> tables = new ArrayList<>();
+        if (table != null) {
+            tables.add(getTableFile(table));
+        } else {
+            File[] files = new File(root, session.get().database()).listFiles((dir, name) -> name.endsWith(".txt"));
+            if (files != null) tables.addAll(Arrays.asList(files));
+            tables.sort(Comparator.comparing(File::getName));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (File tableFile : tables) {
+            String name = tableFile.getName().replace(".txt", "");
+            Batch removed;
+            try {
+                removed = locks.write(tableFile.getPath()).call(() -> {
+                    if (!tableFile.exists()) throw new IOException("Table not found");
+                    int dead = tombstones.count(tableFile);
+                    return new Batch(dead, dead > 0 ? compact(tableFile) : 0);
+                });
+            } catch (IOException e) {
+                rollbackTransaction();
+                sb.append("Vacuum failed: ").append(e.getMessage()).append("\n");
+                continue;
+            }
+            if (removed.rows() > 0) {
+                String error = commitDurably(removed.lsn(), "", "Vacuum failed: ");
+                if (!error.isEmpty()) {
+                    sb.append(error).append("\n");
+                    continue;
+                }
+            }
+            sb.append("Vacuumed ").append(name).append(": ").append(removed.rows()).append(" dead rows removed.\n");
+        }
+        return sb.isEmpty() ? "No tables found." : sb.toString().stripTrailing();
+    }
+
+    private void vacuumDeadTables() {
+        // To an open transaction the rewrite would look like a conflicting commit
+        if (transactions.activeCount() > 0) return;
+        for (File tableFile : tombstones.withDeadRows()) {
+            long lsn;
+            try {
+                // 0 when the table is left as it is
+                lsn = locks.write(tableFile.getPath()).call(() -> {
+                    if (!tableFile.exists()) return 0L;
+                    long dead = tombstones.deadBytes(tableFile);
+                    if (dead < vacuumMinBytes || dead < vacuumRatio * tableFile.length()) return 0L;
+                    return compact(tableFile);
+                });
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Vacuum failed: " + e.getMessage());
+                continue;
+            }
+            if (lsn > 0) commitDurably(lsn, "", "");
+        }
+    }
+
+    // Caller holds the table's write lock. Returns the LSN of the rewrite.
+    private long compact(File tableFile) throws IOException {
+        Tombstones.View dead = tombstones.view(tableFile);
+        File tempFile = replacementFile(tableFile);
+        long lsn;
+        try {
+            try (TableReader br = new TableReader(bufferPool, tableFile);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                String header = br.readLine();
+                if (header == null) throw new IOException("Corrupted table");
+                out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+                RowScanner scanner = new RowScanner(br.channel(), br.position(), br.length());
+                while (scanner.next()) {
+                    if (dead.contains(scanner.offset())) continue;
+                    out.write(scanner.buffer(), scanner.start(), scanner.end() - scanner.start());
+                    out.write('\n');
+                }
+            }
+            lsn = commitTransaction(tempFile, tableFile);
         } finally {
-            dbLock.unlock();
+            // Already moved into place unless something failed
+            tempFile.delete();
         }
+        indexes.rebuild(tableFile);
+        return lsn;
     }
 
-    // ---------------- TRANSACTION SYSTEM ----------------
-    private void commitTransaction(File temp, File original) throws IOException {
-        try (FileWriter log = new FileWriter(commitLog, true)) {
-            log.write("COMMIT " + original.getPath() + " " + System.currentTimeMillis() + "\n");
+    // ---------------- MULTI-STATEMENT TRANSACTIONS ----------------
+    // BEGIN snapshots every table of the current database. Reads inside the
+    // transaction see those snapshots and never wait for writers; writes go to
+    // private copies that nobody else sees. COMMIT logs all copies as one WAL
+    // group and moves them into place, unless another commit changed one of
+    // the same tables first, in which case the transaction is rolled back.
+    public String begin() {
+        ensureDBSelected();
+        if (activeTransaction() != null) return "Error: A transaction is already in progress.";
+        File dbDir = new File(root, session.get().database());
+        Transaction tx;
+        try {
+            tx = locks.exclusive().call(() -> {
+                File[] tables = Objects.requireNonNull(dbDir.listFiles((dir, name) -> name.endsWith(".txt")));
+                return transactions.begin(dbDir, Arrays.asList(tables));
+            });
+        } catch (IOException e) {
+            return "Error: Could not start transaction: " + e.getMessage();
+        }
+        session.get().transaction(tx);
+        return "Transaction " + tx.id() + " started.";
+    }
+
+    public String commit() {
+        Transaction tx = activeTransaction();
+        if (tx == null) return "No transaction in progress.";
+        session.get().transaction(null);
+        synchronized (tx) {
+            try {
+                // The idle sweep may have rolled it back, copies and all, since activeTransaction()
+                try {
+                    tx.checkOpen();
+                } catch (IllegalStateException e) {
+                    return "Error: " + e.getMessage();
+                }
+                String[] paths = tx.copies().keySet().toArray(new String[0]);
+                if (paths.length == 0) return "Transaction " + tx.id() + " committed.";
+                Applied applied = locks.write(paths).call(() -> {
+                    // First committer wins
+                    for (String path : paths) {
+                        if (tableCache.version(path) != tx.snapshot(path).version())
+                            return new Applied(0, "Error: Transaction " + tx.id() + " rolled back: table "
+                                    + new File(path).getName().replace(".txt", "") + " was changed by another transaction.");
+                    }
+                    // The copies are forced and logged by name, however big they are
+                    Map<String, File> images = new LinkedHashMap<>();
+                    for (String path : paths) images.put(path, tx.copy(path));
+                    long lsn = wal.appendCommit(images);
+                    // Forced before any table moves, so a crash can't leave the
+                    // transaction half applied
+                    wal.sync(lsn);
+                    try {
+                        for (String path : paths) {
+                            File tableFile = new File(path);
+                            metrics.tableWrite(images.get(path).length());
+                            Files.move(tx.copy(path).toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                            tombstones.reset(tableFile);
+                            bufferPool.invalidate(path);
+                            tableCache.bump(path);
+                            indexes.rebuild(tableFile);
+                        }
+                    } catch (IOException e) {
+                        return new Applied(lsn, "Error: Commit logged but not fully applied, restart to replay the log: "
+                                + e.getMessage());
+                    }
+                    return new Applied(lsn, null);
+                });
+                if (applied.error() != null) return applied.error();
+                return commitDurably(applied.lsn(), "Transaction " + tx.id() + " committed.", "Commit failed: ");
+            } catch (IOException e) {
+                return "Error: Transaction " + tx.id() + " rolled back: " + e.getMessage();
+            } finally {
+                transactions.end(tx);
+            }
+        }
+    }
+
+    // What COMMIT did under the table locks; error is set if it stopped short
+    private record Applied(long lsn, String error) {}
+
+    public String rollback() {
+        Transaction tx = session.get().transaction();
+        if (tx == null) return "No transaction in progress.";
+        session.get().transaction(null);
+        transactions.end(tx);
+        return "Transaction " + tx.id() + " rolled back.";
+    }
+
+    @FunctionalInterface
+    private interface CopyWrite {
+        void apply(File copy) throws IOException;
+    }
+
+    // A write to the copy that returns how many rows it added or removed
+    @FunctionalInterface
+    private interface CountedCopyWrite {
+        long apply(File copy) throws IOException;
+    }
+
+    // Nothing is logged until COMMIT, and nothing is locked: the copy is ours alone
+    private String writeInTransaction(Transaction tx, File tableFile, CopyWrite write, String success, String failurePrefix) {
+        return writeInTransaction(tx, tableFile, copy -> {
+            write.apply(copy);
+            return 0;
+        }, rows -> success, failurePrefix);
+    }
+
+    // success makes the message from the row count write returns
+    private String writeInTransaction(Transaction tx, File tableFile, CountedCopyWrite write,
+                                      LongFunction<String> success, String failurePrefix) {
+        synchronized (tx) {
+            try {
+                tx.checkOpen();
+            } catch (IllegalStateException e) {
+                session.get().transaction(null);
+                return failurePrefix + e.getMessage();
+            }
+            try {
+                File copy = tx.copyFor(tableFile);
+                long rows = write.apply(copy);
+                bufferPool.invalidate(copy.getPath());
+                return success.apply(rows);
+            } catch (IOException e) {
+                return failurePrefix + e.getMessage();
+            } finally {
+                tx.touch();
+            }
         }
+    }
+
+    private static void appendToCopy(File copy, byte[] row) throws IOException {
+        try (FileChannel ch = FileChannel.open(copy.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = ch.size();
+            if (length > 0 && !endsWithNewline(ch, length))
+                row = ByteBuffer.allocate(row.length + 1).put((byte) '\n').put(row).array();
+            ByteBuffer buf = ByteBuffer.wrap(row);
+            long pos = length;
+            while (buf.hasRemaining()) pos += ch.write(buf, pos);
+        }
+    }
+
+    // The open transaction, or null in autocommit mode. Throws, once, if the
+    // idle sweep rolled it back.
+    private Transaction activeTransaction() {
+        Transaction tx = session.get().transaction();
+        if (tx == null) return null;
+        try {
+            tx.checkOpen();
+        } catch (IllegalStateException e) {
+            session.get().transaction(null);
+            throw e;
+        }
+        return tx;
+    }
+
+    private void ensureNoTransaction(String what) {
+        if (session.get().transaction() != null)
+            throw new IllegalStateException(what + " is not allowed inside a transaction; COMMIT or ROLLBACK first.");
+    }
+
+    // ---------------- TRANSACTION SYSTEM ----------------
+    // Every change is logged to the WAL before it touches the table file; the
+    // table files themselves are only forced at checkpoints. A rewritten table
+    // is forced as temp and logged by name, so it never has to fit in memory.
+    private long commitTransaction(File temp, File original) throws IOException {
+        long lsn = wal.appendReplace(original.getPath(), temp);
+        metrics.tableWrite(temp.length());
         Files.move(temp.toPath(), original.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        tombstones.reset(original);
+        bufferPool.invalidate(original.getPath());
+        tableCache.bump(original.getPath());
+        return lsn;
+    }
+
+    // Where a table's new contents are written before commitTransaction. The
+    // log names it, so every rewrite gets a file of its own.
+    private static File replacementFile(File tableFile) throws IOException {
+        return File.createTempFile(tableFile.getName() + ".", ".tmp", tableFile.getParentFile());
+    }
+
+    private record Append(long lsn, long offset) {}
+
+    private Append appendTransaction(File original, byte[] rows) throws IOException {
+        try (FileChannel ch = FileChannel.open(original.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = ch.size();
+            long offset = length;
+            if (length > 0 && !endsWithNewline(ch, length)) {
+                offset++;
+                // Tables created before headers were newline-terminated
+                rows = ByteBuffer.allocate(rows.length + 1).put((byte) '\n').put(rows).array();
+            }
+            long lsn = wal.append(WriteAheadLog.WRITE, original.getPath(), length, rows);
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(rows);
+                long pos = length;
+                while (buf.hasRemaining()) pos += ch.write(buf, pos);
+                metrics.tableWrite(rows.length);
+                bufferPool.write(original.getPath(), length, rows);
+                tableCache.bump(original.getPath());
+            } catch (IOException | RuntimeException e) {
+                // Cancel the logged write so replay doesn't bring the row back
+                ch.truncate(length);
+                bufferPool.invalidate(original.getPath());
+                tableCache.bump(original.getPath());
+                wal.append(WriteAheadLog.TRUNCATE, original.getPath(), length, new byte[0]);
+                throw e;
+            }
+            return new Append(lsn, offset);
+        }
+    }
+
+    // Group commit: the fsync happens after the table lock is released, so
+    // writers that finish while another one is forcing the log share the next force.
+    private String commitDurably(long lsn, String success, String failurePrefix) {
+        long started = System.nanoTime();
+        try {
+            wal.sync(lsn);
+        } catch (IOException e) {
+            return failurePrefix + e.getMessage();
+        }
+        metrics.commit(System.nanoTime() - started);
+        try {
+            if (wal.size() > checkpointBytes && checkpointPending.compareAndSet(false, true))
+                checkpointer.execute(this::checkpoint);
+        } catch (IOException ignored) {
+            // The periodic checkpoint will catch up
+        }
+        return success;
+    }
+
+    private void checkpoint() {
+        try {
+            locks.exclusive().run(() -> {
+                checkpointPending.set(false);
+                checkpointLocked();
+            });
+        } catch (IOException e) {
+            System.out.println("Checkpoint failed: " + e.getMessage());
+        }
+    }
+
+    // Caller holds locks.exclusive(). Index files are forced too, since only tables
+    // changed after a checkpoint get their indexes rebuilt on recovery.
+    private void checkpointLocked() throws IOException {
+        indexes.force();
+        wal.checkpoint();
+    }
+
+    private static boolean endsWithNewline(FileChannel ch, long length) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        ch.read(last, length - 1);
+        return last.get(0) == '\n';
     }
 
     private void rollbackTransaction() {
@@ -223,25 +1831,98 @@ public class Database {
         System.out.println("Checking for unfinished transactions...");
         File rootDir = new File(root);
         if (!rootDir.exists()) return;
-        for (File dir : Objects.requireNonNull(rootDir.listFiles())) {
-            if (dir.isDirectory()) {
-                for (File f : Objects.requireNonNull(dir.listFiles()))
-                    if (f.getName().endsWith(".tmp")) {
-                        System.out.println("Rolling back: " + f.getName());
-                        f.delete();
+        try {
+            // Logged rewrites still waiting to be moved into place are among the temp files
+            int replayed = wal.replay();
+            if (replayed > 0) System.out.println("Replayed " + replayed + " log records.");
+            for (File dir : Objects.requireNonNull(rootDir.listFiles())) {
+                if (dir.isDirectory()) {
+                    for (File f : Objects.requireNonNull(dir.listFiles()))
+                        // Leftover temp files, and private copies of transactions that never committed
+                        if (f.getName().endsWith(".tmp") || f.getName().matches(".*\\.txt\\.tx\\d+")) {
+                            System.out.println("Rolling back: " + f.getName());
+                            f.delete();
+                        }
+                }
+            }
+            // Tables changed since the last checkpoint may have lost index entries
+            Set<String> changed = wal.dirtyPaths();
+            for (File dir : Objects.requireNonNull(rootDir.listFiles())) {
+                if (dir.isDirectory()) {
+                    for (File f : Objects.requireNonNull(dir.listFiles()))
+                        if (f.getName().endsWith(".txt") && (trimTornRow(f) || changed.contains(f.getPath())))
+                            indexes.rebuild(f);
+                }
+            }
+            checkpointLocked();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Recovery failed", e);
+        }
+    }
+
+    // An append that reached the table but not the log can leave half a row
+    // behind; every complete row ends in a newline, so cut back to the last one.
+    private boolean trimTornRow(File tableFile) throws IOException {
+        try (FileChannel ch = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = ch.size();
+            if (length == 0 || endsWithNewline(ch, length)) return false;
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, 64 * 1024));
+            long end = length;
+            while (end > 0) {
+                long start = Math.max(0, end - buf.capacity());
+                buf.clear().limit((int) (end - start));
+                ch.read(buf, start);
+                for (int i = buf.position() - 1; i >= 0; i--) {
+                    if (buf.get(i) == '\n') {
+                        System.out.println("Trimming torn row: " + tableFile.getName());
+                        ch.truncate(start + i + 1);
+                        return true;
                     }
+                }
+                end = start;
             }
+            // Only a header without its newline: a legacy table, leave it alone
+            return false;
         }
     }
 
     // ---------------- UTILITIES ----------------
     private void ensureDBSelected() {
-        if (currentDatabase == null)
+        if (session.get().database() == null)
             throw new IllegalStateException("No database selected.");
     }
 
     private File getTableFile(String table) {
-        return new File(root + "/" + currentDatabase, table + ".txt");
+        return new File(root + "/" + session.get().database(), table + ".txt");
+    }
+
+    private String[] getHeader(File tableFile) throws IOException {
+        String[] cols = headerCache.get(tableFile.getPath());
+        if (cols != null) return cols;
+        cols = readHeader(tableFile);
+        headerCache.put(tableFile.getPath(), cols);
+        return cols;
+    }
+
+    private static String normalize(Schema schema, String column, String value) {
+        Schema.Column c = schema == null ? null : schema.column(column);
+        return c == null ? value : c.normalize(value);
+    }
+
+    private Schema getSchema(File tableFile) throws IOException {
+        Schema schema = schemaCache.get(tableFile.getPath());
+        if (schema != null) return schema;
+        schema = Schema.load(tableFile, getHeader(tableFile));
+        schemaCache.put(tableFile.getPath(), schema);
+        return schema;
+    }
+
+    private String[] readHeader(File tableFile) throws IOException {
+        try (TableReader br = new TableReader(bufferPool, tableFile)) {
+            String header = br.readLine();
+            if (header == null) throw new IOException("Corrupted table");
+            return header.split(",");
+        }
     }
 
     private int getColumnIndex(String[] cols, String col) {
@@ -252,7 +1933,7 @@ public class Database {
 
     public String getTablesList() {
         ensureDBSelected();
-        File folder = new File(root, currentDatabase);
+        File folder = new File(root, session.get().database());
         String[] tables = folder.list((dir, name) -> name.endsWith(".txt"));
         if (tables == null || tables.length == 0)
             return "No tables found.";
@@ -269,8 +1950,41 @@ public class Database {
         return String.join("\n", dbs);
     }
 
+    public String cacheStats() {
+        return tableCache.stats() + "\nBuffer pool: hits " + bufferPool.hits() + ", misses " + bufferPool.misses();
+    }
+
+    // ---------------- STATS ----------------
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    // Everything measured since the engine started
+    public String stats() {
+        StringBuilder sb = new StringBuilder("Statements:\n");
+        if (metrics.statements().isEmpty()) sb.append("  none\n");
+        metrics.statements().forEach((type, h) -> sb.append("  ").append(type).append(": ").append(h.summary()).append("\n"));
+        long bytesRead = bufferPool.bytesRead() + parallelScanner.bytesRead();
+        try {
+            sb.append(String.format("Rows: scanned %,d, returned %,d%n", metrics.rowsScanned(), metrics.rowsReturned()))
+                    .append(String.format("Bytes read: %,d (buffer pool misses %,d, parallel scans %,d)%n",
+                            bytesRead, bufferPool.bytesRead(), parallelScanner.bytesRead()))
+                    .append(String.format("Bytes written: tables %,d, log %,d (log now %,d)%n",
+                            metrics.tableBytesWritten(), wal.bytesWritten(), wal.size()));
+        } catch (IOException e) {
+            sb.append("Log size unavailable: ").append(e.getMessage()).append("\n");
+        }
+        return sb.append("Lock wait: ").append(locks.waits().summary())
+                .append("\nLock hold: ").append(locks.holds().summary())
+                .append("\nCommit wait: ").append(metrics.commits().summary())
+                .append("\nLog force: ").append(wal.forces().summary())
+                .append("\nBuffer pool: hits ").append(bufferPool.hits()).append(", misses ").append(bufferPool.misses())
+                .append("\nSessions: ").append(sessionCount())
+                .toString();
+    }
+
     // Expose current database for UI/status purposes
     public String getCurrentDatabase() {
-        return currentDatabase;
+        return session.get().database();
     }
 }
@@ -0,0 +1,49 @@
+import jdk.jfr.*;
+
+// Java Flight Recorder events of the engine, under "Mini DBMS" in JDK Mission
+// Control. They cost next to nothing unless a recording has them enabled,
+// e.g. java -XX:StartFlightRecording:filename=db.jfr,settings=profile ...
+public final class DbEvents {
+    private DbEvents() {
+    }
+
+    @Name("minidbms.Statement")
+    @Label("Statement")
+    @Category("Mini DBMS")
+    @Description("One statement run through a CommandParser")
+    public static final class StatementEvent extends Event {
+        @Label("Type")
+        public String type;
+
+        @Label("Command")
+        public String command;
+
+        @Label("Rows Scanned")
+        public long rowsScanned;
+
+        @Label("Rows Returned")
+        public long rowsReturned;
+    }
+
+    @Name("minidbms.Fsync")
+    @Label("Log Force")
+    @Category("Mini DBMS")
+    @Description("A group commit forcing the write-ahead log to disk")
+    public static final class FsyncEvent extends Event {
+        @Label("Records Made Durable")
+        public long records;
+    }
+
+    @Name("minidbms.LockWait")
+    @Label("Lock Wait")
+    @Category("Mini DBMS")
+    @Description("Time a writer, checkpoint or drop waited for its locks")
+    @Threshold("1 ms")
+    public static final class LockWaitEvent extends Event {
+        @Label("Tables")
+        public String tables;
+
+        @Label("Exclusive")
+        public boolean exclusive;
+    }
+}
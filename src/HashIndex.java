@@ -0,0 +1,44 @@
+import java.io.File;
+import java.util.*;
+
+// Equality-only index: one hash lookup per point query.
+public class HashIndex extends Index {
+    private static final long[] NONE = new long[0];
+
+    private static final class Postings {
+        long[] offsets = new long[1];
+        int size;
+
+        void add(long offset) {
+            if (size == offsets.length) offsets = Arrays.copyOf(offsets, size * 2);
+            offsets[size++] = offset;
+        }
+    }
+
+    private final Map<String, Postings> entries = new HashMap<>();
+
+    public HashIndex(File file, String table, String column) {
+        super(file, table, column);
+    }
+
+    @Override
+    public String type() {
+        return "HASH";
+    }
+
+    @Override
+    public synchronized long[] lookup(String value) {
+        Postings p = entries.get(value);
+        return p == null ? NONE : Arrays.copyOf(p.offsets, p.size);
+    }
+
+    @Override
+    protected void put(String value, long offset) {
+        entries.computeIfAbsent(value, v -> new Postings()).add(offset);
+    }
+
+    @Override
+    protected void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Inner equi-join of two row streams. The build input (the smaller table) is
+// loaded into a hash table on its join column, and the probe input streams
+// past it, so only the build side has to fit in memory.
+//
+// When the build side outgrows the memory budget the join turns into a grace
+// hash join: both inputs are split on a hash of the key into partition files,
+// matching keys always land in the same pair, and the pairs are joined one at
+// a time. A pair whose build side is still too big is split again with a
+// different hash, up to MAX_DEPTH times; after that, it is loaded anyway,
+// since all its rows then share very few keys.
+//
+// Output rows are the left row's fields followed by the right row's, whichever
+// side was built, optionally cut down to the projected fields.
+public class HashJoin implements ResultCursor.Source, Closeable {
+    private static final int MAX_DEPTH = 3;
+    // Heap per build row beyond its text: map entry, list slot and key
+    private static final int ROW_OVERHEAD = 96;
+
+    private record Pair(File build, File probe, int depth) {}
+
+    private final ResultCursor buildInput;
+    private final ResultCursor probeInput;
+    private final int buildKey;
+    private final int probeKey;
+    private final boolean buildIsLeft;
+    private final int leftWidth;
+    private final int[] projection;
+    private final long memoryBytes;
+    private final int partitions;
+    private final File tempDir;
+    private final Progress progress;
+
+    private final Map<String, List<String>> table = new HashMap<>();
+    private final List<File> tempFiles = new ArrayList<>();
+    private final Deque<Pair> pending = new ArrayDeque<>();
+    // Where probe rows come from: the probe input, or the current partition's file
+    private BufferedReader probeFile;
+    private File probePartition;
+    private boolean started;
+    private String probeLine;
+    private Iterator<String> matches = Collections.emptyIterator();
+    private long buildRows;
+    private long spilled;
+    private long produced;
+
+    // projection holds indexes into the leftWidth left columns followed by the
+    // right ones, or is null for all of them; partitions is the fan-out of a spill
+    public HashJoin(ResultCursor build, int buildKey, ResultCursor probe, int probeKey, boolean buildIsLeft,
+                    int leftWidth, int[] projection, long memoryBytes, int partitions, File tempDir,
+                    Progress progress) {
+        this.buildInput = build;
+        this.probeInput = probe;
+        this.buildKey = buildKey;
+        this.probeKey = probeKey;
+        this.buildIsLeft = buildIsLeft;
+        this.leftWidth = leftWidth;
+        this.projection = projection;
+        this.memoryBytes = memoryBytes;
+        this.partitions = Math.max(2, partitions);
+        this.tempDir = tempDir;
+        this.progress = progress;
+    }
+
+    @Override
+    public Row next() throws IOException {
+        if (!started) {
+            started = true;
+            build();
+        }
+        while (true) {
+            if (matches.hasNext()) {
+                produced++;
+                return new Row(combine(matches.next(), probeLine));
+            }
+            probeLine = nextProbe();
+            if (probeLine == null) return null;
+            String key = field(probeLine, probeKey);
+            List<String> rows = key == null ? null : table.get(key);
+            matches = rows == null ? Collections.emptyIterator() : rows.iterator();
+        }
+    }
+
+    // Partition files a spill should fan out to so that each pair's build
+    // side fits in memory: the table file's bytes of the expected build rows,
+    // counted as they will take up the hash table, with room for skew
+    public static int partitions(double rows, double fileBytes, long memoryBytes) {
+        double heap = 2 * fileBytes + rows * (56 + ROW_OVERHEAD);
+        return (int) Math.min(64, Math.max(2, Math.ceil(1.5 * heap / memoryBytes)));
+    }
+
+    // Rows of the build side
+    public long buildRows() {
+        return buildRows;
+    }
+
+    // Partition files written, 0 when the build side fit in memory
+    public long spilled() {
+        return spilled;
+    }
+
+    public long produced() {
+        return produced;
+    }
+
+    // Loads the build input, or partitions both inputs if it doesn't fit
+    private void build() throws IOException {
+        long used = 0;
+        for (Row row = nextRow(buildInput); row != null; row = nextRow(buildInput)) {
+            buildRows++;
+            String line = row.line();
+            if (!add(line)) continue;
+            used += TableCache.estimate(line) + ROW_OVERHEAD;
+            if (used > memoryBytes) {
+                spill();
+                return;
+            }
+        }
+    }
+
+    // The build input no longer fits: everything goes to partition files
+    private void spill() throws IOException {
+        Writer[] buildParts = open(partitions);
+        File[] buildFiles = lastFiles(partitions);
+        for (List<String> rows : table.values())
+            for (String line : rows) write(buildParts, line, buildKey, 0);
+        table.clear();
+        for (Row row = nextRow(buildInput); row != null; row = nextRow(buildInput)) {
+            buildRows++;
+            write(buildParts, row.line(), buildKey, 0);
+        }
+        close(buildParts);
+        Writer[] probeParts = open(partitions);
+        File[] probeFiles = lastFiles(partitions);
+        for (Row row = nextRow(probeInput); row != null; row = nextRow(probeInput))
+            write(probeParts, row.line(), probeKey, 0);
+        close(probeParts);
+        for (int i = partitions - 1; i >= 0; i--) pending.push(new Pair(buildFiles[i], probeFiles[i], 0));
+        probeFile = null;
+    }
+
+    // The next probe row: from the probe input while nothing was spilled,
+    // else from the current partition, loading the next one when it runs out
+    private String nextProbe() throws IOException {
+        if (pending.isEmpty() && probeFile == null) {
+            if (spilled > 0) return null;
+            Row row = nextRow(probeInput);
+            return row == null ? null : row.line();
+        }
+        while (true) {
+            if (probeFile != null) {
+                String line = probeFile.readLine();
+                if (line != null) {
+                    progress.tick();
+                    return line;
+                }
+                probeFile.close();
+                probeFile = null;
+                probePartition.delete();
+            }
+            if (pending.isEmpty()) return null;
+            load(pending.pop());
+        }
+    }
+
+    // Builds the hash table of one partition pair, or splits the pair again
+    private void load(Pair pair) throws IOException {
+        table.clear();
+        long used = 0;
+        boolean fits = true;
+        try (BufferedReader in = reader(pair.build())) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                progress.tick();
+                if (!add(line)) continue;
+                used += TableCache.estimate(line) + ROW_OVERHEAD;
+                if (used > memoryBytes && pair.depth() < MAX_DEPTH) {
+                    fits = false;
+                    break;
+                }
+            }
+        }
+        if (fits) {
+            pair.build().delete();
+            probePartition = pair.probe();
+            probeFile = reader(probePartition);
+            return;
+        }
+        table.clear();
+        int depth = pair.depth() + 1;
+        File[] buildFiles = split(pair.build(), buildKey, depth);
+        File[] probeFiles = split(pair.probe(), probeKey, depth);
+        for (int i = partitions - 1; i >= 0; i--) pending.push(new Pair(buildFiles[i], probeFiles[i], depth));
+    }
+
+    private File[] split(File file, int key, int depth) throws IOException {
+        Writer[] parts = open(partitions);
+        File[] files = lastFiles(partitions);
+        try (BufferedReader in = reader(file)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                progress.tick();
+                write(parts, line, key, depth);
+            }
+        }
+        close(parts);
+        file.delete();
+        return files;
+    }
+
+    private boolean add(String line) {
+        String key = field(line, buildKey);
+        if (key == null) return false;
+        table.computeIfAbsent(key, k -> new ArrayList<>(1)).add(line);
+        return true;
+    }
+
+    private void write(Writer[] parts, String line, int key, int depth) throws IOException {
+        String k = field(line, key);
+        if (k == null) return;
+        parts[partition(k, depth)].write(line + "\n");
+    }
+
+    // Each level mixes the hash differently, so a split partition really splits
+    private int partition(String key, int depth) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return Math.floorMod(Integer.rotateLeft(h, 8 * depth) ^ (h >>> 16), partitions);
+    }
+
+    private Writer[] open(int n) throws IOException {
+        Writer[] writers = new Writer[n];
+        for (int i = 0; i < n; i++) {
+            File f = File.createTempFile("join", ".tmp", tempDir);
+            tempFiles.add(f);
+            spilled++;
+            writers[i] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+        }
+        return writers;
+    }
+
+    private File[] lastFiles(int n) {
+        return tempFiles.subList(tempFiles.size() - n, tempFiles.size()).toArray(new File[0]);
+    }
+
+    private static void close(Writer[] writers) throws IOException {
+        for (Writer w : writers) w.close();
+    }
+
+    private static BufferedReader reader(File f) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+    }
+
+    private static Row nextRow(ResultCursor cursor) {
+        return cursor.hasNext() ? cursor.next() : null;
+    }
+
+    private String combine(String buildLine, String probeLine) {
+        String left = buildIsLeft ? buildLine : probeLine;
+        String right = buildIsLeft ? probeLine : buildLine;
+        if (projection == null) return left + "," + right;
+        String[] l = left.split(",", -1);
+        String[] r = right.split(",", -1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < projection.length; i++) {
+            int p = projection[i];
+            String[] side = p < leftWidth ? l : r;
+            int at = p < leftWidth ? p : p - leftWidth;
+            if (i > 0) sb.append(',');
+            if (at < side.length) sb.append(side[at]);
+        }
+        return sb.toString();
+    }
+
+    // The index-th comma-separated field, or null if the line is too short
+    private static String field(String line, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = line.indexOf(',', start) + 1;
+            if (start == 0) return null;
+        }
+        int end = line.indexOf(',', start);
+        return line.substring(start, end < 0 ? line.length() : end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (probeFile != null) probeFile.close();
+            buildInput.close();
+            probeInput.close();
+        } finally {
+            for (File f : tempFiles) f.delete();
+            table.clear();
+        }
+    }
+}
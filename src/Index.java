@@ -0,0 +1,178 @@
+import java.io.*;
+import java.nio.file.*;
+
+// Secondary index over one column of a table, mapping values to the byte
+// offsets of the rows that hold them. On disk it is a small header followed by
+// an append-only list of (value, offset) entries; the file is rewritten from
+// the table whenever the table itself is rewritten.
+public abstract class Index implements Closeable {
+    private final File file;
+    private final String table;
+    private final String column;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+
+    protected Index(File file, String table, String column) {
+        this.file = file;
+        this.table = table;
+        this.column = column;
+    }
+
+    public abstract String type();
+
+    // Offsets of rows whose column equals value, in file order
+    public abstract long[] lookup(String value);
+
+    protected abstract void put(String value, long offset);
+
+    protected abstract void clear();
+
+    public String name() {
+        return file.getName().replace(".idx", "");
+    }
+
+    public String table() {
+        return table;
+    }
+
+    public String column() {
+        return column;
+    }
+
+    // writeUTF keeps an entry's length in two bytes
+    private static final int MAX_VALUE_BYTES = 65535;
+
+    // Fails for a value add() could not store, so the row can be turned away
+    // before it is written
+    public void check(String value) throws IOException {
+        if (!fits(value))
+            throw new IOException("Value too long for index " + name() + " (" + encodedLength(value)
+                    + " bytes, at most " + MAX_VALUE_BYTES + ")");
+    }
+
+    protected boolean fits(String value) {
+        return value.length() * 3L <= MAX_VALUE_BYTES || encodedLength(value) <= MAX_VALUE_BYTES;
+    }
+
+    // Bytes writeUTF takes for value
+    private static long encodedLength(String value) {
+        long bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            bytes += c >= 1 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return bytes;
+    }
+
+    public synchronized void add(String value, long offset) throws IOException {
+        put(value, offset);
+        // Buffered only: entries lost in a crash are rebuilt from the replayed table
+        writeEntry(out(), value, offset);
+    }
+
+    // On-disk form of one entry; readEntry must read back exactly what this writes
+    protected void writeEntry(DataOutputStream o, String value, long offset) throws IOException {
+        o.writeUTF(value);
+        o.writeLong(offset);
+    }
+
+    protected void readEntry(DataInputStream in) throws IOException {
+        put(in.readUTF(), in.readLong());
+    }
+
+    // Re-reads the whole table and replaces the index file. Values too long to
+    // store are left out and reported, so a table written before they were
+    // turned away still opens.
+    public synchronized void rebuild(BufferPool pool, File tableFile, int colIndex) throws IOException {
+        close();
+        clear();
+        long skipped = 0;
+        File temp = new File(file + ".tmp");
+        try (TableReader reader = new TableReader(pool, tableFile);
+             FileOutputStream tmpOut = new FileOutputStream(temp)) {
+            DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(tmpOut));
+            writeHeader(tmp);
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] vals = line.split(",");
+                if (vals.length <= colIndex) continue;
+                if (!fits(vals[colIndex])) {
+                    skipped++;
+                    continue;
+                }
+                put(vals[colIndex], reader.offset());
+                writeEntry(tmp, vals[colIndex], reader.offset());
+            }
+            tmp.flush();
+            tmpOut.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (skipped > 0)
+            System.out.println("Index " + name() + ": " + skipped + " values too long to index were left out.");
+    }
+
+    public synchronized void force() throws IOException {
+        if (out == null) return;
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    public File file() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) out.close();
+        out = null;
+        fileOut = null;
+    }
+
+    public static Index create(String type, File file, String table, String column) {
+        if (type.equalsIgnoreCase("HASH")) return new HashIndex(file, table, column);
+        if (type.equalsIgnoreCase("BTREE")) return new BTreeIndex(file, table, column);
+        if (type.toUpperCase().startsWith("COLUMNAR "))
+            return new ColumnIndex(file, table, column, Schema.Type.valueOf(type.substring(9).toUpperCase()));
+        throw new IllegalArgumentException("Unknown index type: " + type);
+    }
+
+    // Returns null when the file is torn or unreadable, so the caller rebuilds it
+    public static Index load(File file) throws IOException {
+        try (BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(file));
+             DataInputStream in = new DataInputStream(buffered)) {
+            Index index = create(in.readUTF(), file, in.readUTF(), in.readUTF());
+            while (true) {
+                buffered.mark(1);
+                if (buffered.read() == -1) return index;
+                buffered.reset();
+                index.readEntry(in);
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    // Just the header, for rebuilding an index whose entries could not be loaded
+    public static Index readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return create(in.readUTF(), file, in.readUTF(), in.readUTF());
+        }
+    }
+
+    private void writeHeader(DataOutputStream o) throws IOException {
+        o.writeUTF(type());
+        o.writeUTF(table);
+        o.writeUTF(column);
+    }
+
+    private DataOutputStream out() throws IOException {
+        if (out == null) {
+            boolean fresh = !file.exists() || file.length() == 0;
+            fileOut = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            if (fresh) writeHeader(out);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps track of the indexes in each database folder and keeps them in step
+// with the tables they cover. Index files live next to the tables as <name>.idx.
+// The COMPRESSED segments of a table (<table>.seg) are kept in step the same way.
+//
+// Each table's indexes and segments sit in an entry of their own, and all
+// work on them (adding entries, rebuilding, sealing segments) locks just that
+// entry, so a long rebuild of one table never holds up the others.
+public class IndexManager {
+    private final BufferPool pool;
+    // Database folder path -> its indexes and segments, loaded on first use
+    private final Map<String, Catalog> catalogs = new ConcurrentHashMap<>();
+
+    // Index names are unique within a database folder; names also holds the
+    // ones still being built, so two tables can't both claim a name
+    private static final class Catalog {
+        final Set<String> names = ConcurrentHashMap.newKeySet();
+        final Map<String, Index> byName = new ConcurrentHashMap<>();
+        final Map<String, TableEntry> tables = new ConcurrentHashMap<>();
+
+        TableEntry table(String name) {
+            return tables.computeIfAbsent(name.toLowerCase(), k -> new TableEntry());
+        }
+    }
+
+    // A table's indexes and segments, guarded by the entry itself
+    private static final class TableEntry {
+        final List<Index> indexes = new ArrayList<>();
+        SegmentStore segments;
+    }
+
+    public IndexManager(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    public List<Index> forTable(File tableFile) throws IOException {
+        TableEntry t = entry(tableFile);
+        synchronized (t) {
+            return new ArrayList<>(t.indexes);
+        }
+    }
+
+    public Index find(File tableFile, String column) throws IOException {
+        TableEntry t = entry(tableFile);
+        synchronized (t) {
+            for (Index index : t.indexes)
+                if (index.column().equalsIgnoreCase(column)) return index;
+            return null;
+        }
+    }
+
+    public String create(File tableFile, String name, String column, String type) throws IOException {
+        Catalog catalog = catalog(tableFile.getParentFile());
+        String key = name.toLowerCase();
+        if (!catalog.names.add(key)) return "Index already exists.";
+        try {
+            File file = new File(tableFile.getParentFile(), name + ".idx");
+            Index index = Index.create(type, file, tableName(tableFile), column);
+            TableEntry t = catalog.table(tableName(tableFile));
+            synchronized (t) {
+                index.rebuild(pool, tableFile, columnIndex(tableFile, column));
+                t.indexes.add(index);
+            }
+            catalog.byName.put(key, index);
+            return "Index created: " + name;
+        } catch (IOException | RuntimeException e) {
+            catalog.names.remove(key);
+            throw e;
+        }
+    }
+
+    // The table's COMPRESSED segments, or null when it isn't compressed
+    public SegmentStore segments(File tableFile) throws IOException {
+        TableEntry t = entry(tableFile);
+        synchronized (t) {
+            return t.segments;
+        }
+    }
+
+    public void compress(File tableFile) throws IOException {
+        TableEntry t = entry(tableFile);
+        synchronized (t) {
+            t.segments = SegmentStore.create(pool, tableFile, header(tableFile).length);
+        }
+    }
+
+    public String drop(File dbDir, String name) throws IOException {
+        Catalog catalog = catalog(dbDir);
+        String key = name.toLowerCase();
+        Index index = catalog.byName.remove(key);
+        if (index == null) return "Index not found.";
+        TableEntry t = catalog.table(index.table());
+        synchronized (t) {
+            t.indexes.remove(index);
+            index.close();
+            index.file().delete();
+        }
+        catalog.names.remove(key);
+        return "Index deleted: " + name;
+    }
+
+    public void dropTable(File tableFile) throws IOException {
+        Catalog catalog = catalog(tableFile.getParentFile());
+        TableEntry t = catalog.table(tableName(tableFile));
+        synchronized (t) {
+            for (Index index : t.indexes) {
+                String key = index.name().toLowerCase();
+                catalog.byName.remove(key);
+                index.close();
+                index.file().delete();
+                catalog.names.remove(key);
+            }
+            t.indexes.clear();
+            if (t.segments != null) t.segments.delete();
+            t.segments = null;
+        }
+        catalog.tables.remove(tableName(tableFile).toLowerCase());
+    }
+
+    public void forgetDatabase(File dbDir) throws IOException {
+        Catalog catalog = catalogs.remove(dbDir.getPath());
+        if (catalog == null) return;
+        for (TableEntry t : catalog.tables.values()) {
+            synchronized (t) {
+                for (Index index : t.indexes) index.close();
+                if (t.segments != null) t.segments.close();
+            }
+        }
+    }
+
+    // Throws if one of the table's indexes can't hold its value from values
+    public void check(File tableFile, String[] header, String[] values) throws IOException {
+        TableEntry t = entry(tableFile);
+        synchronized (t) {
+            for (Index index : t.indexes) index.check(values[columnIndex(header, index.column())]);
+        }
+    }
+
+    // The same for a new value of one column
+    public void check(File tableFile, String column, String value) throws IOException {
+        Index index = find(tableFile, column);
+        if (index != null) index.check(value);
+    }
+
+    public void onAppend(File tableFile, String[] header, String[] values, long offset) throws IOException {
+        TableEntry t = entry(tableFile);
+        synchronized (t) {
+            for (Index index : t.indexes)
+                index.add(values[columnIndex(header, index.column())], offset);
+            if (t.segments != null) t.segments.appended(pool, tableFile);
+        }
+    }
+
+    public void rebuild(File tableFile) throws IOException {
+        TableEntry t = entry(tableFile);
+        synchronized (t) {
+            for (Index index : t.indexes)
+                index.rebuild(pool, tableFile, columnIndex(tableFile, index.column()));
+            if (t.segments != null) t.segments.rebuild(pool, tableFile);
+        }
+    }
+
+    public void force() throws IOException {
+        for (Catalog catalog : catalogs.values()) {
+            for (TableEntry t : catalog.tables.values()) {
+                synchronized (t) {
+                    for (Index index : t.indexes) index.force();
+                    if (t.segments != null) t.segments.force();
+                }
+            }
+        }
+    }
+
+    private TableEntry entry(File tableFile) throws IOException {
+        return catalog(tableFile.getParentFile()).table(tableName(tableFile));
+    }
+
+    // Loading a folder's catalog is the only work done under a lock shared by all tables
+    private Catalog catalog(File dbDir) throws IOException {
+        Catalog catalog = catalogs.get(dbDir.getPath());
+        if (catalog != null) return catalog;
+        synchronized (catalogs) {
+            catalog = catalogs.get(dbDir.getPath());
+            if (catalog != null) return catalog;
+            catalog = load(dbDir);
+            catalogs.put(dbDir.getPath(), catalog);
+            return catalog;
+        }
+    }
+
+    private Catalog load(File dbDir) throws IOException {
+        Catalog catalog = new Catalog();
+        File[] files = dbDir.listFiles((dir, n) -> n.endsWith(".idx"));
+        for (File f : files == null ? new File[0] : files) {
+            Index index = Index.load(f);
+            if (index == null) {
+                // Torn entries at the tail: start over from the table
+                index = Index.readHeader(f);
+                File tableFile = new File(dbDir, index.table() + ".txt");
+                if (tableFile.exists()) index.rebuild(pool, tableFile, columnIndex(tableFile, index.column()));
+            }
+            catalog.names.add(index.name().toLowerCase());
+            catalog.byName.put(index.name().toLowerCase(), index);
+            catalog.table(index.table()).indexes.add(index);
+        }
+        File[] segmentFiles = dbDir.listFiles((dir, n) -> n.endsWith(".seg"));
+        for (File f : segmentFiles == null ? new File[0] : segmentFiles) {
+            File tableFile = new File(dbDir, f.getName().replace(".seg", ".txt"));
+            if (!tableFile.exists()) continue;
+            catalog.table(tableName(tableFile)).segments =
+                    SegmentStore.load(pool, tableFile, header(tableFile).length);
+        }
+        return catalog;
+    }
+
+    private int columnIndex(File tableFile, String column) throws IOException {
+        return columnIndex(header(tableFile), column);
+    }
+
+    private String[] header(File tableFile) throws IOException {
+        try (TableReader reader = new TableReader(pool, tableFile)) {
+            String header = reader.readLine();
+            if (header == null) throw new IOException("Corrupted table");
+            return header.split(",");
+        }
+    }
+
+    private static int columnIndex(String[] header, String column) {
+        for (int i = 0; i < header.length; i++)
+            if (header[i].equalsIgnoreCase(column)) return i;
+        throw new IllegalArgumentException("Column not found: " + column);
+    }
+
+    private static String tableName(File tableFile) {
+        return tableFile.getName().replace(".txt", "");
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies in nanoseconds, bucketed the way HdrHistogram does it: values
+// under 32 are counted exactly, larger ones fall into power-of-two ranges
+// split into 32 linear sub-buckets each, so every value is known to within
+// about 3% over the whole range of a long. Recording is a few shifts and one
+// atomic increment; there is no lock and no allocation.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    // Exact values, then one row of sub-buckets per power of two from 2^5 to 2^62
+    private static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+    }
+
+    private static int bucket(long v) {
+        if (v < SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) - SUB;
+        return SUB + (exp - SUB_BITS) * SUB + sub;
+    }
+
+    // The largest value that lands in the bucket
+    private static long highest(int bucket) {
+        if (bucket < SUB) return bucket;
+        int shift = (bucket - SUB) / SUB;
+        long sub = (bucket - SUB) % SUB;
+        return ((SUB + sub + 1) << shift) - 1;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // The value below which the given fraction (0..1) of the recordings fall
+    public long percentile(double fraction) {
+        long n = count.sum();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    // e.g. "count 120, mean 1.20 ms, p50 0.95 ms, p90 2.10 ms, p99 5.31 ms, max 9.02 ms"
+    public String summary() {
+        if (count() == 0) return "count 0";
+        return "count " + count() + ", mean " + format(mean()) + ", p50 " + format(percentile(0.5))
+                + ", p90 " + format(percentile(0.9)) + ", p99 " + format(percentile(0.99)) + ", max " + format(max());
+    }
+
+    public static String format(double nanos) {
+        if (nanos < 1_000) return String.format("%.0f ns", nanos);
+        if (nanos < 1_000_000) return String.format("%.1f us", nanos / 1e3);
+        if (nanos < 1_000_000_000) return String.format("%.2f ms", nanos / 1e6);
+        return String.format("%.2f s", nanos / 1e9);
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+// Table-level locking. Every table file has a StampedLock: writers take it
+// exclusively, readers validate an optimistic stamp and only fall back to a
+// read lock when a writer got in. Above the tables sits one fair global lock
+// that writers share and that checkpoints and drops take exclusively, since
+// they must see no write in flight anywhere.
+//
+// Deadlocks are avoided rather than detected: the global lock always comes
+// first and table locks are taken in path order, so two operations can never
+// wait on each other in a cycle. None of the locks are reentrant; callers
+// take everything they need in a single call.
+//
+// Waits and holds are timed for SHOW STATS. Readers never wait on the
+// optimistic path, so only writers, checkpoints and drops are counted.
+public class LockManager {
+    private final ReentrantReadWriteLock global = new ReentrantReadWriteLock(true);
+    private final Map<String, StampedLock> tables = new ConcurrentHashMap<>();
+    private final LatencyHistogram waits = new LatencyHistogram();
+    private final LatencyHistogram holds = new LatencyHistogram();
+
+    // Released in reverse order of acquisition. call() and run() hold the
+    // locks just for the work they are given.
+    public interface Held {
+        void release();
+
+        default <T> T call(Work<T> work) throws IOException {
+            try {
+                return work.call();
+            } finally {
+                release();
+            }
+        }
+
+        default void run(Step step) throws IOException {
+            call(() -> {
+                step.run();
+                return null;
+            });
+        }
+    }
+
+    @FunctionalInterface
+    public interface Work<T> {
+        T call() throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Step {
+        void run() throws IOException;
+    }
+
+    public StampedLock table(String path) {
+        return tables.computeIfAbsent(path, p -> new StampedLock());
+    }
+
+    // Writes to the given tables; writers to other tables proceed in parallel
+    public Held write(String... paths) {
+        DbEvents.LockWaitEvent event = new DbEvents.LockWaitEvent();
+        event.begin();
+        long started = System.nanoTime();
+        global.readLock().lock();
+        return acquire(global.readLock()::unlock, started, event, paths);
+    }
+
+    // Excludes every writer, plus readers of the given tables
+    public Held exclusive(String... paths) {
+        DbEvents.LockWaitEvent event = new DbEvents.LockWaitEvent();
+        event.begin();
+        long started = System.nanoTime();
+        global.writeLock().lock();
+        event.exclusive = true;
+        return acquire(global.writeLock()::unlock, started, event, paths);
+    }
+
+    // Time from asking for the locks to holding all of them
+    public LatencyHistogram waits() {
+        return waits;
+    }
+
+    // Time from holding the locks to releasing them
+    public LatencyHistogram holds() {
+        return holds;
+    }
+
+    private Held acquire(Runnable releaseGlobal, long started, DbEvents.LockWaitEvent event, String... paths) {
+        String[] sorted = Arrays.stream(paths).distinct().sorted().toArray(String[]::new);
+        StampedLock[] locks = new StampedLock[sorted.length];
+        long[] stamps = new long[sorted.length];
+        int taken = 0;
+        try {
+            for (; taken < sorted.length; taken++) {
+                locks[taken] = table(sorted[taken]);
+                stamps[taken] = locks[taken].writeLockInterruptibly();
+            }
+        } catch (InterruptedException e) {
+            release(locks, stamps, taken, releaseGlobal);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a table lock.");
+        }
+        long acquired = System.nanoTime();
+        waits.record(acquired - started);
+        event.end();
+        if (event.shouldCommit()) {
+            event.tables = String.join(", ", sorted);
+            event.commit();
+        }
+        int count = taken;
+        return () -> {
+            release(locks, stamps, count, releaseGlobal);
+            holds.record(System.nanoTime() - acquired);
+        };
+    }
+
+    private static void release(StampedLock[] locks, long[] stamps, int count, Runnable releaseGlobal) {
+        for (int i = count - 1; i >= 0; i--) locks[i].unlockWrite(stamps[i]);
+        releaseGlobal.run();
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Engine-wide counters behind SHOW STATS that don't belong to one component:
+// statement latencies by statement type, rows scanned and returned, bytes
+// written to table files, and how long writers wait for their commit to be
+// durable. The buffer pool, log, lock manager and parallel scanner count
+// their own share.
+public class Metrics {
+    private final Map<String, LatencyHistogram> statements = new ConcurrentSkipListMap<>();
+    private final LongAdder rowsScanned = new LongAdder();
+    private final LongAdder rowsReturned = new LongAdder();
+    private final LongAdder tableBytesWritten = new LongAdder();
+    private final LatencyHistogram commits = new LatencyHistogram();
+
+    public void statement(String type, long nanos, long scanned, long returned) {
+        statements.computeIfAbsent(type, t -> new LatencyHistogram()).record(nanos);
+        rowsScanned.add(scanned);
+        rowsReturned.add(returned);
+    }
+
+    public void tableWrite(long bytes) {
+        tableBytesWritten.add(bytes);
+    }
+
+    // From the end of a write to its log record being forced
+    public void commit(long nanos) {
+        commits.record(nanos);
+    }
+
+    public Map<String, LatencyHistogram> statements() {
+        return statements;
+    }
+
+    public long rowsScanned() {
+        return rowsScanned.sum();
+    }
+
+    public long rowsReturned() {
+        return rowsReturned.sum();
+    }
+
+    public long tableBytesWritten() {
+        return tableBytesWritten.sum();
+    }
+
+    public LatencyHistogram commits() {
+        return commits;
+    }
+}
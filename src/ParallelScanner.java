@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+// Filters a large table on several cores. The data rows are split into byte
+// ranges; each range starts at the first line beginning inside it and runs
+// through the line that straddles its end, so every row is read by exactly
+// one task. Rows are tested on their bytes and only matches are decoded.
+//
+// The result streams: the cursor drains the ranges in file order while the
+// next few are scanned ahead. A range that has buffered RANGE_BUFFER_BYTES of
+// matches stops and is resumed once the cursor has taken half of them, so a
+// scan holds at most a few buffers of rows however many match.
+//
+// Tasks read the file directly instead of through the buffer pool, so one big
+// scan doesn't evict the pages everyone else is using.
+public class ParallelScanner {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MIN_RANGE = 1L << 20;
+    private static final long RANGE_BUFFER_BYTES = 1L << 20;
+
+    private final long threshold;
+    private final ForkJoinPool pool;
+    private final LongAdder bytesRead = new LongAdder();
+
+    // Tables smaller than thresholdBytes are left to the single-threaded scan
+    public ParallelScanner(long thresholdBytes, int parallelism) {
+        this.threshold = thresholdBytes;
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    public boolean worthIt(long bytes) {
+        return threshold > 0 && bytes >= threshold && pool.getParallelism() > 1;
+    }
+
+    public int parallelism() {
+        return pool.getParallelism();
+    }
+
+    // Rows in [from, to) of the channel that pass the filter and aren't in
+    // dead, in file order. from must be the start of a line. Each task reports
+    // the rows it read to progress after every buffer. Closing the scan stops
+    // the tasks still running.
+    public Scan scan(FileChannel channel, long from, long to, ByteCondition filter, Tombstones.View dead,
+                     Progress progress) {
+        long range = Math.max(MIN_RANGE, (to - from) / (pool.getParallelism() * 4L));
+        bytesRead.add(to - from);
+        List<Range> ranges = new ArrayList<>();
+        for (long start = from; start < to; start += range)
+            ranges.add(new Range(channel, from, to, start, Math.min(to, start + range), filter, dead, progress));
+        return new Scan(ranges, pool.getParallelism());
+    }
+
+    // Table bytes read by parallel scans, which bypass the buffer pool
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public final class Scan implements ResultCursor.Source, Closeable {
+        private final List<Range> ranges;
+        private final int window;
+        private int current;
+
+        private Scan(List<Range> ranges, int window) {
+            this.ranges = ranges;
+            this.window = window;
+            for (int i = 0; i < Math.min(window, ranges.size()); i++) ranges.get(i).resume();
+        }
+
+        @Override
+        public Row next() throws IOException {
+            while (current < ranges.size()) {
+                Row row = ranges.get(current).take();
+                if (row != null) return row;
+                current++;
+                // Keep the next window of ranges scanning ahead of the cursor
+                if (current + window - 1 < ranges.size()) ranges.get(current + window - 1).resume();
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            for (Range r : ranges) r.stop();
+        }
+    }
+
+    // One byte range and the matches scanned from it but not yet taken. Its
+    // scan position survives a pause, so a resumed task carries on from there.
+    private final class Range {
+        private final FileChannel channel;
+        private final long dataStart;
+        private final long dataEnd;
+        private final long to;
+        private final ByteCondition filter;
+        private final Tombstones.View dead;
+        private final Progress progress;
+
+        // Scan state, only touched by the one task running at a time
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private byte[] line = new byte[256];
+        private int len;
+        private boolean skipping;
+        private long pos;
+
+        // Shared with the cursor, guarded by this
+        private final ArrayDeque<Row> rows = new ArrayDeque<>();
+        private long buffered;
+        private boolean running;
+        private boolean done;
+        private boolean stopped;
+        private Exception failure;
+
+        Range(FileChannel channel, long dataStart, long dataEnd, long from, long to, ByteCondition filter,
+              Tombstones.View dead, Progress progress) {
+            this.channel = channel;
+            this.dataStart = dataStart;
+            this.dataEnd = dataEnd;
+            this.to = to;
+            this.filter = filter;
+            this.dead = dead;
+            this.progress = progress;
+            // Unless the range starts the data, it begins after the first newline at or past from - 1
+            this.skipping = from > dataStart;
+            this.pos = skipping ? from - 1 : from;
+        }
+
+        synchronized void resume() {
+            if (running || done || stopped) return;
+            running = true;
+            pool.execute(this::run);
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            rows.clear();
+            notifyAll();
+        }
+
+        // The next match, waiting for the task if need be; null once the range is used up
+        synchronized Row take() throws IOException {
+            while (rows.isEmpty() && !done && !stopped && failure == null) {
+                resume();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Parallel scan interrupted");
+                }
+            }
+            if (failure instanceof IOException e) throw e;
+            if (failure != null) throw (RuntimeException) failure;
+            Row row = rows.poll();
+            if (row == null) return null;
+            buffered -= TableCache.estimate(row.line());
+            if (buffered <= RANGE_BUFFER_BYTES / 2) resume();
+            return row;
+        }
+
+        // Scans until the buffer is full or the range is used up
+        private void run() {
+            try {
+                List<Row> batch = new ArrayList<>();
+                while (true) {
+                    boolean more = read(batch);
+                    // Pausing and publishing happen under one lock, so take() can't miss a resume
+                    synchronized (this) {
+                        if (stopped) {
+                            running = false;
+                            return;
+                        }
+                        for (Row row : batch) {
+                            rows.add(row);
+                            buffered += TableCache.estimate(row.line());
+                        }
+                        batch.clear();
+                        done = !more;
+                        notifyAll();
+                        if (done || buffered >= RANGE_BUFFER_BYTES) {
+                            running = false;
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    failure = e;
+                    running = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        // Reads one buffer's worth of lines into batch; false once the range
+        // is used up. A line that starts in this range is read to its newline,
+        // even past to.
+        private boolean read(List<Row> batch) throws IOException {
+            if (pos >= dataEnd) return finish(batch);
+            buf.clear().limit((int) Math.min(BUFFER_SIZE, dataEnd - pos));
+            int n = channel.read(buf, pos);
+            if (n <= 0) return finish(batch);
+            byte[] data = buf.array();
+            int lines = 0;
+            for (int i = 0; i < n; i++) {
+                byte b = data[i];
+                if (b == '\n') {
+                    if (!skipping) emit(batch, pos + i - len);
+                    skipping = false;
+                    len = 0;
+                    lines++;
+                    if (pos + i + 1 >= to) {
+                        progress.scanned(lines);
+                        return false;
+                    }
+                } else if (!skipping) {
+                    if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                    line[len++] = b;
+                }
+            }
+            progress.scanned(lines);
+            pos += n;
+            return true;
+        }
+
+        // A last row without its newline
+        private boolean finish(List<Row> batch) {
+            if (!skipping && len > 0) emit(batch, pos - len);
+            return false;
+        }
+
+        // offset is where the line starts in the file
+        private void emit(List<Row> batch, long offset) {
+            int n = len;
+            if (n > 0 && line[n - 1] == '\r') n--;
+            if (filter.test(line, 0, n) && !dead.contains(offset))
+                batch.add(new Row(new String(line, 0, n, StandardCharsets.UTF_8)));
+        }
+    }
+}
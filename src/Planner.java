@@ -0,0 +1,315 @@
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Cost-based choice of how a single-table query reads its rows. Every access
+// path that can serve the query is costed from the table's statistics and the
+// cheapest one wins; a Plan records the choice with the estimates behind it,
+// counts the rows that actually came out, and renders both for EXPLAIN.
+//
+// Costs are in units of one row read and split from the table file. Without
+// ANALYZE statistics the row count comes from the file size and predicates get
+// PostgreSQL's default selectivities.
+public final class Planner {
+    public enum Access {
+        INDEX("Index scan"),
+        CACHE("Cached scan"),
+        PARALLEL("Parallel scan"),
+        BYTES("Byte scan"),
+        SEGMENTS("Compressed scan"),
+        SCAN("Scan");
+
+        private final String label;
+
+        Access(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    // How an index is used: an equality lookup, a pass over a COLUMNAR
+    // projection, a B+tree range, or a B+tree walked in key order
+    public enum Lookup { EQUAL, MATCH, RANGE, ORDERED }
+
+    // A row fetched by its offset: a seek and most of a page read for it
+    private static final double RANDOM_ROW = 4;
+    // A row already parsed in the table cache
+    private static final double CACHED_ROW = 0.25;
+    // A row tested on its bytes and only decoded when it matches
+    private static final double BYTE_ROW = 0.7;
+    // A value tested in a primitive COLUMNAR array
+    private static final double COLUMNAR_ROW = 0.05;
+    // A row of a COMPRESSED segment: its share of the inflated predicate column
+    private static final double SEGMENT_ROW = 0.1;
+    // A matching row of a segment put back together from every column
+    private static final double DECODED_ROW = 0.4;
+    // Handing a scan to the fork-join pool and starting its ranges
+    private static final double PARALLEL_STARTUP = 5000;
+    // A match of a parallel scan passed from its range's buffer to the cursor
+    private static final double HANDED_ROW = 0.2;
+    // One comparison while sorting
+    private static final double COMPARE = 0.05;
+    private static final double DEFAULT_EQUAL = 0.005;
+    private static final double DEFAULT_RANGE = 1.0 / 3;
+    private static final double DEFAULT_GROUPS = 200;
+
+    private Planner() {
+    }
+
+    // What the table offers the query. index is null when none can serve it,
+    // cachedRows is -1 unless the table cache holds the table, parallelism is 0
+    // unless a parallel scan is allowed, and byteScan is false when the plain
+    // scan has to fill the table cache. segmentBytes is how much of the table
+    // file its COMPRESSED segments cover, 0 when there are none.
+    public record Options(Index index, Lookup lookup, boolean indexOrdered, long cachedRows, int parallelism,
+                          boolean byteScan, long segmentBytes) {}
+
+    // Bytes a row of the schema is assumed to take before the table is analyzed
+    public static int width(Schema schema) {
+        int width = 0;
+        for (Schema.Column c : schema.columns()) {
+            width += 1 + switch (c.type()) {
+                case INT -> 6;
+                case BIGINT -> 10;
+                case DOUBLE -> 8;
+                case VARCHAR -> Math.max(1, c.length() / 2);
+                case BOOLEAN -> 5;
+                case DATE -> 10;
+                case TEXT -> 16;
+            };
+        }
+        return Math.max(1, width);
+    }
+
+    public static Plan plan(String table, Condition where, String orderBy, long limit, long offset, long fileBytes,
+                            int width, TableStats stats, Options options) {
+        double rows = estimateRows(fileBytes, width, stats, options.cachedRows());
+        double selectivity = where == null ? 1 : selectivity(stats, where);
+        double matches = clamp(rows * selectivity, rows);
+        // A LIMIT stops the rows flowing once enough have matched, unless they must be sorted first
+        double needed = limit < 0 ? Double.MAX_VALUE : limit + offset;
+        double stopEarly = matches <= 0 ? 1 : Math.min(1, needed / matches);
+        // A LIMIT sorts through a heap of the rows it needs, each row costing the log of its size
+        double sort = matches * log2(Math.min(matches, needed)) * COMPARE;
+
+        Map<Access, Double> costs = new EnumMap<>(Access.class);
+        boolean cached = options.cachedRows() >= 0;
+        double unordered = orderBy == null ? stopEarly : 1;
+        double scanSort = orderBy == null ? 0 : sort;
+        if (cached) costs.put(Access.CACHE, rows * CACHED_ROW * unordered + scanSort);
+        // The ranges are tested on every core, but their matches reach the cursor one at a time
+        if (options.parallelism() > 1 && where != null)
+            costs.put(Access.PARALLEL,
+                    PARALLEL_STARTUP + rows * BYTE_ROW / options.parallelism() + matches * HANDED_ROW + scanSort);
+        if (options.byteScan() && where != null) costs.put(Access.BYTES, rows * BYTE_ROW * unordered + scanSort);
+        else costs.put(Access.SCAN, rows * unordered + scanSort);
+        if (options.segmentBytes() > 0 && fileBytes > 0) {
+            // The rows appended since the last segment are read as text
+            double sealed = rows * Math.min(1, (double) options.segmentBytes() / fileBytes);
+            double perRow = where == null ? DECODED_ROW : SEGMENT_ROW + selectivity * DECODED_ROW;
+            costs.put(Access.SEGMENTS, (sealed * perRow + rows - sealed) * unordered + scanSort);
+        }
+        if (options.index() != null) {
+            boolean ordered = orderBy == null || options.indexOrdered();
+            // Rows whose offsets the index hands over; a walk in key order hands over all of them
+            double fetched = options.lookup() == Lookup.ORDERED ? rows : matches;
+            double lookup = switch (options.lookup()) {
+                case EQUAL -> log2(rows);
+                case MATCH -> rows * COLUMNAR_ROW;
+                // Offsets come back in key order and are put in file order unless the query wants key order
+                case RANGE -> log2(rows) + (orderBy == null ? fetched * log2(fetched) * COMPARE : 0);
+                case ORDERED -> fetched;
+            };
+            double perRow = cached ? CACHED_ROW : RANDOM_ROW;
+            costs.put(Access.INDEX, lookup + fetched * perRow * (ordered ? stopEarly : 1) + (ordered ? 0 : sort));
+        }
+        Access best = Access.SCAN;
+        double bestCost = Double.MAX_VALUE;
+        for (Map.Entry<Access, Double> e : costs.entrySet()) {
+            if (e.getValue() < bestCost) {
+                best = e.getKey();
+                bestCost = e.getValue();
+            }
+        }
+        // A sort the access path leaves to be done is added as a step by whoever runs it
+        return new Plan(table, where, best, best == Access.INDEX ? options.index() : null, rows, matches, costs,
+                stats);
+    }
+
+    // Row count of the table as it is now
+    private static double estimateRows(long fileBytes, int width, TableStats stats, long cachedRows) {
+        if (cachedRows >= 0) return cachedRows;
+        // Scaled by how much the file has grown or shrunk since ANALYZE
+        if (stats != null && stats.rows() > 0 && stats.bytes() > 0)
+            return (double) stats.rows() * fileBytes / stats.bytes();
+        if (stats != null && stats.bytes() == fileBytes) return 0;
+        return Math.ceil((double) fileBytes / width);
+    }
+
+    private static double selectivity(TableStats stats, Condition where) {
+        TableStats.ColumnStats column = stats == null ? null : stats.column(where.column());
+        if (column != null) return column.selectivity(where);
+        return where.op().equals("=") ? DEFAULT_EQUAL : DEFAULT_RANGE;
+    }
+
+    // Groups an aggregate is expected to produce from rows input rows
+    public static double groups(TableStats stats, String groupBy, double rows) {
+        if (groupBy == null) return 1;
+        TableStats.ColumnStats column = stats == null ? null : stats.column(groupBy);
+        return clamp(column != null ? column.distinct() : DEFAULT_GROUPS, rows);
+    }
+
+    // Rows an equi-join of two inputs is expected to produce: every value of
+    // the join column meets its matches on the other side, so the product of
+    // the inputs shrinks by the larger distinct count. A column without
+    // statistics is taken to be a key, distinct in every row.
+    public static double joinRows(double left, TableStats.ColumnStats leftColumn, double right,
+                                  TableStats.ColumnStats rightColumn) {
+        double leftDistinct = leftColumn == null ? left : Math.min(left, leftColumn.distinct());
+        double rightDistinct = rightColumn == null ? right : Math.min(right, rightColumn.distinct());
+        double distinct = Math.max(leftDistinct, rightDistinct);
+        return distinct <= 0 ? 0 : clamp(left * right / distinct, left * right);
+    }
+
+    // At least one row when there are any: an estimate of zero is never trusted
+    private static double clamp(double estimate, double rows) {
+        return rows <= 0 ? 0 : Math.max(1, Math.min(rows, estimate));
+    }
+
+    private static double log2(double n) {
+        return n <= 1 ? 0 : Math.log(n) / Math.log(2);
+    }
+
+    // The chosen access path with what the planner expected of it. Steps are
+    // what happens to its rows on the way out (a sort, an aggregate, a limit),
+    // innermost first, each with its estimated and actual output. The plan of
+    // a join is the probe side's, with the build side's plan attached.
+    public static final class Plan {
+        private record Step(Supplier<String> label, double estimated, LongSupplier actual) {}
+
+        private final String table;
+        private final Condition where;
+        private final Access access;
+        private final Index index;
+        private final double tableRows;
+        private final double estimated;
+        private final Map<Access, Double> costs;
+        private final TableStats stats;
+        private final List<Step> steps = new ArrayList<>();
+        private Plan build;
+        private long produced;
+
+        private Plan(String table, Condition where, Access access, Index index, double tableRows, double estimated,
+                     Map<Access, Double> costs, TableStats stats) {
+            this.table = table;
+            this.where = where;
+            this.access = access;
+            this.index = index;
+            this.tableRows = tableRows;
+            this.estimated = estimated;
+            this.costs = costs;
+            this.stats = stats;
+        }
+
+        public Access access() {
+            return access;
+        }
+
+        // Rows matching the WHERE clause the planner expects
+        public double estimated() {
+            return estimated;
+        }
+
+        // Rows in the table as the planner counted them
+        public double tableRows() {
+            return tableRows;
+        }
+
+        // Called for every row the access path hands over
+        public void produced(Row row) {
+            if (row != null) produced++;
+        }
+
+        public long produced() {
+            return produced;
+        }
+
+        public void step(String label, double estimated, LongSupplier actual) {
+            step(() -> label, estimated, actual);
+        }
+
+        // A step whose label is only known once it has run
+        public void step(Supplier<String> label, double estimated, LongSupplier actual) {
+            steps.add(new Step(label, estimated, actual));
+        }
+
+        // The plan of the hash join's build side, when this is its probe side
+        public void build(Plan build) {
+            this.build = build;
+        }
+
+        // The output rows the outermost step is expected to produce
+        public double output() {
+            return steps.isEmpty() ? estimated : steps.get(steps.size() - 1).estimated();
+        }
+
+        public String explain() {
+            StringBuilder sb = new StringBuilder("---- EXPLAIN ").append(table);
+            if (build != null) sb.append(" JOIN ").append(build.table);
+            sb.append(" ----\n");
+            String indent = "";
+            for (int i = steps.size() - 1; i >= 0; i--) {
+                Step s = steps.get(i);
+                sb.append(indent).append(s.label().get()).append(rows(s.estimated(), s.actual().getAsLong()))
+                        .append('\n');
+                indent += "  ";
+            }
+            if (build == null) {
+                access(sb.append(indent));
+                notes(sb, "");
+                return sb.toString();
+            }
+            access(sb.append(indent).append("Probe: "));
+            build.access(sb.append(indent).append("Build: "));
+            notes(sb, " (" + table + ")");
+            build.notes(sb.append('\n'), " (" + build.table + ")");
+            return sb.toString();
+        }
+
+        private void access(StringBuilder sb) {
+            sb.append(access.label());
+            if (index != null) sb.append(" using ").append(index.name()).append(" (").append(index.type()).append(")");
+            sb.append(" on ").append(table);
+            if (where != null) sb.append(" WHERE ").append(where);
+            sb.append(String.format(" (cost %.1f, table rows %.0f, est. rows %.0f, actual rows %d)%n",
+                    costs.get(access), tableRows, estimated, produced));
+        }
+
+        // The costs of the other paths and the statistics they came from; of
+        // table, when suffix names it
+        private void notes(StringBuilder sb, String suffix) {
+            StringBuilder others = new StringBuilder();
+            for (Map.Entry<Access, Double> e : costs.entrySet()) {
+                if (e.getKey() == access) continue;
+                others.append(others.length() == 0 ? "" : ", ").append(e.getKey().label())
+                        .append(String.format(" %.1f", e.getValue()));
+            }
+            if (others.length() > 0) sb.append("Also costed").append(suffix).append(": ").append(others).append('\n');
+            if (stats == null) {
+                sb.append("Statistics").append(suffix).append(": none; estimates use defaults (run ANALYZE ")
+                        .append(table).append(")");
+            } else {
+                sb.append("Statistics").append(suffix).append(": ").append(stats.rows()).append(" rows, analyzed ")
+                        .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(stats.analyzedAt())));
+            }
+        }
+
+        private static String rows(double estimated, long actual) {
+            return String.format(" (est. rows %.0f, actual rows %d)", estimated, actual);
+        }
+    }
+}
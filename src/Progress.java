@@ -0,0 +1,56 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Rows a running statement has looked at so far, and a flag another thread
+// can set to stop it. Scan loops report as they go and are stopped at their
+// next report with a CancellationException; no thread is interrupted, since
+// an interrupt would close the FileChannels the buffer pool shares.
+public class Progress {
+    // Reported by statements nobody is watching
+    public static final Progress NONE = new Progress(false);
+
+    // Rows tick() counts before passing them on
+    private static final int BATCH = 1024;
+
+    private final boolean tracked;
+    private final LongAdder scanned = new LongAdder();
+    private volatile boolean cancelled;
+    // tick()'s rows not yet added to scanned; only one thread ticks at a time
+    private int pending;
+
+    public Progress() {
+        this(true);
+    }
+
+    private Progress(boolean tracked) {
+        this.tracked = tracked;
+    }
+
+    // One row from a single-threaded loop
+    public void tick() {
+        if (tracked && ++pending == BATCH) {
+            pending = 0;
+            scanned(BATCH);
+        }
+    }
+
+    // Rows from any thread
+    public void scanned(long rows) {
+        if (!tracked) return;
+        scanned.add(rows);
+        if (cancelled) throw new CancellationException("Statement cancelled.");
+    }
+
+    // Includes the rows tick() is still holding back
+    public long rowsScanned() {
+        return scanned.sum() + pending;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.util.*;
+
+// Pull-based result of a SELECT. Rows are produced from the table as they
+// are fetched, so memory stays flat however large the result is. LIMIT and
+// OFFSET are applied here, and a LIMIT stops the underlying scan early.
+public class ResultCursor implements Iterator<Row>, Closeable {
+    public static final int DEFAULT_FETCH_SIZE = 500;
+
+    // Produces the next matching row, or null when there are none left
+    @FunctionalInterface
+    public interface Source {
+        Row next() throws IOException;
+    }
+
+    private final String title;
+    private final String[] columns;
+    private final Source source;
+    private Closeable onClose;
+    private final long limit;
+    private long toSkip;
+    private long returned;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private final ArrayDeque<Row> buffer = new ArrayDeque<>();
+    private boolean exhausted;
+    private boolean closed;
+    private Planner.Plan plan;
+
+    // limit < 0 means no limit
+    public ResultCursor(String title, String[] columns, Source source, long limit, long offset, Closeable onClose) {
+        this.title = title;
+        this.columns = columns;
+        this.source = source;
+        this.limit = limit;
+        this.toSkip = Math.max(0, offset);
+        this.onClose = onClose;
+    }
+
+    public String title() {
+        return title;
+    }
+
+    public String[] columns() {
+        return columns.clone();
+    }
+
+    // How the rows are read, for EXPLAIN; null for results that don't come from a table
+    public Planner.Plan plan() {
+        return plan;
+    }
+
+    public void setPlan(Planner.Plan plan) {
+        this.plan = plan;
+    }
+
+    // Rows handed out so far, after OFFSET and LIMIT
+    public long returned() {
+        return returned;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = Math.max(1, fetchSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (buffer.isEmpty()) fill();
+        return !buffer.isEmpty();
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return buffer.poll();
+    }
+
+    // Up to fetchSize rows; empty once the result is exhausted
+    public List<Row> nextBatch() {
+        if (buffer.isEmpty()) fill();
+        List<Row> batch = new ArrayList<>(buffer);
+        buffer.clear();
+        return batch;
+    }
+
+    private void fill() {
+        if (exhausted) return;
+        try {
+            while (buffer.size() < fetchSize) {
+                if (limit >= 0 && returned >= limit) {
+                    finish();
+                    return;
+                }
+                Row row = source.next();
+                if (row == null) {
+                    finish();
+                    return;
+                }
+                if (toSkip > 0) {
+                    toSkip--;
+                    continue;
+                }
+                buffer.add(row);
+                returned++;
+            }
+        } catch (IOException e) {
+            finish();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void finish() {
+        exhausted = true;
+        try {
+            close();
+        } catch (IOException ignored) {
+            // Nothing left to read from it anyway
+        }
+    }
+
+    // more is closed with the cursor, after what the cursor closes already
+    public void alsoClose(Closeable more) throws IOException {
+        if (closed) {
+            more.close();
+            return;
+        }
+        Closeable first = onClose;
+        onClose = first == null ? more : () -> {
+            try {
+                first.close();
+            } finally {
+                more.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        exhausted = true;
+        if (onClose != null) onClose.close();
+    }
+}
@@ -0,0 +1,6 @@
+// One result row, kept as the stored line until its values are asked for
+public record Row(String line) {
+    public String[] values() {
+        return line.split(",", -1);
+    }
+}
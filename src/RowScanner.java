@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Walks the rows of a table file without decoding them. Bytes are read into
+// one reusable window and each call to next() just finds the bounds of the
+// following line, so a scan allocates nothing per row; callers decode only
+// the rows they keep, with line().
+public class RowScanner {
+    private static final int WINDOW = 256 * 1024;
+
+    private final FileChannel channel;
+    private long end;
+    private byte[] buf = new byte[WINDOW];
+    private ByteBuffer wrapper = ByteBuffer.wrap(buf);
+    private long bufStart;
+    private int bufLen;
+    private long next;
+    private long offset = -1;
+    private int lineStart;
+    private int lineEnd;
+
+    // Rows between byte offsets from (the start of a line) and to
+    public RowScanner(FileChannel channel, long from, long to) {
+        this.channel = channel;
+        this.next = from;
+        this.end = to;
+        this.bufStart = from;
+    }
+
+    // Moves to the next row; false at the end
+    public boolean next() throws IOException {
+        if (next >= end) return false;
+        int s = (int) (next - bufStart);
+        int i = s;
+        while (true) {
+            while (i < bufLen && buf[i] != '\n') i++;
+            if (i < bufLen || bufStart + bufLen >= end) break;
+            // The row runs past the window: slide the window to it, growing it if the row alone fills it
+            int scanned = i - s;
+            if (s == 0 && bufLen == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+                wrapper = ByteBuffer.wrap(buf);
+            }
+            fill(next);
+            s = 0;
+            i = scanned;
+        }
+        offset = next;
+        lineStart = s;
+        lineEnd = i;
+        next = bufStart + i + 1;
+        if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') lineEnd--;
+        return true;
+    }
+
+    private void fill(long pos) throws IOException {
+        bufStart = pos;
+        bufLen = 0;
+        int want = (int) Math.min(buf.length, end - pos);
+        wrapper.clear().limit(want);
+        while (wrapper.hasRemaining()) {
+            int n = channel.read(wrapper, pos + wrapper.position());
+            if (n <= 0) {
+                // The file shrank underneath us
+                end = pos + wrapper.position();
+                break;
+            }
+        }
+        bufLen = wrapper.position();
+    }
+
+    // The current row is buffer()[start(), end()), without its line terminator
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int start() {
+        return lineStart;
+    }
+
+    public int end() {
+        return lineEnd;
+    }
+
+    // Byte offset of the current row in the file
+    public long offset() {
+        return offset;
+    }
+
+    // Bytes the current row takes in the file, line terminator included
+    public int length() {
+        return (int) (Math.min(next, end) - offset);
+    }
+
+    public String line() {
+        return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+}
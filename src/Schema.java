@@ -0,0 +1,166 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+// Column types of a table, kept next to it in <table>.schema as one
+// "name TYPE" line per column. Tables created without types have no schema
+// file and every column is TEXT. Typed values are checked on the way in and
+// stored in one canonical spelling, so equality stays a plain string compare
+// (WHERE id=07 finds the row stored as 7) and numbers still compare
+// numerically through Values.compare.
+public final class Schema {
+    public enum Type {
+        TEXT, INT, BIGINT, DOUBLE, VARCHAR, BOOLEAN, DATE;
+
+        // Types a COLUMNAR projection can hold in a primitive array
+        public boolean primitive() {
+            return this != TEXT && this != VARCHAR;
+        }
+    }
+
+    public record Column(String name, Type type, int length) {
+        public String typeName() {
+            return type == Type.VARCHAR ? "VARCHAR(" + length + ")" : type.name();
+        }
+
+        // The canonical spelling of value, or IllegalArgumentException if it isn't one of ours
+        public String normalize(String value) {
+            try {
+                return switch (type) {
+                    case TEXT -> value;
+                    case VARCHAR -> {
+                        if (value.length() > length) throw new IllegalArgumentException();
+                        yield value;
+                    }
+                    case INT -> Integer.toString(Integer.parseInt(value.trim()));
+                    case BIGINT -> Long.toString(Long.parseLong(value.trim()));
+                    case DOUBLE -> new BigDecimal(value.trim()).stripTrailingZeros().toPlainString();
+                    case BOOLEAN -> switch (value.trim().toLowerCase()) {
+                        case "true", "1" -> "true";
+                        case "false", "0" -> "false";
+                        default -> throw new IllegalArgumentException();
+                    };
+                    case DATE -> LocalDate.parse(value.trim()).toString();
+                };
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw invalid(value);
+            } catch (IllegalArgumentException e) {
+                throw e.getMessage() == null ? invalid(value) : e;
+            }
+        }
+
+        private IllegalArgumentException invalid(String value) {
+            return new IllegalArgumentException("Invalid " + typeName() + " value for " + name + ": '" + value + "'");
+        }
+    }
+
+    private final Column[] columns;
+
+    public Schema(Column[] columns) {
+        this.columns = columns.clone();
+    }
+
+    // type is e.g. INT, VARCHAR(20), or null for an untyped column
+    public static Column column(String name, String type) {
+        if (type == null) return new Column(name, Type.TEXT, 0);
+        String t = type.toUpperCase().replace(" ", "");
+        if (t.equals("INTEGER")) t = "INT";
+        if (t.startsWith("VARCHAR(") && t.endsWith(")")) {
+            int length;
+            try {
+                length = Integer.parseInt(t.substring(8, t.length() - 1));
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length <= 0) throw new IllegalArgumentException("Invalid VARCHAR length: " + type);
+            return new Column(name, Type.VARCHAR, length);
+        }
+        try {
+            Type parsed = Type.valueOf(t);
+            if (parsed != Type.VARCHAR) return new Column(name, parsed, 0);
+        } catch (IllegalArgumentException ignored) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Unknown column type: " + type
+                + " (expected INT, BIGINT, DOUBLE, VARCHAR(n), BOOLEAN or DATE)");
+    }
+
+    public static File file(File tableFile) {
+        String name = tableFile.getName();
+        return new File(tableFile.getParentFile(), name.substring(0, name.length() - ".txt".length()) + ".schema");
+    }
+
+    // The table's schema, or an all-TEXT one when it has no schema file
+    public static Schema load(File tableFile, String[] header) throws IOException {
+        File f = file(tableFile);
+        Column[] columns = new Column[header.length];
+        Map<String, String> types = new HashMap<>();
+        if (f.exists()) {
+            for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+                int space = line.indexOf(' ');
+                if (space > 0) types.put(line.substring(0, space).toLowerCase(), line.substring(space + 1));
+            }
+        }
+        for (int i = 0; i < header.length; i++) columns[i] = column(header[i], types.get(header[i].toLowerCase()));
+        return new Schema(columns);
+    }
+
+    // Written and forced before the table file exists, so a table never lacks its types
+    public void save(File tableFile) throws IOException {
+        File f = file(tableFile);
+        if (!typed()) {
+            f.delete();
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Column c : columns) sb.append(c.name()).append(' ').append(c.typeName()).append('\n');
+        Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+    }
+
+    public boolean typed() {
+        for (Column c : columns)
+            if (c.type() != Type.TEXT) return true;
+        return false;
+    }
+
+    public Column column(int i) {
+        return columns[i];
+    }
+
+    // Null when there is no such column
+    public Column column(String name) {
+        for (Column c : columns)
+            if (c.name().equalsIgnoreCase(name)) return c;
+        return null;
+    }
+
+    public List<Column> columns() {
+        return List.of(columns);
+    }
+
+    public String[] normalize(String[] values) {
+        if (!typed() || values.length != columns.length) return values;
+        String[] out = new String[values.length];
+        for (int i = 0; i < values.length; i++) out[i] = columns[i].normalize(values[i]);
+        return out;
+    }
+
+    // Same condition with its constants in the column's canonical spelling.
+    // Range bounds on integer columns may have a fraction (age < 30.5).
+    public Condition normalize(Condition where) {
+        Column c = where == null ? null : column(where.column());
+        if (c == null || c.type() == Type.TEXT || where.op().equals("LIKE")) return where;
+        if (!where.op().equals("=") && (c.type() == Type.INT || c.type() == Type.BIGINT))
+            c = new Column(c.name(), Type.DOUBLE, 0);
+        return new Condition(where.column(), where.op(), c.normalize(where.value()),
+                where.upper() == null ? null : c.normalize(where.upper()));
+    }
+}
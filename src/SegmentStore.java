@@ -0,0 +1,639 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+// COMPRESSED projection of a table, kept in <table>.seg. The rows are cut into
+// segments of SEGMENT_ROWS, and each column of a segment is a block of its own,
+// deflated with java.util.zip so a scan can inflate just the columns it needs:
+//
+//   PLAIN  the values one after another
+//   DICT   the segment's distinct values once, then a small code per row
+//   RLE    the distinct values, then (code, run length) pairs, for sorted or
+//          clustered columns where equal values come in long runs
+//
+// A predicate on a DICT or RLE column is tested once per distinct value and
+// then resolved on the codes, and a segment without a live match is skipped
+// before its other columns are inflated.
+//
+// The table file stays the logged copy of the rows. Segments are sealed from
+// it once SEGMENT_ROWS rows have been appended past the last one, so scans
+// read the compressed segments and then the few rows after them as text. Like
+// an index, the file is rewritten whenever the table is.
+public class SegmentStore implements Closeable {
+    public static final int SEGMENT_ROWS = Integer.getInteger("minidbms.segmentRows", 1 << 16);
+    private static final int MAGIC = 0x53454731;
+    private static final byte PLAIN = 0;
+    private static final byte DICT = 1;
+    private static final byte RLE = 2;
+    // Codes stay small enough to be one or two bytes before deflating
+    private static final int MAX_DICTIONARY = 1 << 14;
+
+    // A sealed segment: the table rows from offset start up to end. Block 0
+    // holds their offsets, block 1 + c column c; positions are in the .seg file.
+    public record Segment(int rows, long start, long end, long[] positions, int[] lengths, int[] rawLengths,
+                          byte[] encodings) {}
+
+    private final File file;
+    private final int columns;
+    private final List<Segment> segments = new ArrayList<>();
+    // Table offset the segments reach; rows from here on are only in the table file
+    private long end;
+    // Rows appended past end since the last segment was sealed
+    private long pending;
+    // A row that doesn't split into one value per column stops sealing until the next rebuild
+    private boolean stuck;
+    private FileOutputStream out;
+
+    private SegmentStore(File file, int columns) {
+        this.file = file;
+        this.columns = columns;
+    }
+
+    public static File file(File tableFile) {
+        String name = tableFile.getName();
+        return new File(tableFile.getParentFile(), name.substring(0, name.length() - ".txt".length()) + ".seg");
+    }
+
+    // Starts the projection of a table from its rows so far
+    public static SegmentStore create(BufferPool pool, File tableFile, int columns) throws IOException {
+        SegmentStore store = new SegmentStore(file(tableFile), columns);
+        store.rebuild(pool, tableFile);
+        return store;
+    }
+
+    // Reads the segments back, dropping a torn one at the end; rebuilt from the
+    // table if the file can't describe it
+    public static SegmentStore load(BufferPool pool, File tableFile, int columns) throws IOException {
+        SegmentStore store = new SegmentStore(file(tableFile), columns);
+        if (!store.read(tableFile.length())) {
+            store.rebuild(pool, tableFile);
+            return store;
+        }
+        store.pending = store.countPending(pool, tableFile);
+        if (store.pending >= SEGMENT_ROWS) store.seal(pool, tableFile);
+        return store;
+    }
+
+    private boolean read(long tableLength) throws IOException {
+        long good;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != columns) return false;
+            end = in.readLong();
+            good = 16;
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                long crc;
+                try {
+                    in.readFully(payload);
+                    crc = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if (check.getValue() != crc) break;
+                Segment s = parse(payload, good + 4);
+                if (s.end() > tableLength) return false;
+                segments.add(s);
+                end = s.end();
+                good += 4 + length + 8;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        // Cut off a segment that was being written when the process stopped
+        if (file.length() > good) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+        }
+        return end <= tableLength;
+    }
+
+    private Segment parse(byte[] payload, long at) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int rows = in.readInt();
+        long start = in.readLong();
+        long segmentEnd = in.readLong();
+        int blocks = columns + 1;
+        long[] positions = new long[blocks];
+        int[] lengths = new int[blocks];
+        int[] rawLengths = new int[blocks];
+        byte[] encodings = new byte[blocks];
+        long pos = at + 20;
+        for (int b = 0; b < blocks; b++) {
+            encodings[b] = in.readByte();
+            rawLengths[b] = in.readInt();
+            lengths[b] = in.readInt();
+            positions[b] = pos + 9;
+            in.skipNBytes(lengths[b]);
+            pos += 9 + lengths[b];
+        }
+        return new Segment(rows, start, segmentEnd, positions, lengths, rawLengths, encodings);
+    }
+
+    // Re-reads the whole table and replaces the file
+    public synchronized void rebuild(BufferPool pool, File tableFile) throws IOException {
+        close();
+        segments.clear();
+        stuck = false;
+        pending = 0;
+        File temp = new File(file + ".tmp");
+        try (TableReader reader = new TableReader(pool, tableFile)) {
+            reader.readLine();
+            end = reader.position();
+            try (FileOutputStream tmp = new FileOutputStream(temp)) {
+                DataOutputStream header = new DataOutputStream(tmp);
+                header.writeInt(MAGIC);
+                header.writeInt(columns);
+                header.writeLong(end);
+                long length = 16;
+                while (true) {
+                    byte[] segment = next(reader);
+                    if (segment == null) break;
+                    length = append(tmp, segment, length);
+                }
+                tmp.getFD().sync();
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        pending = countPending(pool, tableFile);
+    }
+
+    // Called for every row appended to the table; seals a segment once enough have come in
+    public synchronized void appended(BufferPool pool, File tableFile) throws IOException {
+        if (++pending >= SEGMENT_ROWS && !stuck) seal(pool, tableFile);
+    }
+
+    private void seal(BufferPool pool, File tableFile) throws IOException {
+        try (TableReader reader = new TableReader(pool, tableFile)) {
+            reader.seek(end);
+            FileOutputStream o = out();
+            long length = file.length();
+            while (pending >= SEGMENT_ROWS) {
+                byte[] segment = next(reader);
+                if (segment == null) {
+                    // Fewer rows than counted: start counting again from the table
+                    pending = countPending(pool, tableFile);
+                    break;
+                }
+                length = append(o, segment, length);
+                pending -= segments.get(segments.size() - 1).rows();
+            }
+        }
+    }
+
+    // Encodes the next SEGMENT_ROWS rows of reader, or returns null if there
+    // aren't that many left (or one of them can't be split into its values)
+    private byte[] next(TableReader reader) throws IOException {
+        long start = reader.position();
+        String[][] values = new String[columns][SEGMENT_ROWS];
+        long[] offsets = new long[SEGMENT_ROWS];
+        int rows = 0;
+        while (rows < SEGMENT_ROWS) {
+            String line = reader.readLine();
+            if (line == null) break;
+            String[] fields = line.split(",", columns);
+            if (fields.length != columns) {
+                stuck = true;
+                break;
+            }
+            offsets[rows] = reader.offset();
+            for (int c = 0; c < columns; c++) values[c][rows] = fields[c];
+            rows++;
+        }
+        if (rows < SEGMENT_ROWS) {
+            reader.seek(start);
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream o = new DataOutputStream(bytes);
+        o.writeInt(rows);
+        o.writeLong(start);
+        o.writeLong(reader.position());
+        Encoder delta = new Encoder();
+        long previous = start;
+        for (int i = 0; i < rows; i++) {
+            delta.varint(offsets[i] - previous);
+            previous = offsets[i];
+        }
+        block(o, PLAIN, delta.bytes());
+        for (int c = 0; c < columns; c++) encode(o, values[c], rows);
+        return bytes.toByteArray();
+    }
+
+    // Appends one encoded segment as [length][payload][crc] and records where its blocks are
+    private long append(OutputStream o, byte[] payload, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream d = new DataOutputStream(o);
+        d.writeInt(payload.length);
+        d.write(payload);
+        d.writeLong(crc.getValue());
+        d.flush();
+        Segment s = parse(payload, length + 4);
+        segments.add(s);
+        end = s.end();
+        return length + 4 + payload.length + 8;
+    }
+
+    private static void encode(DataOutputStream o, String[] values, int rows) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] codes = new int[rows];
+        int limit = Math.min(MAX_DICTIONARY, rows / 2);
+        for (int i = 0; i < rows; i++) {
+            Integer id = ids.get(values[i]);
+            if (id == null) {
+                if (dictionary.size() >= limit) {
+                    Encoder plain = new Encoder();
+                    for (int j = 0; j < rows; j++) plain.string(values[j]);
+                    block(o, PLAIN, plain.bytes());
+                    return;
+                }
+                id = dictionary.size();
+                ids.put(values[i], id);
+                dictionary.add(values[i]);
+            }
+            codes[i] = id;
+        }
+        Encoder e = new Encoder();
+        e.varint(dictionary.size());
+        for (String v : dictionary) e.string(v);
+        int runs = 1;
+        for (int i = 1; i < rows; i++)
+            if (codes[i] != codes[i - 1]) runs++;
+        // Runs pay off once they average four rows
+        if (runs * 4L <= rows) {
+            e.varint(runs);
+            for (int i = 0; i < rows; ) {
+                int j = i;
+                while (j < rows && codes[j] == codes[i]) j++;
+                e.varint(codes[i]);
+                e.varint(j - i);
+                i = j;
+            }
+            block(o, RLE, e.bytes());
+        } else {
+            for (int code : codes) e.varint(code);
+            block(o, DICT, e.bytes());
+        }
+    }
+
+    private static void block(DataOutputStream o, byte encoding, byte[] raw) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(raw.length / 4 + 64);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) packed.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        o.writeByte(encoding);
+        o.writeInt(raw.length);
+        o.writeInt(packed.size());
+        packed.writeTo(o);
+    }
+
+    // Rows in the table file past the last segment
+    private long countPending(BufferPool pool, File tableFile) throws IOException {
+        long n = 0;
+        try (TableReader reader = new TableReader(pool, tableFile)) {
+            reader.seek(end);
+            while (reader.readLine() != null) n++;
+        }
+        return n;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    // Rows held in segments, deleted ones included until the table is rewritten
+    public synchronized long rows() {
+        long n = 0;
+        for (Segment s : segments) n += s.rows();
+        return n;
+    }
+
+    public synchronized long end() {
+        return end;
+    }
+
+    public long bytes() {
+        return file.length();
+    }
+
+    // The segments sealed so far, read through a channel of their own so a
+    // rebuild that replaces the file doesn't pull them away from a running scan
+    public synchronized Snapshot snapshot() throws IOException {
+        return new Snapshot(List.copyOf(segments), end, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    public synchronized void force() throws IOException {
+        if (out != null) out.getFD().sync();
+    }
+
+    private FileOutputStream out() throws IOException {
+        if (out == null) out = new FileOutputStream(file, true);
+        return out;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) out.close();
+        out = null;
+    }
+
+    public synchronized void delete() throws IOException {
+        close();
+        file.delete();
+    }
+
+    public final class Snapshot implements Closeable {
+        private final List<Segment> segments;
+        private final long end;
+        private final FileChannel channel;
+
+        private Snapshot(List<Segment> segments, long end, FileChannel channel) {
+            this.segments = segments;
+            this.end = end;
+            this.channel = channel;
+        }
+
+        // Table offset the rows that follow the segments start at
+        public long end() {
+            return end;
+        }
+
+        // The live rows of the segments that pass where (on column index), or all of them when it is null
+        public ResultCursor.Source rows(int index, Condition where, Tombstones.View dead, Progress progress) {
+            return new ResultCursor.Source() {
+                int next;
+                Segment segment;
+                long[] offsets;
+                Column[] decoded;
+                BitSet hits;
+                int row = -1;
+
+                @Override
+                public Row next() throws IOException {
+                    while (true) {
+                        if (segment != null) {
+                            row = hits == null ? row + 1 : hits.nextSetBit(row + 1);
+                            if (row >= 0 && row < segment.rows()) {
+                                if (offsets != null && dead.contains(offsets[row])) continue;
+                                return new Row(line(decoded, row));
+                            }
+                            segment = null;
+                        }
+                        if (next == segments.size()) return null;
+                        open(segments.get(next++));
+                    }
+                }
+
+                private void open(Segment s) throws IOException {
+                    progress.scanned(s.rows());
+                    decoded = new Column[columns];
+                    hits = null;
+                    if (where != null) {
+                        decoded[index] = column(s, index);
+                        hits = decoded[index].match(where, s.rows());
+                        if (hits.isEmpty()) return;
+                    }
+                    // Row offsets are only needed to look the rows up in the tombstones
+                    offsets = dead.isEmpty() ? null : offsets(s);
+                    // The other columns are only inflated for a segment with a live match
+                    if (hits != null && offsets != null) {
+                        boolean live = false;
+                        for (int i = hits.nextSetBit(0); i >= 0 && !live; i = hits.nextSetBit(i + 1))
+                            live = !dead.contains(offsets[i]);
+                        if (!live) return;
+                    }
+                    for (int c = 0; c < columns; c++)
+                        if (decoded[c] == null) decoded[c] = column(s, c);
+                    segment = s;
+                    row = -1;
+                }
+            };
+        }
+
+        private long[] offsets(Segment s) throws IOException {
+            Decoder d = new Decoder(inflate(s, 0));
+            long[] offsets = new long[s.rows()];
+            long previous = s.start();
+            for (int i = 0; i < offsets.length; i++) {
+                previous += d.varint();
+                offsets[i] = previous;
+            }
+            return offsets;
+        }
+
+        private Column column(Segment s, int c) throws IOException {
+            return Column.decode(s.encodings()[c + 1], inflate(s, c + 1), s.rows());
+        }
+
+        private byte[] inflate(Segment s, int block) throws IOException {
+            ByteBuffer packed = ByteBuffer.allocate(s.lengths()[block]);
+            long pos = s.positions()[block];
+            while (packed.hasRemaining()) {
+                int n = channel.read(packed, pos + packed.position());
+                if (n < 0) throw new IOException("Segment file is truncated: " + file);
+            }
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(packed.array());
+                byte[] raw = new byte[s.rawLengths()[block]];
+                int n = 0;
+                while (n < raw.length) {
+                    int k = inflater.inflate(raw, n, raw.length - n);
+                    if (k == 0 && (inflater.finished() || inflater.needsInput()))
+                        throw new IOException("Corrupt segment block in " + file);
+                    n += k;
+                }
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt segment block in " + file, e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private String line(Column[] decoded, int row) {
+            StringBuilder sb = new StringBuilder();
+            for (int c = 0; c < decoded.length; c++) {
+                if (c > 0) sb.append(',');
+                sb.append(decoded[c].get(row));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // One column of a segment, inflated. PLAIN values are only turned into
+    // strings when a row asks for them.
+    private static final class Column {
+        private final byte[] raw;
+        private final int[] starts;
+        private final String[] values;
+        private final String[] dictionary;
+        private int[] codes;
+        private final int[] runCodes;
+        private final int[] runLengths;
+
+        private Column(byte[] raw, int[] starts, String[] dictionary, int[] codes, int[] runCodes,
+                       int[] runLengths) {
+            this.raw = raw;
+            this.starts = starts;
+            this.values = starts == null ? null : new String[starts.length];
+            this.dictionary = dictionary;
+            this.codes = codes;
+            this.runCodes = runCodes;
+            this.runLengths = runLengths;
+        }
+
+        static Column decode(byte encoding, byte[] raw, int rows) throws IOException {
+            Decoder d = new Decoder(raw);
+            if (encoding == PLAIN) {
+                // Where each value's length prefix is
+                int[] starts = new int[rows];
+                for (int i = 0; i < rows; i++) starts[i] = d.skipString();
+                return new Column(raw, starts, null, null, null, null);
+            }
+            String[] dictionary = new String[(int) d.varint()];
+            for (int i = 0; i < dictionary.length; i++) dictionary[i] = d.string();
+            if (encoding == DICT) {
+                int[] codes = new int[rows];
+                for (int i = 0; i < rows; i++) codes[i] = (int) d.varint();
+                return new Column(null, null, dictionary, codes, null, null);
+            }
+            if (encoding != RLE) throw new IOException("Unknown segment encoding " + encoding);
+            int runs = (int) d.varint();
+            int[] runCodes = new int[runs];
+            int[] runLengths = new int[runs];
+            for (int i = 0; i < runs; i++) {
+                runCodes[i] = (int) d.varint();
+                runLengths[i] = (int) d.varint();
+            }
+            return new Column(null, null, dictionary, null, runCodes, runLengths);
+        }
+
+        String get(int row) {
+            if (values != null) {
+                if (values[row] == null) values[row] = new Decoder(raw, starts[row]).string();
+                return values[row];
+            }
+            if (codes == null) {
+                codes = new int[Arrays.stream(runLengths).sum()];
+                int at = 0;
+                for (int r = 0; r < runCodes.length; r++) {
+                    Arrays.fill(codes, at, at + runLengths[r], runCodes[r]);
+                    at += runLengths[r];
+                }
+            }
+            return dictionary[codes[row]];
+        }
+
+        // The rows that pass where. A dictionary column tests each distinct
+        // value once and then only compares codes, or whole runs of them.
+        BitSet match(Condition where, int rows) {
+            BitSet hits = new BitSet(rows);
+            if (values != null) {
+                for (int i = 0; i < rows; i++)
+                    if (where.matches(get(i))) hits.set(i);
+                return hits;
+            }
+            boolean[] passes = new boolean[dictionary.length];
+            boolean any = false;
+            for (int k = 0; k < dictionary.length; k++) any |= passes[k] = where.matches(dictionary[k]);
+            if (!any) return hits;
+            if (codes != null) {
+                for (int i = 0; i < rows; i++)
+                    if (passes[codes[i]]) hits.set(i);
+                return hits;
+            }
+            int at = 0;
+            for (int r = 0; r < runCodes.length; r++) {
+                if (passes[runCodes[r]]) hits.set(at, at + runLengths[r]);
+                at += runLengths[r];
+            }
+            return hits;
+        }
+    }
+
+    // Unsigned LEB128 varints and length-prefixed UTF-8 strings
+    private static final class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void varint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        void string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            out.write(b, 0, b.length);
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+
+    private static final class Decoder {
+        private final byte[] data;
+        private int pos;
+
+        Decoder(byte[] data) {
+            this(data, 0);
+        }
+
+        Decoder(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        long varint() {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                byte b = data[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return v;
+                shift += 7;
+            }
+        }
+
+        String string() {
+            int n = (int) varint();
+            String s = new String(data, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        // Steps over a string and returns where it started
+        int skipString() {
+            int start = pos;
+            int n = (int) varint();
+            pos += n;
+            return start;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// What one client has selected on top of the shared engine: the database
+// chosen by USE, its open BEGIN ... COMMIT, and its PREPAREd statements.
+// Database works on the session attached to the calling thread, so sessions
+// aren't tied to threads; a session is used by one thread at a time.
+public class Session {
+    private final long id;
+    private volatile String database;
+    private volatile Transaction transaction;
+    private volatile Progress progress = Progress.NONE;
+    // Set for DBServer connections, which may not read files off the server
+    private volatile boolean remote;
+    // PREPARE name AS ... statements, by lower-cased name
+    private final Map<String, Statement.Prepare> prepared = new HashMap<>();
+
+    Session(long id) {
+        this.id = id;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    // Null until USE
+    public String database() {
+        return database;
+    }
+
+    void database(String name) {
+        database = name;
+    }
+
+    public Transaction transaction() {
+        return transaction;
+    }
+
+    void transaction(Transaction tx) {
+        transaction = tx;
+    }
+
+    public boolean remote() {
+        return remote;
+    }
+
+    void remote(boolean remote) {
+        this.remote = remote;
+    }
+
+    // The running statement's, for a watcher to follow or cancel
+    public Progress progress() {
+        return progress;
+    }
+
+    void progress(Progress p) {
+        progress = p;
+    }
+
+    public synchronized Statement.Prepare prepared(String name) {
+        return prepared.get(name.toLowerCase());
+    }
+
+    public synchronized void prepare(String name, Statement.Prepare stmt) {
+        prepared.put(name.toLowerCase(), stmt);
+    }
+
+    // False if there was no statement of that name
+    public synchronized boolean deallocate(String name) {
+        return prepared.remove(name.toLowerCase()) != null;
+    }
+}
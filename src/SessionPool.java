@@ -0,0 +1,39 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The open sessions of one Database. A session is a few fields, so there can
+// be many of them; the pool only hands out ids, caps their number
+// (-Dminidbms.maxSessions) and finds them again to close them.
+public class SessionPool {
+    private final int maxSessions;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, Session> open = new ConcurrentHashMap<>();
+
+    public SessionPool(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public Session open() {
+        Session s = new Session(nextId.incrementAndGet());
+        open.put(s.id(), s);
+        if (open.size() > maxSessions) {
+            open.remove(s.id());
+            throw new IllegalStateException("Too many sessions (" + maxSessions + ").");
+        }
+        return s;
+    }
+
+    // Sessions of threads that never opened one explicitly don't count
+    public Session detached() {
+        return new Session(nextId.incrementAndGet());
+    }
+
+    public void remove(Session s) {
+        open.remove(s.id());
+    }
+
+    public int size() {
+        return open.size();
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// ORDER BY over a row stream. With a LIMIT only the first limit + offset rows
+// can ever come out, so they are kept in a bounded heap whose top is the
+// worst of them: every row costs O(log n) against it and memory holds n rows,
+// however many come in. If those n rows outgrow the memory budget before the
+// heap is full, every row so far is in it, and they become the first batch
+// of a full sort instead.
+//
+// A full sort collects rows until they outgrow the memory budget, sorts them
+// and writes them to a temp file as a run. The runs are merged through a heap
+// of their next rows, MAX_FAN_IN at a time, so a table bigger than the heap
+// is sorted in a few sequential passes over the temp files.
+//
+// Both are stable: rows with equal keys come out in the order they came in.
+public class Sorter implements ResultCursor.Source, Closeable {
+    private static final int MAX_FAN_IN = 64;
+    // Heap per collected row beyond its text and key: the entry and its list slot
+    private static final int ROW_OVERHEAD = 64;
+
+    private record Entry(String key, long seq, Row row) {}
+
+    // A run being merged, positioned on its next row
+    private static final class Run {
+        final int index;
+        final BufferedReader in;
+        String line;
+        String key;
+
+        Run(int index, File file, int column) throws IOException {
+            this.index = index;
+            this.in = reader(file);
+            advance(column);
+        }
+
+        boolean advance(int column) throws IOException {
+            line = in.readLine();
+            key = line == null ? null : field(line, column);
+            return line != null;
+        }
+    }
+
+    private final ResultCursor.Source input;
+    private final int column;
+    private final long keep;
+    private final long memoryBytes;
+    private final File tempDir;
+    private final Progress progress;
+    private final Comparator<String> keys;
+    private final Comparator<Entry> order;
+
+    private final List<File> tempFiles = new ArrayList<>();
+    private final List<Run> open = new ArrayList<>();
+    private boolean started;
+    private Iterator<Entry> sorted = Collections.emptyIterator();
+    private PriorityQueue<Run> merge;
+    private long rows;
+    private int runs;
+
+    // keep is limit + offset, or -1 to sort every row
+    public Sorter(ResultCursor.Source input, int column, boolean descending, long keep, long memoryBytes,
+                  File tempDir, Progress progress) {
+        this.input = input;
+        this.column = column;
+        this.keep = keep;
+        this.memoryBytes = memoryBytes;
+        this.tempDir = tempDir;
+        this.progress = progress;
+        this.keys = descending ? (a, b) -> Values.compare(b, a) : Values::compare;
+        this.order = Comparator.<Entry, String>comparing(Entry::key, keys).thenComparingLong(Entry::seq);
+    }
+
+    @Override
+    public Row next() throws IOException {
+        if (!started) {
+            started = true;
+            if (keep >= 0) topN();
+            else sort(new ArrayList<>(), 0);
+        }
+        if (merge == null) return sorted.hasNext() ? sorted.next().row() : null;
+        Run run = merge.poll();
+        if (run == null) return null;
+        Row row = new Row(run.line);
+        if (run.advance(column)) merge.add(run);
+        return row;
+    }
+
+    // Rows that came in
+    public long rows() {
+        return rows;
+    }
+
+    // Sorted runs written to temp files, 0 when the rows were sorted in memory
+    public int runs() {
+        return runs;
+    }
+
+    private void topN() throws IOException {
+        if (keep == 0) return;
+        // The worst row kept is on top, so a better one replaces it
+        PriorityQueue<Entry> heap = new PriorityQueue<>(order.reversed());
+        long used = 0;
+        for (Row row = input.next(); row != null; row = input.next()) {
+            Entry e = new Entry(field(row.line(), column), rows++, row);
+            if (heap.size() < keep) {
+                heap.add(e);
+                used += size(e);
+                if (used > memoryBytes) {
+                    sort(new ArrayList<>(heap), used);
+                    return;
+                }
+            } else if (order.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        Entry[] top = heap.toArray(new Entry[0]);
+        Arrays.sort(top, order);
+        sorted = Arrays.asList(top).iterator();
+    }
+
+    // batch holds the rows already taken from input, using up used bytes
+    private void sort(List<Entry> batch, long used) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (Row row = input.next(); ; row = input.next()) {
+            if (used > memoryBytes) {
+                files.add(writeRun(batch));
+                batch.clear();
+                used = 0;
+            }
+            if (row == null) break;
+            Entry e = new Entry(field(row.line(), column), rows++, row);
+            batch.add(e);
+            used += size(e);
+        }
+        if (files.isEmpty()) {
+            batch.sort(order);
+            sorted = batch.iterator();
+            return;
+        }
+        if (!batch.isEmpty()) files.add(writeRun(batch));
+        batch.clear();
+        // Each pass merges neighbouring runs, so equal keys stay in arrival order
+        while (files.size() > MAX_FAN_IN) {
+            List<File> merged = new ArrayList<>();
+            for (int i = 0; i < files.size(); i += MAX_FAN_IN)
+                merged.add(mergeRuns(files.subList(i, Math.min(files.size(), i + MAX_FAN_IN))));
+            files = merged;
+        }
+        merge = startMerge(files);
+    }
+
+    private static long size(Entry e) {
+        return TableCache.estimate(e.row().line()) + 2L * e.key().length() + ROW_OVERHEAD;
+    }
+
+    private File writeRun(List<Entry> batch) throws IOException {
+        batch.sort(order);
+        File f = tempFile();
+        try (Writer out = writer(f)) {
+            for (Entry e : batch) out.write(e.row().line() + "\n");
+        }
+        runs++;
+        return f;
+    }
+
+    private File mergeRuns(List<File> files) throws IOException {
+        PriorityQueue<Run> heap = startMerge(files);
+        File f = tempFile();
+        try (Writer out = writer(f)) {
+            for (Run run = heap.poll(); run != null; run = heap.poll()) {
+                progress.tick();
+                out.write(run.line + "\n");
+                if (run.advance(column)) heap.add(run);
+            }
+        }
+        for (Run run : open) run.in.close();
+        open.clear();
+        for (File done : files) done.delete();
+        return f;
+    }
+
+    // Ties go to the earlier run, which holds the earlier rows
+    private PriorityQueue<Run> startMerge(List<File> files) throws IOException {
+        PriorityQueue<Run> heap = new PriorityQueue<>(Math.max(1, files.size()),
+                Comparator.<Run, String>comparing(r -> r.key, keys).thenComparingInt(r -> r.index));
+        for (int i = 0; i < files.size(); i++) {
+            Run run = new Run(i, files.get(i), column);
+            open.add(run);
+            if (run.line != null) heap.add(run);
+        }
+        return heap;
+    }
+
+    private File tempFile() throws IOException {
+        File f = File.createTempFile("sort", ".tmp", tempDir);
+        tempFiles.add(f);
+        return f;
+    }
+
+    private static Writer writer(File f) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+    }
+
+    private static BufferedReader reader(File f) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+    }
+
+    // The index-th comma-separated field, or "" if the line is too short
+    private static String field(String line, int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = line.indexOf(',', start) + 1;
+            if (start == 0) return "";
+        }
+        int end = line.indexOf(',', start);
+        return line.substring(start, end < 0 ? line.length() : end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Run run : open) run.in.close();
+        } finally {
+            for (File f : tempFiles) f.delete();
+            sorted = Collections.emptyIterator();
+        }
+    }
+}
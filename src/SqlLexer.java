@@ -0,0 +1,64 @@
+import java.util.*;
+
+// Splits a command into tokens. A WORD is any run of characters that isn't
+// whitespace, a quote or a symbol, so keywords, names, numbers, dates and
+// negative numbers all come out as single words.
+public class SqlLexer {
+    public enum Type { WORD, STRING, SYMBOL, EOF }
+
+    // start/end index into the command text, so callers can recover raw spans
+    public record Token(Type type, String text, int start, int end) {
+        public boolean is(String keywordOrSymbol) {
+            return (type == Type.WORD || type == Type.SYMBOL) && text.equalsIgnoreCase(keywordOrSymbol);
+        }
+
+        @Override
+        public String toString() {
+            return type == Type.EOF ? "end of command" : type == Type.STRING ? "'" + text + "'" : text;
+        }
+    }
+
+    private static final String SYMBOLS = "(),;*=<>?";
+
+    public static List<Token> tokenize(String sql) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                int start = i++;
+                while (true) {
+                    if (i >= n) throw new IllegalArgumentException("Unterminated string starting at position " + start);
+                    char d = sql.charAt(i++);
+                    if (d != '\'') {
+                        sb.append(d);
+                    } else if (i < n && sql.charAt(i) == '\'') {
+                        // '' inside a string is an escaped quote
+                        sb.append('\'');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                tokens.add(new Token(Type.STRING, sb.toString(), start, i));
+            } else if ((c == '<' || c == '>') && i + 1 < n && sql.charAt(i + 1) == '=') {
+                tokens.add(new Token(Type.SYMBOL, sql.substring(i, i + 2), i, i + 2));
+                i += 2;
+            } else if (SYMBOLS.indexOf(c) >= 0) {
+                tokens.add(new Token(Type.SYMBOL, String.valueOf(c), i, i + 1));
+                i++;
+            } else {
+                int start = i;
+                while (i < n && !Character.isWhitespace(sql.charAt(i))
+                        && SYMBOLS.indexOf(sql.charAt(i)) < 0 && sql.charAt(i) != '\'') i++;
+                tokens.add(new Token(Type.WORD, sql.substring(start, i), start, i));
+            }
+        }
+        tokens.add(new Token(Type.EOF, "", n, n));
+        return tokens;
+    }
+}
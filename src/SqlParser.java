@@ -0,0 +1,368 @@
+import java.util.*;
+
+// Recursive-descent parser from tokens to a Statement. Keywords are matched
+// case-insensitively; names and values keep the case they were typed in.
+public class SqlParser {
+    private final String sql;
+    private final List<SqlLexer.Token> tokens;
+    private int pos;
+    private int params;
+
+    private SqlParser(String sql) {
+        this.sql = sql;
+        this.tokens = SqlLexer.tokenize(sql);
+    }
+
+    public static Statement parse(String sql) {
+        SqlParser p = new SqlParser(sql);
+        Statement stmt = p.statement();
+        if (p.params > 0 && !(stmt instanceof Statement.Prepare))
+            throw new IllegalArgumentException("Placeholders (?) are only allowed in prepared statements.");
+        return stmt;
+    }
+
+    // For statements prepared through the API: returns the statement and its placeholder count
+    public static Statement.Prepare parsePrepared(String sql) {
+        SqlParser p = new SqlParser(sql);
+        Statement stmt = p.statement();
+        if (stmt instanceof Statement.Prepare || stmt instanceof Statement.Execute)
+            throw new IllegalArgumentException("Cannot prepare " + p.tokens.get(0).text().toUpperCase() + ".");
+        return new Statement.Prepare(null, stmt, p.params);
+    }
+
+    private Statement statement() {
+        SqlLexer.Token first = peek();
+        if (accept("CREATE")) {
+            if (accept("DATABASE")) return end(new Statement.CreateDatabase(name()));
+            if (accept("TABLE")) return createTable();
+            if (accept("INDEX")) return createIndex();
+            throw error("CREATE", "DATABASE, TABLE or INDEX");
+        }
+        if (accept("DROP")) {
+            if (accept("DATABASE")) return end(new Statement.DropDatabase(name()));
+            if (accept("TABLE")) return end(new Statement.DropTable(name()));
+            if (accept("INDEX")) return end(new Statement.DropIndex(name()));
+            throw error("DROP", "DATABASE, TABLE or INDEX");
+        }
+        if (accept("USE")) return end(new Statement.UseDatabase(name()));
+        if (accept("INSERT")) return insert();
+        if (accept("LOAD")) return load();
+        if (accept("SELECT")) return select();
+        if (accept("UPDATE")) return update();
+        if (accept("DELETE")) {
+            expect("DELETE", "FROM");
+            String table = name();
+            return end(new Statement.Delete(table, accept("WHERE") ? predicate("DELETE") : null));
+        }
+        if (accept("VACUUM")) return end(new Statement.Vacuum(peek().type() == SqlLexer.Type.WORD ? name() : null));
+        if (accept("ANALYZE")) return end(new Statement.Analyze(peek().type() == SqlLexer.Type.WORD ? name() : null));
+        if (accept("EXPLAIN")) {
+            expect("EXPLAIN", "SELECT");
+            return new Statement.Explain(select());
+        }
+        if (accept("SHOW")) {
+            for (String what : List.of("TABLES", "DATABASES", "CACHE", "STATS"))
+                if (accept(what)) return end(new Statement.Show(what));
+            throw error("SHOW", "TABLES, DATABASES, CACHE or STATS");
+        }
+        if (accept("DESCRIBE")) return end(new Statement.Describe(name()));
+        if (accept("PREPARE")) {
+            String name = name();
+            expect("PREPARE", "AS");
+            if (peek().is("PREPARE") || peek().is("EXECUTE"))
+                throw new IllegalArgumentException("Cannot prepare " + peek().text().toUpperCase() + ".");
+            Statement inner = statement();
+            return new Statement.Prepare(name, inner, params);
+        }
+        if (accept("EXECUTE")) {
+            String name = name();
+            List<Statement.Value> args = new ArrayList<>();
+            if (accept("USING")) {
+                do {
+                    args.add(rawValue("EXECUTE"));
+                } while (accept(","));
+            }
+            return end(new Statement.Execute(name, args));
+        }
+        if (accept("DEALLOCATE")) return end(new Statement.Deallocate(name()));
+        if (accept("BEGIN")) {
+            accept("TRANSACTION");
+            return end(new Statement.Begin());
+        }
+        if (accept("COMMIT")) return end(new Statement.Commit());
+        if (accept("ROLLBACK")) return end(new Statement.Rollback());
+        throw new IllegalArgumentException("Unknown command: " + (first.type() == SqlLexer.Type.EOF ? "" : sql));
+    }
+
+    private Statement createTable() {
+        String table = name();
+        expect("CREATE TABLE", "(");
+        List<String> cols = new ArrayList<>();
+        List<String> types = new ArrayList<>();
+        do {
+            cols.add(name());
+            types.add(columnType());
+        } while (accept(","));
+        expect("CREATE TABLE", ")");
+        boolean columnar = false;
+        boolean compressed = false;
+        if (accept("USING")) {
+            if (accept("COLUMNAR")) columnar = true;
+            else if (accept("COMPRESSED")) compressed = true;
+            else throw error("CREATE TABLE", "COLUMNAR or COMPRESSED");
+        }
+        return end(new Statement.CreateTable(table, cols, types, columnar, compressed));
+    }
+
+    // An optional type after a column name, e.g. INT or VARCHAR(20); checked by Schema
+    private String columnType() {
+        if (peek().type() != SqlLexer.Type.WORD) return null;
+        String type = name();
+        if (accept("(")) {
+            type += "(" + next().text() + ")";
+            expect("CREATE TABLE", ")");
+        }
+        return type;
+    }
+
+    private Statement createIndex() {
+        String name = name();
+        expect("CREATE INDEX", "ON");
+        String table = name();
+        expect("CREATE INDEX", "(");
+        String column = name();
+        expect("CREATE INDEX", ")");
+        String type = "HASH";
+        if (accept("USING")) {
+            if (accept("HASH")) type = "HASH";
+            else if (accept("BTREE")) type = "BTREE";
+            else if (accept("COLUMNAR")) type = "COLUMNAR";
+            else throw error("CREATE INDEX", "HASH, BTREE or COLUMNAR");
+        }
+        return end(new Statement.CreateIndex(name, table, column, type));
+    }
+
+    private Statement insert() {
+        expect("INSERT", "INTO");
+        String table = name();
+        expect("INSERT", "VALUES");
+        List<List<Statement.Value>> rows = new ArrayList<>();
+        do {
+            expect("INSERT", "(");
+            List<Statement.Value> values = new ArrayList<>();
+            do {
+                values.add(rawValue("INSERT"));
+            } while (accept(","));
+            expect("INSERT", ")");
+            rows.add(values);
+        } while (accept(","));
+        return end(new Statement.Insert(table, rows));
+    }
+
+    // LOAD DATA 'file.csv' INTO [TABLE] t
+    private Statement load() {
+        expect("LOAD", "DATA");
+        SqlLexer.Token file = next();
+        if (file.type() != SqlLexer.Type.STRING) {
+            pos--;
+            throw error("LOAD", "a quoted file name");
+        }
+        expect("LOAD", "INTO");
+        accept("TABLE");
+        return end(new Statement.Load(file.text(), name()));
+    }
+
+    private Statement select() {
+        List<Statement.SelectItem> items = null;
+        if (!accept("*")) {
+            items = new ArrayList<>();
+            do {
+                items.add(selectItem());
+            } while (accept(","));
+        }
+        expect("SELECT", "FROM");
+        String table = name();
+        if (accept("INNER")) expect("SELECT", "JOIN");
+        else if (!peek().is("JOIN")) return select(table, items);
+        accept("JOIN");
+        return join(table, items);
+    }
+
+    private Statement select(String table, List<Statement.SelectItem> items) {
+        Statement.Predicate where = null;
+        String groupBy = null;
+        String orderBy = null;
+        boolean descending = false;
+        if (accept("WHERE")) where = predicate("SELECT");
+        if (items != null && accept("GROUP")) {
+            expect("SELECT", "BY");
+            groupBy = name();
+        }
+        if (accept("ORDER")) {
+            expect("SELECT", "BY");
+            orderBy = name();
+            descending = descending();
+        }
+        Statement.Value limit = null;
+        Statement.Value offset = null;
+        if (accept("LIMIT")) limit = value("SELECT");
+        if (accept("OFFSET")) offset = value("SELECT");
+        if (items == null) return end(new Statement.Select(table, where, orderBy, descending, limit, offset));
+        if (groupBy == null && items.stream().anyMatch(i -> i.function() == null))
+            throw new IllegalArgumentException("Only SELECT * or aggregates (COUNT, SUM, AVG, MIN, MAX) are supported.");
+        if (orderBy != null && !orderBy.equalsIgnoreCase(groupBy))
+            throw new IllegalArgumentException("An aggregate query can only be ordered by its GROUP BY column.");
+        return end(new Statement.Aggregate(table, items, where, groupBy, orderBy, descending, limit, offset));
+    }
+
+    // FROM left [INNER] JOIN right ON a = b, where a and b are columns of either table
+    private Statement join(String left, List<Statement.SelectItem> items) {
+        String right = name();
+        expect("JOIN", "ON");
+        String leftColumn = column();
+        expect("JOIN", "=");
+        String rightColumn = column();
+        Statement.Predicate where = accept("WHERE") ? predicate("SELECT") : null;
+        if (peek().is("GROUP")) throw new IllegalArgumentException("GROUP BY is not supported with JOIN.");
+        String orderBy = null;
+        boolean descending = false;
+        if (accept("ORDER")) {
+            expect("SELECT", "BY");
+            orderBy = column();
+            descending = descending();
+        }
+        Statement.Value limit = null;
+        Statement.Value offset = null;
+        if (accept("LIMIT")) limit = value("SELECT");
+        if (accept("OFFSET")) offset = value("SELECT");
+        List<String> columns = null;
+        if (items != null) {
+            columns = new ArrayList<>();
+            for (Statement.SelectItem item : items) {
+                if (item.function() != null)
+                    throw new IllegalArgumentException("Aggregates are not supported with JOIN.");
+                columns.add(item.column());
+            }
+        }
+        return end(new Statement.Join(left, right, leftColumn, rightColumn, columns, where, orderBy, descending,
+                limit, offset));
+    }
+
+    // The optional direction after ORDER BY col; ascending unless DESC
+    private boolean descending() {
+        if (accept("DESC")) return true;
+        accept("ASC");
+        return false;
+    }
+
+    // COUNT(*), SUM(col), AVG(col), MIN(col), MAX(col) or a plain column
+    private Statement.SelectItem selectItem() {
+        String name = column();
+        if (!accept("(")) return new Statement.SelectItem(null, name);
+        String function = name.toUpperCase();
+        if (!List.of("COUNT", "SUM", "AVG", "MIN", "MAX").contains(function))
+            throw new IllegalArgumentException("Unknown function: " + name);
+        String column = function.equals("COUNT") && accept("*") ? "*" : name();
+        expect("SELECT", ")");
+        return new Statement.SelectItem(function, column);
+    }
+
+    private Statement update() {
+        String table = name();
+        expect("UPDATE", "SET");
+        String column = name();
+        expect("UPDATE", "=");
+        Statement.Value value = value("UPDATE");
+        expect("UPDATE", "WHERE");
+        String whereColumn = name();
+        expect("UPDATE", "=");
+        Statement.Value whereValue = value("UPDATE");
+        return end(new Statement.Update(table, column, value, whereColumn, whereValue));
+    }
+
+    private Statement.Predicate predicate(String context) {
+        String column = column();
+        for (String op : List.of("=", "<=", ">=", "<", ">"))
+            if (accept(op)) return new Statement.Predicate(column, op, value(context), null);
+        if (accept("BETWEEN")) {
+            Statement.Value lo = value(context);
+            expect(context, "AND");
+            return new Statement.Predicate(column, "BETWEEN", lo, value(context));
+        }
+        if (accept("LIKE")) return new Statement.Predicate(column, "LIKE", value(context), null);
+        throw error(context, "=, <, <=, >, >=, BETWEEN or LIKE");
+    }
+
+    // A single word, a quoted string or a placeholder
+    private Statement.Value value(String context) {
+        SqlLexer.Token t = next();
+        if (t.type() == SqlLexer.Type.STRING || t.type() == SqlLexer.Type.WORD) return new Statement.Literal(t.text());
+        if (t.is("?")) return new Statement.Param(params++);
+        pos--;
+        throw error(context, "a value");
+    }
+
+    // Like value(), but an unquoted value runs up to the next comma or closing
+    // parenthesis and keeps its inner spacing, e.g. VALUES(1, Bruce Wayne)
+    private Statement.Value rawValue(String context) {
+        SqlLexer.Token t = peek();
+        if (t.type() == SqlLexer.Type.STRING || t.is("?")) return value(context);
+        int start = t.start();
+        int end = -1;
+        while (peek().type() != SqlLexer.Type.EOF && !peek().is(",") && !peek().is(")") && !peek().is(";"))
+            end = next().end();
+        if (end < 0) throw error(context, "a value");
+        return new Statement.Literal(sql.substring(start, end));
+    }
+
+    private String name() {
+        SqlLexer.Token t = next();
+        if (t.type() != SqlLexer.Type.WORD || !t.text().matches("\\w+")) {
+            pos--;
+            throw new IllegalArgumentException("Expected a name but found " + t + ".");
+        }
+        return t.text();
+    }
+
+    // A column name, optionally qualified with its table: name or table.name
+    private String column() {
+        SqlLexer.Token t = next();
+        if (t.type() != SqlLexer.Type.WORD || !t.text().matches("\\w+(\\.\\w+)?")) {
+            pos--;
+            throw new IllegalArgumentException("Expected a name but found " + t + ".");
+        }
+        return t.text();
+    }
+
+    private Statement end(Statement stmt) {
+        accept(";");
+        if (peek().type() != SqlLexer.Type.EOF)
+            throw new IllegalArgumentException("Unexpected " + peek() + " at position " + peek().start() + ".");
+        return stmt;
+    }
+
+    private void expect(String context, String keywordOrSymbol) {
+        if (!accept(keywordOrSymbol)) throw error(context, keywordOrSymbol);
+    }
+
+    private boolean accept(String keywordOrSymbol) {
+        if (!peek().is(keywordOrSymbol)) return false;
+        pos++;
+        return true;
+    }
+
+    private IllegalArgumentException error(String context, String expected) {
+        return new IllegalArgumentException("Invalid " + context + " syntax: expected " + expected
+                + " but found " + peek() + ".");
+    }
+
+    private SqlLexer.Token peek() {
+        return tokens.get(pos);
+    }
+
+    private SqlLexer.Token next() {
+        SqlLexer.Token t = tokens.get(pos);
+        if (t.type() != SqlLexer.Type.EOF) pos++;
+        return t;
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.List;
+
+// Parsed form of one command. Values are literals or ? placeholders that are
+// bound when a prepared statement is executed.
+public sealed interface Statement {
+    sealed interface Value permits Literal, Param {}
+
+    record Literal(String text) implements Value {}
+
+    // Zero-based position among the statement's placeholders
+    record Param(int index) implements Value {}
+
+    // upper is only set for BETWEEN
+    record Predicate(String column, String op, Value value, Value upper) {}
+
+    record CreateDatabase(String name) implements Statement {}
+
+    record UseDatabase(String name) implements Statement {}
+
+    record DropDatabase(String name) implements Statement {}
+
+    // types holds null for an untyped (TEXT) column; columnar and compressed are USING COLUMNAR and USING COMPRESSED
+    record CreateTable(String table, List<String> columns, List<String> types, boolean columnar, boolean compressed)
+            implements Statement {}
+
+    record DropTable(String table) implements Statement {}
+
+    record CreateIndex(String name, String table, String column, String type) implements Statement {}
+
+    record DropIndex(String name) implements Statement {}
+
+    // One list of values per row: INSERT INTO t VALUES (...), (...)
+    record Insert(String table, List<List<Value>> rows) implements Statement {}
+
+    record Load(String file, String table) implements Statement {}
+
+    // limit and offset are null when absent; descending is ORDER BY ... DESC
+    record Select(String table, Predicate where, String orderBy, boolean descending, Value limit, Value offset)
+            implements Statement {}
+
+    // SELECT over the inner equi-join of two tables, FROM left JOIN right ON
+    // leftColumn = rightColumn. columns is null for *; any column may be
+    // qualified with its table (left.x), and orderBy must be an output column
+    record Join(String left, String right, String leftColumn, String rightColumn, List<String> columns,
+                Predicate where, String orderBy, boolean descending, Value limit, Value offset) implements Statement {}
+
+    // An output column of an aggregate query: function is COUNT, SUM, AVG, MIN
+    // or MAX, or null for the GROUP BY column; column is * for COUNT(*)
+    record SelectItem(String function, String column) {
+        public String label() {
+            return function == null ? column : function + "(" + column + ")";
+        }
+    }
+
+    // SELECT with aggregates; orderBy may only name the GROUP BY column
+    record Aggregate(String table, List<SelectItem> items, Predicate where, String groupBy, String orderBy,
+                     boolean descending, Value limit, Value offset) implements Statement {}
+
+    record Update(String table, String column, Value value, String whereColumn, Value whereValue) implements Statement {}
+
+    // where is null for DELETE without WHERE, which empties the table
+    record Delete(String table, Predicate where) implements Statement {}
+
+    // table is null for every table of the current database
+    record Vacuum(String table) implements Statement {}
+
+    // table is null for every table of the current database
+    record Analyze(String table) implements Statement {}
+
+    // A Select, Aggregate or Join, run to count its rows and shown as its plan
+    record Explain(Statement query) implements Statement {}
+
+    record Show(String what) implements Statement {}
+
+    record Describe(String table) implements Statement {}
+
+    record Prepare(String name, Statement statement, int paramCount) implements Statement {}
+
+    record Execute(String name, List<Value> args) implements Statement {}
+
+    record Deallocate(String name) implements Statement {}
+
+    record Begin() implements Statement {}
+
+    record Commit() implements Statement {}
+
+    record Rollback() implements Statement {}
+}
@@ -0,0 +1,92 @@
+import java.util.*;
+
+// Parsed rows of recently scanned tables, bounded by an approximate byte budget
+// and evicted least recently used first. Every commit bumps its table's
+// version, and an entry is only served while the version it was loaded at is
+// still current, so readers never see rows older than the last commit.
+public class TableCache {
+    // Data rows in file order with the byte offset each one starts at
+    public record Rows(String[] lines, long[] offsets) {
+        public String lineAt(long offset) {
+            int i = Arrays.binarySearch(offsets, offset);
+            return i >= 0 ? lines[i] : null;
+        }
+    }
+
+    private record Entry(long version, Rows rows, long bytes) {}
+
+    private final long maxBytes;
+    private final Map<String, Long> versions = new HashMap<>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public TableCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    // Read before scanning the table and pass it to put(), so a commit that
+    // lands mid-scan keeps the stale rows out
+    public synchronized long version(String path) {
+        return versions.getOrDefault(path, 0L);
+    }
+
+    public synchronized void bump(String path) {
+        versions.merge(path, 1L, Long::sum);
+        Entry e = entries.remove(path);
+        if (e != null) bytes -= e.bytes();
+    }
+
+    public synchronized Rows get(String path) {
+        if (!enabled()) return null;
+        Entry e = entries.get(path);
+        if (e != null && e.version() == version(path)) {
+            hits++;
+            return e.rows();
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(String path, long version, Rows rows) {
+        if (!enabled() || version != version(path)) return;
+        long size = estimate(rows);
+        if (size > maxBytes) return;
+        Entry old = entries.put(path, new Entry(version, rows, size));
+        if (old != null) bytes -= old.bytes();
+        bytes += size;
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    public synchronized String stats() {
+        if (!enabled()) return "Table cache: disabled (set -Dminidbms.tableCacheBytes to enable)";
+        long lookups = hits + misses;
+        return "Table cache: " + entries.size() + " tables, " + bytes / 1024 + " KB of " + maxBytes / 1024 + " KB"
+                + ", hits " + hits + ", misses " + misses
+                + (lookups == 0 ? "" : String.format(", hit rate %.1f%%", 100.0 * hits / lookups));
+    }
+
+    // Rough heap footprint: string headers plus two bytes per char, and the offset
+    public static long estimate(String line) {
+        return 48 + 2L * line.length() + 8;
+    }
+
+    private static long estimate(Rows rows) {
+        long size = 64;
+        for (String line : rows.lines()) size += estimate(line);
+        return size;
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Reads a table file line by line through the buffer pool, remembering the
+// byte offset each line starts at. The file length is fixed when the reader is
+// opened, so rows appended during a scan are not picked up half-written.
+public class TableReader implements Closeable {
+    private final BufferPool pool;
+    private final String path;
+    private final long generation;
+    private final FileChannel channel;
+    private final boolean ownsChannel;
+    private final long end;
+    private long position;
+    private long lineOffset = -1;
+    private BufferPool.Page page;
+    private byte[] line = new byte[256];
+
+    public TableReader(BufferPool pool, File file) throws IOException {
+        this.pool = pool;
+        this.path = file.getPath();
+        this.generation = pool.generation(path);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.ownsChannel = true;
+        this.end = channel.size();
+    }
+
+    // Reads a snapshot: a channel someone else keeps open, up to the length it had
+    public TableReader(BufferPool pool, String path, long generation, FileChannel channel, long end) {
+        this.pool = pool;
+        this.path = path;
+        this.generation = generation;
+        this.channel = channel;
+        this.ownsChannel = false;
+        this.end = end;
+    }
+
+    // Next line without its terminator, or null at the end of the file
+    public String readLine() throws IOException {
+        if (position >= end) return null;
+        lineOffset = position;
+        int len = 0;
+        while (position < end) {
+            BufferPool.Page p = pageAt(position);
+            int from = (int) (position - p.start());
+            int to = (int) Math.min(p.length(), end - p.start());
+            // The file shrank underneath us
+            if (from >= to) {
+                position = end;
+                break;
+            }
+            byte[] data = p.data();
+            int i = from;
+            while (i < to && data[i] != '\n') i++;
+            if (len + (i - from) > line.length)
+                line = Arrays.copyOf(line, Math.max(line.length * 2, len + (i - from)));
+            System.arraycopy(data, from, line, len, i - from);
+            len += i - from;
+            position = p.start() + i;
+            if (i < to) {
+                position++;
+                break;
+            }
+        }
+        if (len > 0 && line[len - 1] == '\r') len--;
+        return new String(line, 0, len, StandardCharsets.UTF_8);
+    }
+
+    // Positions the reader at the start of a line, e.g. one found through an index
+    public void seek(long offset) {
+        position = offset;
+    }
+
+    // Byte offset readLine will continue from
+    public long position() {
+        return position;
+    }
+
+    // The channel and the length this reader is bounded by, for scans that read the file directly
+    public FileChannel channel() {
+        return channel;
+    }
+
+    public long length() {
+        return end;
+    }
+
+    // Byte offset of the line last returned by readLine
+    public long offset() {
+        return lineOffset;
+    }
+
+    private BufferPool.Page pageAt(long pos) throws IOException {
+        long pageNo = pos / BufferPool.PAGE_SIZE;
+        if (page != null && page.start() == pageNo * BufferPool.PAGE_SIZE) return page;
+        if (page != null) pool.unpin(page);
+        page = null;
+        page = pool.pin(path, generation, pageNo, channel, end);
+        return page;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (page != null) pool.unpin(page);
+        page = null;
+        if (ownsChannel) channel.close();
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Planner statistics of a table, gathered by ANALYZE and kept next to it in
+// <table>.stats. Like PostgreSQL's ANALYZE they come from a uniform sample
+// of the live rows: the row count is exact, each column's distinct count is
+// extrapolated from the sample (Haas and Stokes' Duj1 estimator), and each
+// column gets an equi-depth histogram, bounds between which an equal share of
+// the sampled values fall. Writes don't maintain them; the planner scales the
+// row count by how much the file has changed since, and ANALYZE refreshes them.
+public final class TableStats {
+    public static final int SAMPLE_SIZE = 30_000;
+    public static final int BUCKETS = 32;
+
+    // bounds has BUCKETS + 1 values in Values.compare order, or none for an empty table
+    public record ColumnStats(String name, long distinct, String[] bounds) {
+        // Share of the rows equal to value
+        public double equal(String value) {
+            if (bounds.length == 0 || Values.compare(value, bounds[0]) < 0
+                    || Values.compare(value, bounds[bounds.length - 1]) > 0) return 0;
+            // A value filling whole buckets is more common than an average one
+            int repeats = 0;
+            for (int i = 1; i < bounds.length; i++)
+                if (bounds[i].equals(value) && bounds[i - 1].equals(value)) repeats++;
+            return Math.max(1.0 / Math.max(1, distinct), (double) repeats / BUCKETS);
+        }
+
+        // Share of the rows below value, interpolating within its bucket
+        public double below(String value) {
+            if (bounds.length == 0 || Values.compare(value, bounds[0]) <= 0) return 0;
+            if (Values.compare(value, bounds[bounds.length - 1]) > 0) return 1;
+            int i = 0;
+            while (i + 2 < bounds.length && Values.compare(value, bounds[i + 1]) > 0) i++;
+            String lo = bounds[i];
+            String hi = bounds[i + 1];
+            double within = 0.5;
+            if (Values.isNumber(value) && Values.isNumber(lo) && Values.isNumber(hi)) {
+                double l = Double.parseDouble(lo);
+                double h = Double.parseDouble(hi);
+                within = h > l ? Math.min(1, Math.max(0, (Double.parseDouble(value) - l) / (h - l))) : 1;
+            }
+            return (i + within) / (bounds.length - 1);
+        }
+
+        // Share of the rows that pass where, which must be on this column
+        public double selectivity(Condition where) {
+            double s = switch (where.op()) {
+                case "=" -> equal(where.value());
+                // The bound's own rows are left out: it needn't be a value of the column at all
+                case "<", "<=" -> below(where.value());
+                case ">", ">=" -> 1 - below(where.value());
+                case "BETWEEN" -> below(where.upper()) - below(where.value());
+                // Every string with the prefix sorts between it and the prefix followed by the highest char
+                case "LIKE" -> below(where.prefix() + Character.MAX_VALUE) - below(where.prefix());
+                default -> 1;
+            };
+            return Math.min(1, Math.max(0, s));
+        }
+    }
+
+    private final long rows;
+    private final long bytes;
+    private final long analyzedAt;
+    private final ColumnStats[] columns;
+
+    public TableStats(long rows, long bytes, long analyzedAt, ColumnStats[] columns) {
+        this.rows = rows;
+        this.bytes = bytes;
+        this.analyzedAt = analyzedAt;
+        this.columns = columns.clone();
+    }
+
+    // Live rows when analyzed
+    public long rows() {
+        return rows;
+    }
+
+    // Size of the table file when analyzed
+    public long bytes() {
+        return bytes;
+    }
+
+    public long analyzedAt() {
+        return analyzedAt;
+    }
+
+    public List<ColumnStats> columns() {
+        return List.of(columns);
+    }
+
+    // Null when the column wasn't analyzed
+    public ColumnStats column(String name) {
+        for (ColumnStats c : columns)
+            if (c.name().equalsIgnoreCase(name)) return c;
+        return null;
+    }
+
+    // Reservoir sample of the rows fed to it, in one pass of unknown length
+    public static final class Collector {
+        private final String[] header;
+        private final List<String[]> sample = new ArrayList<>();
+        // Fixed, so analyzing the same table twice gives the same statistics
+        private final Random random = new Random(42);
+        private long rows;
+
+        public Collector(String[] header) {
+            this.header = header.clone();
+        }
+
+        public void add(String line) {
+            rows++;
+            if (sample.size() < SAMPLE_SIZE) {
+                sample.add(line.split(",", -1));
+                return;
+            }
+            long j = (long) (random.nextDouble() * rows);
+            if (j < SAMPLE_SIZE) sample.set((int) j, line.split(",", -1));
+        }
+
+        public TableStats finish(long bytes) {
+            ColumnStats[] columns = new ColumnStats[header.length];
+            for (int c = 0; c < header.length; c++) {
+                String[] values = new String[sample.size()];
+                for (int i = 0; i < values.length; i++) {
+                    String[] row = sample.get(i);
+                    values[i] = c < row.length ? row[c] : "";
+                }
+                columns[c] = new ColumnStats(header[c], distinct(values), bounds(values));
+            }
+            return new TableStats(rows, bytes, System.currentTimeMillis(), columns);
+        }
+
+        private long distinct(String[] values) {
+            Map<String, Integer> counts = new HashMap<>();
+            for (String v : values) counts.merge(v, 1, Integer::sum);
+            long d = counts.size();
+            long n = values.length;
+            if (n == rows) return d;
+            long once = counts.values().stream().filter(k -> k == 1).count();
+            double estimate = n * d / (n - once + (double) once * n / rows);
+            return Math.max(d, Math.min(rows, Math.round(estimate)));
+        }
+
+        private static String[] bounds(String[] values) {
+            if (values.length == 0) return new String[0];
+            Arrays.sort(values, Values::compare);
+            String[] bounds = new String[BUCKETS + 1];
+            for (int k = 0; k <= BUCKETS; k++) bounds[k] = values[(int) ((long) k * (values.length - 1) / BUCKETS)];
+            return bounds;
+        }
+    }
+
+    public static File file(File tableFile) {
+        String name = tableFile.getName();
+        return new File(tableFile.getParentFile(), name.substring(0, name.length() - ".txt".length()) + ".stats");
+    }
+
+    // Null when the table was never analyzed, or its statistics can't be read
+    public static TableStats load(File tableFile) throws IOException {
+        File f = file(tableFile);
+        if (!f.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            long rows = in.readLong();
+            long bytes = in.readLong();
+            long analyzedAt = in.readLong();
+            ColumnStats[] columns = new ColumnStats[in.readInt()];
+            for (int c = 0; c < columns.length; c++) {
+                String name = in.readUTF();
+                long distinct = in.readLong();
+                String[] bounds = new String[in.readInt()];
+                for (int i = 0; i < bounds.length; i++) bounds[i] = in.readUTF();
+                columns[c] = new ColumnStats(name, distinct, bounds);
+            }
+            return new TableStats(rows, bytes, analyzedAt, columns);
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    // Replaces the file in one rename; the statistics are advisory, so they aren't logged
+    public void save(File tableFile) throws IOException {
+        File f = file(tableFile);
+        File temp = new File(f + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeLong(rows);
+            out.writeLong(bytes);
+            out.writeLong(analyzedAt);
+            out.writeInt(columns.length);
+            for (ColumnStats c : columns) {
+                out.writeUTF(c.name());
+                out.writeLong(c.distinct());
+                out.writeInt(c.bounds().length);
+                for (String b : c.bounds()) out.writeUTF(b);
+            }
+        }
+        Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+// Rows deleted in place. DELETE ... WHERE and UPDATE don't rewrite the table:
+// they append the dead rows' offsets (and lengths) to <table>.del, and readers
+// skip those rows. Once enough of a table is dead, VACUUM rewrites it with
+// the live rows only; any rewrite of the table file starts a new, empty list.
+//
+// Readers take a View when they open, an immutable sorted copy of the list as
+// it stood then, so deletes committed while they read don't show through.
+public class Tombstones {
+    // Bytes per entry in the .del file: [long offset][int length]
+    public static final int ENTRY = 12;
+
+    public static final class View {
+        private final long[] offsets;
+
+        private View(long[] sortedOffsets) {
+            this.offsets = sortedOffsets;
+        }
+
+        public boolean isEmpty() {
+            return offsets.length == 0;
+        }
+
+        public boolean contains(long offset) {
+            return offsets.length > 0 && Arrays.binarySearch(offsets, offset) >= 0;
+        }
+    }
+
+    public static final View NONE = new View(new long[0]);
+
+    private static final class Table {
+        long[] offsets = new long[16];
+        int size;
+        long deadBytes;
+        View view = NONE;
+    }
+
+    private final Map<String, Table> tables = new HashMap<>();
+
+    public static File file(File tableFile) {
+        String name = tableFile.getName();
+        return new File(tableFile.getParentFile(), name.substring(0, name.length() - ".txt".length()) + ".del");
+    }
+
+    public synchronized View view(File tableFile) throws IOException {
+        Table t = table(tableFile);
+        if (t.view.offsets.length != t.size) {
+            long[] sorted = Arrays.copyOf(t.offsets, t.size);
+            Arrays.sort(sorted);
+            t.view = new View(sorted);
+        }
+        return t.view;
+    }
+
+    // Where the next entries go in the .del file; a torn entry at its end is overwritten
+    public synchronized long fileLength(File tableFile) throws IOException {
+        return (long) table(tableFile).size * ENTRY;
+    }
+
+    // The .del bytes for these rows
+    public static byte[] encode(long[] offsets, int[] lengths, int count) {
+        ByteBuffer buf = ByteBuffer.allocate(count * ENTRY);
+        for (int i = 0; i < count; i++) buf.putLong(offsets[i]).putInt(lengths[i]);
+        return buf.array();
+    }
+
+    // Records rows whose entries have been written to the .del file
+    public synchronized void add(File tableFile, long[] offsets, int[] lengths, int count) throws IOException {
+        Table t = table(tableFile);
+        for (int i = 0; i < count; i++) {
+            if (t.size == t.offsets.length) t.offsets = Arrays.copyOf(t.offsets, t.size * 2);
+            t.offsets[t.size++] = offsets[i];
+            t.deadBytes += lengths[i];
+        }
+    }
+
+    // The table file was rewritten (or dropped): its old offsets mean nothing any more
+    public synchronized void reset(File tableFile) {
+        tables.remove(tableFile.getPath());
+        file(tableFile).delete();
+    }
+
+    public synchronized void forgetDatabase(File dbDir) {
+        tables.keySet().removeIf(path -> dbDir.equals(new File(path).getParentFile()));
+    }
+
+    public synchronized long deadBytes(File tableFile) throws IOException {
+        return table(tableFile).deadBytes;
+    }
+
+    public synchronized int count(File tableFile) throws IOException {
+        return table(tableFile).size;
+    }
+
+    // Tables with at least one dead row, for the compaction thread to look at
+    public synchronized List<File> withDeadRows() {
+        List<File> result = new ArrayList<>();
+        for (Map.Entry<String, Table> e : tables.entrySet())
+            if (e.getValue().size > 0) result.add(new File(e.getKey()));
+        return result;
+    }
+
+    private Table table(File tableFile) throws IOException {
+        Table t = tables.get(tableFile.getPath());
+        if (t != null) return t;
+        t = new Table();
+        File f = file(tableFile);
+        if (f.exists()) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+            while (buf.remaining() >= ENTRY) {
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                if (t.size == t.offsets.length) t.offsets = Arrays.copyOf(t.offsets, t.size * 2);
+                t.offsets[t.size++] = offset;
+                t.deadBytes += length;
+            }
+        }
+        tables.put(tableFile.getPath(), t);
+        return t;
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.*;
+import java.util.*;
+
+// One BEGIN ... COMMIT/ROLLBACK. Reads see the tables as they were committed
+// when the transaction began; writes go to private copies of the tables,
+// which replace the real files all together at COMMIT. Callers synchronize
+// on the transaction while they use it, so the idle sweep can't abort it
+// mid-statement.
+public class Transaction {
+    private final long id;
+    private final File database;
+    private final Map<String, TransactionManager.Snapshot> snapshots;
+    // Table path -> private copy, for tables written so far
+    private final Map<String, File> copies = new LinkedHashMap<>();
+    private long lastUsed = System.currentTimeMillis();
+    private String abortReason;
+
+    public Transaction(long id, File database, Map<String, TransactionManager.Snapshot> snapshots) {
+        this.id = id;
+        this.database = database;
+        this.snapshots = snapshots;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public File database() {
+        return database;
+    }
+
+    // Null when the table did not exist at BEGIN
+    public TransactionManager.Snapshot snapshot(String path) {
+        return snapshots.get(path);
+    }
+
+    // The private copy of a table if this transaction wrote to it, else null
+    public File copy(String path) {
+        return copies.get(path);
+    }
+
+    // The private copy to write to, made from the snapshot on first use
+    public File copyFor(File table) throws IOException {
+        File copy = copies.get(table.getPath());
+        if (copy != null) return copy;
+        TransactionManager.Snapshot snapshot = snapshots.get(table.getPath());
+        if (snapshot == null) throw new FileNotFoundException("Table not found");
+        copy = new File(table.getPath() + ".tx" + id);
+        snapshot.copyTo(copy);
+        copies.put(table.getPath(), copy);
+        return copy;
+    }
+
+    public Map<String, File> copies() {
+        return Collections.unmodifiableMap(copies);
+    }
+
+    public synchronized void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    public synchronized long lastUsed() {
+        return lastUsed;
+    }
+
+    // Throws if the idle sweep rolled the transaction back
+    public synchronized void checkOpen() {
+        if (abortReason != null) throw new IllegalStateException(abortReason);
+    }
+
+    synchronized void abort(String reason) {
+        abortReason = reason;
+        discard();
+    }
+
+    synchronized void discard() {
+        for (File copy : copies.values()) {
+            copy.delete();
+            new File(copy.getPath() + ".tmp").delete();
+        }
+        copies.clear();
+        snapshots.values().forEach(TransactionManager.Snapshot::release);
+        snapshots.clear();
+    }
+}
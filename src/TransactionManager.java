@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Multi-version reads for BEGIN ... COMMIT. A table version is the file as it
+// stood after some commit: an append leaves the older version readable as a
+// prefix of the same file, and a rewrite moves a new file into place while
+// channels opened earlier keep the old one alive. A snapshot pins a version
+// by holding such a channel together with the length it had.
+//
+// Snapshots are shared by every transaction that began while their version
+// was current and closed when the last one lets go. A periodic sweep retires
+// superseded versions, so an old file disappears as soon as no transaction
+// can see it any more, and rolls back transactions left idle too long.
+public class TransactionManager {
+    public static final class Snapshot {
+        private final String path;
+        private final FileChannel channel;
+        private final long length;
+        private final long generation;
+        private final long version;
+        private final Tombstones.View dead;
+        private int refs = 1;
+
+        private Snapshot(String path, FileChannel channel, long length, long generation, long version,
+                         Tombstones.View dead) {
+            this.path = path;
+            this.channel = channel;
+            this.length = length;
+            this.generation = generation;
+            this.version = version;
+            this.dead = dead;
+        }
+
+        // The table's commit version (TableCache.version) this snapshot was taken at
+        public long version() {
+            return version;
+        }
+
+        // Readers share the channel; retain() first and release() once the reader is closed
+        public TableReader reader(BufferPool pool) {
+            return new TableReader(pool, path, generation, channel, length);
+        }
+
+        // Rows that were already deleted when the snapshot was taken
+        public Tombstones.View dead() {
+            return dead;
+        }
+
+        // The live rows only, so a private copy starts without tombstones
+        public void copyTo(File target) throws IOException {
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                if (dead.isEmpty()) {
+                    long pos = 0;
+                    while (pos < length) pos += channel.transferTo(pos, length - pos, out);
+                    return;
+                }
+                try (OutputStream o = new BufferedOutputStream(Channels.newOutputStream(out))) {
+                    RowScanner scanner = new RowScanner(channel, 0, length);
+                    while (scanner.next()) {
+                        if (dead.contains(scanner.offset())) continue;
+                        o.write(scanner.buffer(), scanner.start(), scanner.end() - scanner.start());
+                        o.write('\n');
+                    }
+                }
+            }
+        }
+
+        public synchronized void retain() {
+            refs++;
+        }
+
+        public void release() {
+            boolean last;
+            synchronized (this) {
+                last = --refs == 0;
+            }
+            if (!last) return;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing left to read through it anyway
+            }
+        }
+    }
+
+    private final BufferPool pool;
+    private final TableCache versions;
+    private final Tombstones tombstones;
+    private final long timeoutMillis;
+    private final AtomicLong nextId = new AtomicLong();
+    // Newest snapshot of each table, handed to transactions that begin while it is current
+    private final Map<String, Snapshot> current = new HashMap<>();
+    private final Set<Transaction> active = ConcurrentHashMap.newKeySet();
+
+    public TransactionManager(BufferPool pool, TableCache versions, Tombstones tombstones, long timeoutMillis) {
+        this.pool = pool;
+        this.versions = versions;
+        this.tombstones = tombstones;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    // The caller keeps writers out, so the snapshots of all tables agree
+    public synchronized Transaction begin(File dbDir, List<File> tables) throws IOException {
+        Map<String, Snapshot> snapshots = new HashMap<>();
+        try {
+            for (File f : tables) snapshots.put(f.getPath(), snapshot(f));
+        } catch (IOException e) {
+            snapshots.values().forEach(Snapshot::release);
+            throw e;
+        }
+        Transaction tx = new Transaction(nextId.incrementAndGet(), dbDir, snapshots);
+        active.add(tx);
+        return tx;
+    }
+
+    private Snapshot snapshot(File table) throws IOException {
+        String path = table.getPath();
+        long version = versions.version(path);
+        Snapshot s = current.get(path);
+        if (s == null || s.version != version) {
+            if (s != null) {
+                current.remove(path);
+                s.release();
+            }
+            long generation = pool.generation(path);
+            FileChannel ch = FileChannel.open(table.toPath(), StandardOpenOption.READ);
+            s = new Snapshot(path, ch, ch.size(), generation, version, tombstones.view(table));
+            current.put(path, s);
+        }
+        s.retain();
+        return s;
+    }
+
+    // Deletes the transaction's private copies and lets go of its snapshots
+    public void end(Transaction tx) {
+        if (active.remove(tx)) tx.discard();
+    }
+
+    public int activeCount() {
+        return active.size();
+    }
+
+    // Garbage collection of dead versions, run periodically
+    public void sweep() {
+        synchronized (this) {
+            Iterator<Map.Entry<String, Snapshot>> it = current.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Snapshot> e = it.next();
+                if (versions.version(e.getKey()) != e.getValue().version) {
+                    e.getValue().release();
+                    it.remove();
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Transaction tx : active) {
+            synchronized (tx) {
+                if (now - tx.lastUsed() > timeoutMillis && active.remove(tx)) {
+                    tx.abort("Transaction " + tx.id() + " was rolled back after being idle for more than "
+                            + timeoutMillis / 1000 + " seconds.");
+                }
+            }
+        }
+    }
+}
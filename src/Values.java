@@ -0,0 +1,34 @@
+// Ordering shared by range predicates, ORDER BY and B+tree indexes. Every value
+// is stored as text, so two numbers compare numerically and text compares
+// lexicographically; numbers sort before text.
+public final class Values {
+    private Values() {}
+
+    public static int compare(String a, String b) {
+        boolean numA = isNumber(a);
+        boolean numB = isNumber(b);
+        if (numA && numB) {
+            if (isSmallInteger(a) && isSmallInteger(b)) return Long.compare(Long.parseLong(a), Long.parseLong(b));
+            return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+        }
+        if (numA != numB) return numA ? -1 : 1;
+        return a.compareTo(b);
+    }
+
+    public static boolean isNumber(String s) {
+        int i = s.startsWith("-") ? 1 : 0;
+        boolean digits = false;
+        boolean dot = false;
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') digits = true;
+            else if (c == '.' && !dot) dot = true;
+            else return false;
+        }
+        return digits;
+    }
+
+    private static boolean isSmallInteger(String s) {
+        return s.indexOf('.') < 0 && s.length() <= 18;
+    }
+}
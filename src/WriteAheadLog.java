@@ -0,0 +1,320 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Redo log for table files. Records are physical (bytes at an offset, a file's
+// full new contents, a truncation), so replaying one that already reached the
+// table file is harmless. A transaction's tables are logged as a group that
+// ends in a COMMIT record; replay drops a group whose COMMIT never made it.
+// A bulk append is logged as BATCH_WRITE chunks closed by a COMMIT naming the
+// files written; replay cuts each file back to where the batch began in it if
+// the COMMIT never made it. Replacing a table file also empties its tombstone
+// file, whose offsets only make sense for the old contents.
+//
+// A rewritten table (VACUUM, DELETE without WHERE, a transaction's copy) is
+// logged by file: the new contents are written and forced to a file beside
+// the table, and the record names that file. Once it has been moved into
+// place the file is gone, which tells replay the replacement already
+// happened. Either way the table's state at the last replacement is on
+// disk, so replay skips the table's earlier records.
+//
+// Record layout: [int bodyLength][body][int crc32(body)] where body is
+// [long lsn][byte type][short pathLength][path][long offset][int dataLength][data]
+public class WriteAheadLog {
+    public static final byte WRITE = 1;
+    public static final byte REPLACE = 2;
+    public static final byte TRUNCATE = 3;
+    private static final byte CHECKPOINT = 4;
+    private static final byte TX_REPLACE = 5;
+    private static final byte COMMIT = 6;
+    private static final byte BATCH_WRITE = 7;
+    private static final byte REPLACE_FILE = 8;
+    private static final byte TX_REPLACE_FILE = 9;
+
+    private static final int MIN_BODY = 8 + 1 + 2 + 8 + 4;
+
+    private final FileChannel channel;
+    private final Object syncLock = new Object();
+    // Table files written since the last checkpoint; they must be forced before the log is cut
+    private final Set<String> dirtyPaths = new HashSet<>();
+    private long lastLsn;
+    private volatile long flushedLsn;
+    private long bytesWritten;
+    private final LatencyHistogram forces = new LatencyHistogram();
+
+    public WriteAheadLog(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Appends a record without forcing it; pair with sync(lsn) before acknowledging the write.
+    public synchronized long append(byte type, String path, long offset, byte[] data) throws IOException {
+        long lsn = ++lastLsn;
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(MIN_BODY + pathBytes.length + data.length);
+        body.putLong(lsn).put(type).putShort((short) pathBytes.length).put(pathBytes)
+                .putLong(offset).putInt(data.length).put(data);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        ByteBuffer record = ByteBuffer.allocate(4 + body.capacity() + 4);
+        record.putInt(body.capacity()).put(body.array()).putInt((int) crc.getValue()).flip();
+        while (record.hasRemaining()) channel.write(record);
+        bytesWritten += record.limit();
+        if (!path.isEmpty()) dirtyPaths.add(path);
+        return lsn;
+    }
+
+    // Logs that path is to be replaced by image, a file in the same folder
+    // that the caller moves into place afterwards. image is forced first.
+    public long appendReplace(String path, File image) throws IOException {
+        force(image);
+        return append(REPLACE_FILE, path, 0, image.getPath().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Logs the replacement of several tables by their images as one unit.
+    // Returns the LSN of the COMMIT record.
+    public synchronized long appendCommit(Map<String, File> images) throws IOException {
+        for (File image : images.values()) force(image);
+        for (Map.Entry<String, File> e : images.entrySet())
+            append(TX_REPLACE_FILE, e.getKey(), 0, e.getValue().getPath().getBytes(StandardCharsets.UTF_8));
+        return append(COMMIT, "", 0, new byte[0]);
+    }
+
+    // One chunk of a bulk append to path (a table or its tombstone file). The
+    // caller holds the table's write lock from the first chunk until
+    // commitBatch or a TRUNCATE back to where the batch began, so a file has at
+    // most one open batch.
+    public long appendBatch(String path, long offset, byte[] data) throws IOException {
+        return append(BATCH_WRITE, path, offset, data);
+    }
+
+    // Closes the open batches of all the given files in one record
+    public long commitBatch(String... paths) throws IOException {
+        String others = String.join("\n", Arrays.asList(paths).subList(1, paths.length));
+        return append(COMMIT, paths[0], 0, others.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Group commit: whoever gets here first forces everything appended so far,
+    // and writers that queued up behind it find their LSN already durable.
+    public void sync(long lsn) throws IOException {
+        if (flushedLsn >= lsn) return;
+        synchronized (syncLock) {
+            if (flushedLsn >= lsn) return;
+            long target;
+            synchronized (this) {
+                target = lastLsn;
+            }
+            DbEvents.FsyncEvent event = new DbEvents.FsyncEvent();
+            event.begin();
+            long started = System.nanoTime();
+            channel.force(false);
+            forces.record(System.nanoTime() - started);
+            event.records = target - flushedLsn;
+            event.commit();
+            flushedLsn = target;
+        }
+    }
+
+    // Forces every table written since the last checkpoint, then cuts the log.
+    // The caller must keep writers out while this runs.
+    public synchronized void checkpoint() throws IOException {
+        Set<File> dirs = new HashSet<>();
+        for (String path : dirtyPaths) {
+            File f = new File(path);
+            if (!f.exists()) continue;
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+            if (f.getParentFile() != null) dirs.add(f.getParentFile());
+        }
+        // Renames are only durable once the directory entry is
+        for (File dir : dirs) forceDirectory(dir);
+        dirtyPaths.clear();
+
+        channel.truncate(0);
+        channel.position(0);
+        long lsn = append(CHECKPOINT, "", 0, new byte[0]);
+        channel.force(false);
+        flushedLsn = lsn;
+    }
+
+    private record Pending(byte type, String path, byte[] data) {}
+
+    private record Record(long lsn, byte type, String path, long offset, byte[] data, int size) {}
+
+    // Re-applies every intact record and cuts off a torn tail. Returns the number of records applied.
+    public synchronized int replay() throws IOException {
+        Map<String, Long> replaced = lastReplacements();
+        int applied = 0;
+        long valid = 0;
+        // TX_REPLACE and TX_REPLACE_FILE records waiting for their COMMIT
+        List<Pending> group = new ArrayList<>();
+        // Tables with an unfinished bulk append -> offset it started at
+        Map<String, Long> batches = new HashMap<>();
+        DataInputStream in = open();
+        for (Record r = read(in); r != null; r = read(in)) {
+            lastLsn = r.lsn();
+            byte type = r.type();
+            String path = r.path();
+            long offset = r.offset();
+            byte[] data = r.data();
+            valid += r.size();
+            // Already part of a replacement further on
+            if (r.lsn() < replaced.getOrDefault(path, 0L)) continue;
+            if (type == TX_REPLACE || type == TX_REPLACE_FILE) {
+                group.add(new Pending(type, path, data));
+            } else if (type == BATCH_WRITE) {
+                // Applied right away, and undone below if the batch never commits
+                batches.putIfAbsent(path, offset);
+                if (redo(WRITE, path, offset, data)) applied++;
+            } else if (type == COMMIT && !path.isEmpty()) {
+                batches.remove(path);
+                if (data.length > 0)
+                    for (String other : new String(data, StandardCharsets.UTF_8).split("\n")) batches.remove(other);
+            } else if (type == COMMIT) {
+                for (Pending p : group)
+                    if (redo(p.type() == TX_REPLACE ? REPLACE : REPLACE_FILE, p.path(), 0, p.data())) applied++;
+                group.clear();
+            } else if (type != CHECKPOINT) {
+                // A TRUNCATE back to its start is how a failed batch is cancelled
+                batches.remove(path);
+                if (redo(type, path, offset, data)) applied++;
+            }
+        }
+        for (Map.Entry<String, Long> e : batches.entrySet())
+            if (redo(TRUNCATE, e.getKey(), e.getValue(), new byte[0])) applied++;
+        channel.truncate(valid);
+        channel.position(valid);
+        flushedLsn = lastLsn;
+        return applied;
+    }
+
+    // Table path -> LSN of its last committed REPLACE_FILE. The table, and its
+    // tombstones, need none of the records before that one.
+    private Map<String, Long> lastReplacements() throws IOException {
+        Map<String, Long> replaced = new HashMap<>();
+        List<Record> group = new ArrayList<>();
+        DataInputStream in = open();
+        for (Record r = read(in); r != null; r = read(in)) {
+            if (r.type() == REPLACE_FILE) {
+                replaced.put(r.path(), r.lsn());
+            } else if (r.type() == TX_REPLACE_FILE) {
+                group.add(r);
+            } else if (r.type() == COMMIT && r.path().isEmpty()) {
+                for (Record g : group) replaced.put(g.path(), g.lsn());
+                group.clear();
+            }
+        }
+        Map<String, Long> withTombstones = new HashMap<>(replaced);
+        for (Map.Entry<String, Long> e : replaced.entrySet())
+            if (e.getKey().endsWith(".txt"))
+                withTombstones.put(Tombstones.file(new File(e.getKey())).getPath(), e.getValue());
+        return withTombstones;
+    }
+
+    private DataInputStream open() throws IOException {
+        channel.position(0);
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    }
+
+    // The next intact record, or null at the end of the log or a torn tail
+    private Record read(DataInputStream in) throws IOException {
+        byte[] body;
+        try {
+            int length = in.readInt();
+            if (length < MIN_BODY || length > channel.size()) return null;
+            body = new byte[length];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (in.readInt() != (int) crc.getValue()) return null;
+        } catch (EOFException e) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(body);
+        long lsn = buf.getLong();
+        byte type = buf.get();
+        byte[] pathBytes = new byte[buf.getShort()];
+        buf.get(pathBytes);
+        long offset = buf.getLong();
+        byte[] data = new byte[buf.getInt()];
+        buf.get(data);
+        return new Record(lsn, type, new String(pathBytes, StandardCharsets.UTF_8), offset, data, 4 + body.length + 4);
+    }
+
+    // Table files written since the last checkpoint, or during replay
+    public synchronized Set<String> dirtyPaths() {
+        return new HashSet<>(dirtyPaths);
+    }
+
+    public synchronized long bytesWritten() {
+        return bytesWritten;
+    }
+
+    // Time spent in group-commit forces
+    public LatencyHistogram forces() {
+        return forces;
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    private boolean redo(byte type, String path, long offset, byte[] data) throws IOException {
+        File f = new File(path);
+        // The database was dropped after the record was written
+        if (f.getParentFile() != null && !f.getParentFile().exists()) return false;
+        dirtyPaths.add(path);
+        switch (type) {
+            case WRITE -> {
+                try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    ByteBuffer buf = ByteBuffer.wrap(data);
+                    long pos = offset;
+                    while (buf.hasRemaining()) pos += ch.write(buf, pos);
+                }
+            }
+            case REPLACE -> {
+                File temp = new File(path + ".tmp");
+                Files.write(temp.toPath(), data);
+                Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (path.endsWith(".txt")) Tombstones.file(f).delete();
+            }
+            case REPLACE_FILE -> {
+                File image = new File(new String(data, StandardCharsets.UTF_8));
+                // Gone if it was moved into place before the crash
+                if (image.exists()) Files.move(image.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (path.endsWith(".txt")) Tombstones.file(f).delete();
+            }
+            case TRUNCATE -> {
+                if (!f.exists()) return false;
+                try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                    if (ch.size() > offset) ch.truncate(offset);
+                }
+            }
+            default -> throw new IOException("Unknown log record type " + type);
+        }
+        return true;
+    }
+
+    // Forces a file's contents and its entry in the folder
+    private static void force(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        if (f.getParentFile() != null) forceDirectory(f.getParentFile());
+    }
+
+    private static void forceDirectory(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // Not every platform lets a directory be opened and forced
+        }
+    }
+}